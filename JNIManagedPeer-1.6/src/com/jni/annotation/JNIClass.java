@@ -36,4 +36,57 @@ public @interface JNIClass
 	 * The namespace to create the C++ class in.
 	 */
 	String value();
+
+	/*
+	 * Generate a struct of the instance fields marked with JNIField, with
+	 * Snapshot() and WriteBack() methods that copy all of them at once.
+	 */
+	boolean snapshot() default false;
+
+	/*
+	 * The name of a method of the class, long[] name(), that returns the
+	 * primitive snapshot fields packed in declaration order after the hash of
+	 * their layout, given in the generated header, so Snapshot() reads them
+	 * with one call.  Implies snapshot; other fields are read one by one.
+	 */
+	String packer() default "";
+
+	/*
+	 * Generate the packer of the snapshot fields as a Java companion class,
+	 * <Class>Packer, instead of naming a method of the class.  Implies
+	 * snapshot; fields that aren't primitive, or are private, are read one by
+	 * one.
+	 */
+	boolean pack() default false;
+
+	/*
+	 * Return JNI references (jobject, jstring, arrays, ...) from methods and
+	 * fields as LocalRef, which deletes the local reference, and declare a
+	 * LocalFrame scope for loops that make many calls.
+	 */
+	boolean localRefs() default false;
+
+	/*
+	 * Declare the native methods of the class as C++ functions of the peer, and
+	 * bind them with RegisterNatives() rather than by exported symbol names.
+	 */
+	boolean natives() default false;
+
+	/*
+	 * Also give the methods and field accessors of the peer overloads taking
+	 * the JNIEnv*, so a caller that has it saves the lookup of Env().
+	 */
+	boolean env() default false;
+
+	/*
+	 * Declare the compile-time constants of the class, its static final fields
+	 * with a constant value, as static constexpr members of the peer.
+	 */
+	boolean constants() default false;
+
+	/*
+	 * What the methods of the peer do when the Java method throws, unless the
+	 * method has a policy of its own.
+	 */
+	JNIMethod.ExceptionPolicy exceptions() default JNIMethod.ExceptionPolicy.DEFAULT;
 }
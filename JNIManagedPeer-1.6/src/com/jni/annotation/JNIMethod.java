@@ -32,4 +32,66 @@ import java.lang.annotation.Target;
 @Target({ ElementType.METHOD })
 public @interface JNIMethod
 {
+	/*
+	 * How the primitive arrays (int[], double[], ...) of the parameters and
+	 * the result are passed.
+	 */
+	enum ArrayMode {
+		/* As JNI references (jintArray, jdoubleArray, ...). */
+		REFERENCE,
+		/*
+		 * Parameters from C++ spans, written with one Set<Type>ArrayRegion
+		 * (and output spans read back with one Get<Type>ArrayRegion), or Java
+		 * arrays as they are; the result pinned with GetPrimitiveArrayCritical
+		 * while a function of the caller runs.
+		 */
+		CRITICAL,
+		/*
+		 * Parameters as with CRITICAL; the result copied with one
+		 * Get<Type>ArrayRegion into a stack buffer, or into a buffer of the
+		 * caller.
+		 */
+		REGION
+	}
+
+	ArrayMode arrays() default ArrayMode.REFERENCE;
+
+	/*
+	 * What a method of the peer does when the Java method throws.
+	 */
+	enum ExceptionPolicy {
+		/* The policy of the class, or of the generator (-exceptions). */
+		DEFAULT,
+		/* Nothing: the caller checks for the pending Java exception. */
+		NONE,
+		/* Throw a C++ JNI::JavaException, found with ExceptionCheck. */
+		THROW,
+		/* Return a JNI::Result, which tells whether the method threw. */
+		RESULT
+	}
+
+	ExceptionPolicy exceptions() default ExceptionPolicy.DEFAULT;
+
+	/*
+	 * Pass strings as characters: parameters from C strings, std::string or
+	 * std::string_view, and the result copied into a stack buffer or into a
+	 * buffer of the caller.
+	 */
+	boolean strings() default false;
+
+	/*
+	 * Call the method of this class with CallNonvirtual<Type>Method, skipping
+	 * the virtual lookup, though the method isn't final.  Only for methods no
+	 * subclass overrides.  Final and private methods, and the methods of final
+	 * classes, are called so anyway.
+	 */
+	boolean nonvirtual() default false;
+
+	/*
+	 * Also generate a Java companion method that calls this one for each
+	 * element of arrays of its arguments, and a <name>Batch() method of the
+	 * peer that passes spans to it in one call.  The parameters and the
+	 * result must be primitive.
+	 */
+	boolean batch() default false;
 }
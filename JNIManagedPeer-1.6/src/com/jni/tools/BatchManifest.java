@@ -0,0 +1,303 @@
+/*
+ * Copyright 2014 Jesse Benson
+ *
+ * This code is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this work. If not, see http://www.gnu.org/licenses/.
+ */
+
+package com.jni.tools;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.regex.Pattern;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import com.sun.javadoc.ClassDoc;
+import com.sun.tools.javah.Util;
+
+/**
+ * A manifest of generation units (-batch <file>), so many output directories
+ * are generated from one parse of the classes.  Each line is a unit:
+ *
+ *	-d <dir> [-javad <dir>] [-namespace <ns>] [-pch <file>] [-registry <name>] <classes>
+ *
+ * Classes are qualified names of top level classes, in which * matches any
+ * part of a name and ** also matches subpackages (com.app.*, com.app.**,
+ * com.app.Car*).  Nested classes go with their top level class.  A relative
+ * output directory is relative to the manifest.  Units may share a -javad
+ * directory, since the Java companion classes are named after their classes.
+ * Lines starting with # are comments.
+ */
+public class BatchManifest {
+
+	public static class Unit {
+		public final String odir;
+		public final String javad;
+		public final String namespace;
+		public final String pch;
+		public final String registry;
+		private final List<String> globs;
+		private final List<Pattern> patterns;
+
+		Unit(String odir, String javad, String namespace, String pch, String registry, List<String> globs) {
+			this.odir = odir;
+			this.javad = javad;
+			this.namespace = namespace;
+			this.pch = pch;
+			this.registry = registry;
+			this.globs = globs;
+			this.patterns = new ArrayList<Pattern>(globs.size());
+			for (String glob : globs)
+				patterns.add(compile(glob));
+		}
+
+		/**
+		 * Returns the classes of the unit, in the order given.
+		 */
+		public ClassDoc[] select(ClassDoc[] classes) {
+			List<ClassDoc> result = new ArrayList<ClassDoc>();
+			for (ClassDoc clazz : classes) {
+				if (matches(clazz))
+					result.add(clazz);
+			}
+			return result.toArray(new ClassDoc[result.size()]);
+		}
+
+		private boolean matches(ClassDoc clazz) {
+			while (clazz.containingClass() != null)
+				clazz = clazz.containingClass();
+			return matches(clazz.qualifiedName());
+		}
+
+		private boolean matches(String className) {
+			for (Pattern pattern : patterns) {
+				if (pattern.matcher(className).matches())
+					return true;
+			}
+			return false;
+		}
+
+		@Override
+		public String toString() {
+			return odir + " " + globs;
+		}
+	}
+
+	private final File file;
+	private final List<Unit> units = new ArrayList<Unit>();
+
+	private BatchManifest(File file) {
+		this.file = file;
+	}
+
+	/**
+	 * Read a manifest.  Errors in its lines are reported with Util.error.
+	 */
+	public static BatchManifest load(File file) throws IOException {
+		BatchManifest manifest = new BatchManifest(file);
+		Map<String, Unit> dirs = new HashMap<String, Unit>();
+		BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+		try {
+			String line;
+			while ((line = in.readLine()) != null) {
+				line = line.trim();
+				if (line.length() == 0 || line.startsWith("#"))
+					continue;
+
+				Unit unit = manifest.parse(line);
+				/* Each output directory records only its own classes, so units can't share one. */
+				Unit other = dirs.put(new File(unit.odir).getCanonicalPath(), unit);
+				if (other != null)
+					Util.error("Units in %s share the output directory %s.", file.getPath(), unit.odir);
+				manifest.units.add(unit);
+			}
+		} finally {
+			in.close();
+		}
+
+		if (manifest.units.isEmpty())
+			Util.error("No units in %s.", file.getPath());
+		return manifest;
+	}
+
+	private Unit parse(String line) {
+		String[] words = line.split("\\s+");
+		String odir = null;
+		String javad = null;
+		String namespace = null;
+		String pch = null;
+		String registry = null;
+		List<String> globs = new ArrayList<String>();
+		for (int i = 0; i < words.length; i++) {
+			String word = words[i];
+			if (word.charAt(0) != '-') {
+				globs.add(word);
+			} else if (i + 1 >= words.length) {
+				Util.error("Invalid unit in %s: %s", file.getPath(), line);
+			} else if (word.equals("-d")) {
+				odir = resolve(words[++i]);
+			} else if (word.equals("-javad")) {
+				javad = resolve(words[++i]);
+			} else if (word.equals("-namespace")) {
+				namespace = words[++i];
+			} else if (word.equals("-pch")) {
+				pch = words[++i];
+			} else if (word.equals("-registry") && isIdentifier(words[i + 1])) {
+				registry = words[++i];
+			} else {
+				Util.error("Invalid unit in %s: %s", file.getPath(), line);
+			}
+		}
+		if (odir == null)
+			Util.error("No output directory specified for a unit in %s: %s", file.getPath(), line);
+		if (globs.isEmpty())
+			Util.error("No classes specified for a unit in %s: %s", file.getPath(), line);
+		return new Unit(odir, javad, namespace, pch, registry, globs);
+	}
+
+	/*
+	 * A directory of a unit, relative to the manifest unless absolute.
+	 */
+	private String resolve(String path) {
+		File dir = new File(path);
+		if (!dir.isAbsolute())
+			dir = new File(file.getAbsoluteFile().getParentFile(), path);
+		return dir.getPath();
+	}
+
+	/**
+	 * Returns true if the name can be used as a C++ identifier.
+	 */
+	public static boolean isIdentifier(String name) {
+		return name.matches("[A-Za-z_][A-Za-z0-9_]*");
+	}
+
+	public List<Unit> getUnits() {
+		return units;
+	}
+
+	/**
+	 * Returns the top level classes of all units, so they are parsed once.
+	 * Plain class names are taken as they are; patterns are matched against
+	 * the sources and class files in the directories and jars of the path.
+	 */
+	public Set<String> findClasses(String path) throws IOException {
+		Set<String> result = new TreeSet<String>();
+		List<String> candidates = null;
+		for (Unit unit : units) {
+			for (String glob : unit.globs) {
+				if (glob.indexOf('*') < 0) {
+					result.add(glob);
+					continue;
+				}
+				if (candidates == null)
+					candidates = listClasses(path);
+				for (String className : candidates) {
+					if (unit.matches(className))
+						result.add(className);
+				}
+			}
+		}
+		return result;
+	}
+
+	/*
+	 * The names of the top level classes in the directories and jars of a path.
+	 */
+	private static List<String> listClasses(String path) throws IOException {
+		List<String> result = new ArrayList<String>();
+		for (String element : path.split(File.pathSeparator)) {
+			if (element.length() == 0)
+				continue;
+			File root = new File(element);
+			if (root.isDirectory()) {
+				listClasses(root, "", result);
+			} else if (root.isFile()) {
+				ZipFile jar = new ZipFile(root);
+				try {
+					Enumeration<? extends ZipEntry> entries = jar.entries();
+					while (entries.hasMoreElements()) {
+						String className = className(entries.nextElement().getName());
+						if (className != null)
+							result.add(className.replace('/', '.'));
+					}
+				} finally {
+					jar.close();
+				}
+			}
+		}
+		return result;
+	}
+
+	private static void listClasses(File dir, String prefix, List<String> result) {
+		File[] files = dir.listFiles();
+		if (files == null)
+			return;
+		for (File file : files) {
+			if (file.isDirectory()) {
+				listClasses(file, prefix + file.getName() + ".", result);
+			} else {
+				String className = className(file.getName());
+				if (className != null)
+					result.add(prefix + className);
+			}
+		}
+	}
+
+	/*
+	 * The class of a source or class file, or null for other files and for
+	 * nested classes.
+	 */
+	private static String className(String fileName) {
+		String name;
+		if (fileName.endsWith(".java"))
+			name = fileName.substring(0, fileName.length() - 5);
+		else if (fileName.endsWith(".class"))
+			name = fileName.substring(0, fileName.length() - 6);
+		else
+			return null;
+		if (name.indexOf('$') >= 0 || name.endsWith("package-info"))
+			return null;
+		return name;
+	}
+
+	/*
+	 * * matches within a name, ** across packages.
+	 */
+	private static Pattern compile(String glob) {
+		StringBuilder regex = new StringBuilder();
+		for (int i = 0; i < glob.length(); i++) {
+			char c = glob.charAt(i);
+			if (c == '*' && i + 1 < glob.length() && glob.charAt(i + 1) == '*') {
+				regex.append(".*");
+				i++;
+			} else if (c == '*') {
+				regex.append("[^.]*");
+			} else {
+				regex.append(Pattern.quote(String.valueOf(c)));
+			}
+		}
+		return Pattern.compile(regex.toString());
+	}
+}
@@ -0,0 +1,748 @@
+/*
+ * Copyright 2014 Jesse Benson
+ *
+ * This code is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this work. If not, see http://www.gnu.org/licenses/.
+ */
+
+package com.jni.tools;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import com.jni.tools.DocModel.AnnotationInfo;
+import com.jni.tools.DocModel.ClassInfo;
+import com.jni.tools.DocModel.EnumConstant;
+import com.jni.tools.DocModel.MemberInfo;
+import com.jni.tools.DocModel.TypeInfo;
+
+/**
+ * Describes compiled classes for the DocModel by reading their class files, so
+ * peers can be generated from jars and class directories without sources.
+ *
+ * Classes are looked up along a search path of directories and jars, and then
+ * as resources of the system class loader (which finds the JDK classes).
+ * scan() streams through the classes of a jar or directory and only parses the
+ * ones whose constant pool refers to the @JNIClass annotation.
+ *
+ * The classes of jars and of the system class loader are kept for later runs
+ * in the same process, as long as the jars don't change.
+ *
+ * Synthetic and bridge members are left out, as javadoc would not see them.
+ * Parameters are named argN, as javadoc names them for class files, so both
+ * front ends generate the same peers.
+ */
+public class ClassFileReader implements DocModel.Resolver {
+
+	public static final String JNICLASS = "com.jni.annotation.JNIClass";
+
+	private static final byte[] JNICLASS_DESCRIPTOR = utf8("L" + JNICLASS.replace('.', '/') + ";");
+
+	/* Constant pool tags. */
+	private static final int CONSTANT_Utf8 = 1;
+	private static final int CONSTANT_Integer = 3;
+	private static final int CONSTANT_Float = 4;
+	private static final int CONSTANT_Long = 5;
+	private static final int CONSTANT_Double = 6;
+	private static final int CONSTANT_Class = 7;
+	private static final int CONSTANT_String = 8;
+	private static final int CONSTANT_Fieldref = 9;
+	private static final int CONSTANT_Methodref = 10;
+	private static final int CONSTANT_InterfaceMethodref = 11;
+	private static final int CONSTANT_NameAndType = 12;
+	private static final int CONSTANT_MethodHandle = 15;
+	private static final int CONSTANT_MethodType = 16;
+	private static final int CONSTANT_Dynamic = 17;
+	private static final int CONSTANT_InvokeDynamic = 18;
+	private static final int CONSTANT_Module = 19;
+	private static final int CONSTANT_Package = 20;
+
+	/* Access flags that are not source modifiers (ACC_SUPER is masked off too). */
+	private static final int ACC_BRIDGE = 0x0040;
+	private static final int ACC_SYNTHETIC = 0x1000;
+
+	private static final int CLASS_MODIFIERS = Modifier.PUBLIC | Modifier.FINAL | Modifier.INTERFACE
+			| Modifier.ABSTRACT | DocModel.ANNOTATION | DocModel.ENUM;
+	private static final int NESTED_MODIFIERS = CLASS_MODIFIERS | Modifier.PRIVATE | Modifier.PROTECTED | Modifier.STATIC;
+	private static final int FIELD_MODIFIERS = Modifier.PUBLIC | Modifier.PROTECTED | Modifier.PRIVATE
+			| Modifier.STATIC | Modifier.FINAL | Modifier.TRANSIENT | Modifier.VOLATILE;
+	private static final int METHOD_MODIFIERS = Modifier.PUBLIC | Modifier.PROTECTED | Modifier.PRIVATE
+			| Modifier.ABSTRACT | Modifier.STATIC | Modifier.FINAL | Modifier.SYNCHRONIZED | Modifier.NATIVE | Modifier.STRICT;
+
+	/* A directory or jar on the search path. */
+	private static class Root {
+		final File dir;
+		final ZipFile jar;
+		final JarClasses cache;
+
+		Root(File dir, ZipFile jar, JarClasses cache) {
+			this.dir = dir;
+			this.jar = jar;
+			this.cache = cache;
+		}
+	}
+
+	/*
+	 * The classes read from a jar, kept while the jar is unchanged so later
+	 * runs in the same process (see Daemon) don't read them again.
+	 */
+	private static class JarClasses {
+		final long modified;
+		final long length;
+		final Map<String, ClassInfo> classes = new HashMap<String, ClassInfo>();
+		/* The @JNIClass classes, once the jar has been scanned. */
+		List<ClassInfo> annotated;
+
+		JarClasses(File file) {
+			this.modified = file.lastModified();
+			this.length = file.length();
+		}
+	}
+
+	private static final Map<String, JarClasses> jarCache = new HashMap<String, JarClasses>();
+
+	/* Classes of the system class loader, which don't change while the process runs. */
+	private static final Map<String, ClassInfo> platformClasses = new HashMap<String, ClassInfo>();
+
+	private final List<Root> roots = new ArrayList<Root>();
+
+	/* Classes read so far by binary name, including the ones not found (null). */
+	private final Map<String, ClassInfo> classes = new HashMap<String, ClassInfo>();
+
+	/**
+	 * Add the directories and jars of a path (separated by File.pathSeparator)
+	 * to the search path.
+	 */
+	public void addPath(String path) throws IOException {
+		for (String element : path.split(File.pathSeparator)) {
+			if (element.length() > 0)
+				addRoot(new File(element));
+		}
+	}
+
+	private Root addRoot(File file) throws IOException {
+		for (Root root : roots) {
+			if (file.equals(root.dir) || (root.jar != null && file.getPath().equals(root.jar.getName())))
+				return root;
+		}
+
+		Root root;
+		if (file.isDirectory())
+			root = new Root(file, null, null);
+		else if (file.isFile())
+			root = new Root(null, new ZipFile(file), jarClasses(file));
+		else
+			return null; /* Like javac, ignore path elements that don't exist. */
+		roots.add(root);
+		return root;
+	}
+
+	private static JarClasses jarClasses(File file) throws IOException {
+		String key = file.getCanonicalPath();
+		synchronized (jarCache) {
+			JarClasses cache = jarCache.get(key);
+			if (cache == null || cache.modified != file.lastModified() || cache.length != file.length()) {
+				cache = new JarClasses(file);
+				jarCache.put(key, cache);
+			}
+			return cache;
+		}
+	}
+
+	/**
+	 * Close the jars of the search path.
+	 */
+	public void close() {
+		for (Root root : roots) {
+			if (root.jar != null) {
+				try {
+					root.jar.close();
+				} catch (IOException e) {
+					/* Nothing was written, nothing is lost. */
+				}
+			}
+		}
+		roots.clear();
+	}
+
+	/**
+	 * Returns the @JNIClass classes of a jar or directory, which is added to
+	 * the search path.  Entries are read one at a time and only classes that
+	 * refer to the annotation are parsed.
+	 */
+	public List<ClassInfo> scan(File file) throws IOException {
+		List<ClassInfo> result = new ArrayList<ClassInfo>();
+		Root root = addRoot(file);
+		if (root == null)
+			throw new IOException("No such file or directory: " + file);
+
+		if (root.jar != null) {
+			synchronized (root.cache) {
+				if (root.cache.annotated == null) {
+					List<ClassInfo> annotated = new ArrayList<ClassInfo>();
+					Enumeration<? extends ZipEntry> entries = root.jar.entries();
+					while (entries.hasMoreElements()) {
+						ZipEntry entry = entries.nextElement();
+						if (!entry.isDirectory() && entry.getName().endsWith(".class"))
+							scan(readFully(root.jar.getInputStream(entry), (int)entry.getSize()), entry.getName(), annotated);
+					}
+					for (ClassInfo info : annotated)
+						root.cache.classes.put(info.binaryName, info);
+					root.cache.annotated = annotated;
+				}
+				result.addAll(root.cache.annotated);
+			}
+		} else {
+			scan(root.dir, result);
+		}
+
+		synchronized (this) {
+			/* Keep one description per class, whichever was read first. */
+			for (int i = 0; i < result.size(); i++) {
+				ClassInfo info = result.get(i);
+				if (classes.get(info.binaryName) != null)
+					result.set(i, classes.get(info.binaryName));
+				else
+					classes.put(info.binaryName, info);
+			}
+		}
+		return result;
+	}
+
+	private void scan(File dir, List<ClassInfo> result) throws IOException {
+		File[] files = dir.listFiles();
+		if (files == null)
+			return;
+		for (File file : files) {
+			if (file.isDirectory())
+				scan(file, result);
+			else if (file.getName().endsWith(".class"))
+				scan(readFully(new FileInputStream(file), (int)file.length()), file.getPath(), result);
+		}
+	}
+
+	private static void scan(byte[] b, String name, List<ClassInfo> result) throws IOException {
+		if (!refersTo(b, JNICLASS_DESCRIPTOR))
+			return;
+
+		ClassInfo info = parse(b, name);
+		if (info != null && hasAnnotation(info, JNICLASS))
+			result.add(info);
+	}
+
+	private static boolean hasAnnotation(ClassInfo info, String type) {
+		for (AnnotationInfo annotation : info.annotations) {
+			if (annotation.type.equals(type))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Returns the named class (by binary name), or null if it cannot be found.
+	 */
+	public synchronized ClassInfo resolve(String binaryName) {
+		if (classes.containsKey(binaryName))
+			return classes.get(binaryName);
+
+		ClassInfo info = null;
+		try {
+			info = find(binaryName, binaryName.replace('.', '/') + ".class");
+		} catch (IOException e) {
+			info = null;
+		}
+		classes.put(binaryName, info);
+		return info;
+	}
+
+	private ClassInfo find(String binaryName, String path) throws IOException {
+		for (Root root : roots) {
+			if (root.jar != null) {
+				ZipEntry entry = root.jar.getEntry(path);
+				if (entry == null)
+					continue;
+				synchronized (root.cache) {
+					ClassInfo info = root.cache.classes.get(binaryName);
+					if (info == null) {
+						info = parse(readFully(root.jar.getInputStream(entry), (int)entry.getSize()), path);
+						root.cache.classes.put(binaryName, info);
+					}
+					return info;
+				}
+			} else {
+				File file = new File(root.dir, path);
+				if (file.isFile())
+					return parse(readFully(new FileInputStream(file), (int)file.length()), file.getPath());
+			}
+		}
+
+		synchronized (platformClasses) {
+			if (platformClasses.containsKey(binaryName))
+				return platformClasses.get(binaryName);
+			InputStream in = ClassLoader.getSystemResourceAsStream(path);
+			ClassInfo info = (in == null ? null : parse(readFully(in, -1), path));
+			platformClasses.put(binaryName, info);
+			return info;
+		}
+	}
+
+	private static byte[] readFully(InputStream in, int size) throws IOException {
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream(size > 0 ? size : 8192);
+			byte[] buffer = new byte[8192];
+			int n;
+			while ((n = in.read(buffer)) > 0)
+				out.write(buffer, 0, n);
+			return out.toByteArray();
+		} finally {
+			in.close();
+		}
+	}
+
+	/*
+	 * Does the constant pool hold the given (modified UTF-8) string?  Only the
+	 * tags and lengths are read; strings of a different length are skipped.
+	 */
+	static boolean refersTo(byte[] b, byte[] utf8) {
+		try {
+			if (b.length < 10 || readInt(b, 0) != 0xCAFEBABE)
+				return false;
+			int count = readUnsignedShort(b, 8);
+			int offset = 10;
+			for (int i = 1; i < count; i++) {
+				int tag = b[offset++];
+				switch (tag) {
+				case CONSTANT_Utf8:
+					int length = readUnsignedShort(b, offset);
+					offset += 2;
+					if (length == utf8.length && regionMatches(b, offset, utf8))
+						return true;
+					offset += length;
+					break;
+				case CONSTANT_Long:
+				case CONSTANT_Double:
+					offset += 8;
+					i++; /* Takes two entries. */
+					break;
+				case CONSTANT_Integer:
+				case CONSTANT_Float:
+				case CONSTANT_Fieldref:
+				case CONSTANT_Methodref:
+				case CONSTANT_InterfaceMethodref:
+				case CONSTANT_NameAndType:
+				case CONSTANT_Dynamic:
+				case CONSTANT_InvokeDynamic:
+					offset += 4;
+					break;
+				case CONSTANT_MethodHandle:
+					offset += 3;
+					break;
+				case CONSTANT_Class:
+				case CONSTANT_String:
+				case CONSTANT_MethodType:
+				case CONSTANT_Module:
+				case CONSTANT_Package:
+					offset += 2;
+					break;
+				default:
+					return false; /* Not a class file we understand. */
+				}
+			}
+		} catch (ArrayIndexOutOfBoundsException e) {
+			/* Truncated class file. */
+		}
+		return false;
+	}
+
+	private static boolean regionMatches(byte[] b, int offset, byte[] s) {
+		for (int i = 0; i < s.length; i++) {
+			if (b[offset + i] != s[i])
+				return false;
+		}
+		return true;
+	}
+
+	private static int readUnsignedShort(byte[] b, int offset) {
+		return ((b[offset] & 0xFF) << 8) | (b[offset + 1] & 0xFF);
+	}
+
+	private static int readInt(byte[] b, int offset) {
+		return (readUnsignedShort(b, offset) << 16) | readUnsignedShort(b, offset + 2);
+	}
+
+	private static byte[] utf8(String s) {
+		try {
+			return s.getBytes("UTF-8");
+		} catch (java.io.UnsupportedEncodingException e) {
+			throw new AssertionError(e);
+		}
+	}
+
+	/*
+	 * Describe a class file.  Returns null for anonymous and local classes, and
+	 * for module and package descriptions.
+	 */
+	private static ClassInfo parse(byte[] b, String name) throws IOException {
+		try {
+			return new ClassFile(b).describe();
+		} catch (RuntimeException e) {
+			throw new IOException("Invalid class file: " + name, e);
+		}
+	}
+
+	/*
+	 * One class file being read.
+	 */
+	private static class ClassFile {
+		private final DataInputStream in;
+		private Object[] pool;
+
+		ClassFile(byte[] b) {
+			in = new DataInputStream(new ByteArrayInputStream(b));
+		}
+
+		ClassInfo describe() throws IOException {
+			if (in.readInt() != 0xCAFEBABE)
+				throw new IOException("Bad magic number");
+			in.readUnsignedShort(); /* minor version */
+			in.readUnsignedShort(); /* major version */
+			readConstantPool();
+
+			int access = in.readUnsignedShort();
+			String binaryName = className(in.readUnsignedShort());
+			int superIndex = in.readUnsignedShort();
+			if (binaryName.endsWith("module-info") || binaryName.endsWith("package-info"))
+				return null;
+
+			List<String> interfaces = new ArrayList<String>();
+			int interfaceCount = in.readUnsignedShort();
+			for (int i = 0; i < interfaceCount; i++)
+				interfaces.add(className(in.readUnsignedShort()));
+
+			List<MemberInfo> fields = new ArrayList<MemberInfo>();
+			int fieldCount = in.readUnsignedShort();
+			for (int i = 0; i < fieldCount; i++) {
+				MemberInfo field = readField();
+				if (field != null)
+					fields.add(field);
+			}
+
+			List<MemberInfo> constructors = new ArrayList<MemberInfo>();
+			List<MemberInfo> methods = new ArrayList<MemberInfo>();
+			int methodCount = in.readUnsignedShort();
+			for (int i = 0; i < methodCount; i++) {
+				MemberInfo method = readMethod();
+				if (method == null)
+					continue;
+				if (method.type == null)
+					constructors.add(method);
+				else
+					methods.add(method);
+			}
+
+			/* Class attributes: annotations and how this class is nested. */
+			List<AnnotationInfo> annotations = new ArrayList<AnnotationInfo>();
+			String simpleName = binaryName.substring(binaryName.lastIndexOf('.') + 1);
+			String containingClass = null;
+			int modifiers = access & CLASS_MODIFIERS;
+			int attributeCount = in.readUnsignedShort();
+			for (int i = 0; i < attributeCount; i++) {
+				String attribute = utf8(in.readUnsignedShort());
+				int length = in.readInt();
+				if (attribute.equals("RuntimeVisibleAnnotations") || attribute.equals("RuntimeInvisibleAnnotations")) {
+					readAnnotations(annotations);
+				} else if (attribute.equals("InnerClasses")) {
+					int count = in.readUnsignedShort();
+					for (int j = 0; j < count; j++) {
+						int inner = in.readUnsignedShort();
+						int outer = in.readUnsignedShort();
+						int innerName = in.readUnsignedShort();
+						int innerAccess = in.readUnsignedShort();
+						if (inner != 0 && className(inner).equals(binaryName)) {
+							if (outer == 0 || innerName == 0)
+								return null; /* Anonymous or local class. */
+							containingClass = className(outer);
+							simpleName = utf8(innerName);
+							modifiers = innerAccess & NESTED_MODIFIERS;
+						}
+					}
+				} else {
+					in.skipBytes(length);
+				}
+			}
+
+			String qualifiedName = binaryName;
+			if (containingClass != null)
+				qualifiedName = binaryName.substring(0, binaryName.length() - simpleName.length() - 1).replace('$', '.') + "." + simpleName;
+
+			ClassInfo info = new ClassInfo(binaryName, qualifiedName, simpleName, modifiers);
+			info.superclass = (superIndex == 0 ? null : className(superIndex));
+			info.containingClass = containingClass;
+			info.interfaces.addAll(interfaces);
+			info.annotations.addAll(annotations);
+			info.fields.addAll(fields);
+			info.methods.addAll(methods);
+
+			/*
+			 * Constructor descriptors carry parameters that the source doesn't:
+			 * the outer instance of an inner class, and the name and ordinal of
+			 * an enum constant.
+			 */
+			int hidden = 0;
+			if ((modifiers & DocModel.ENUM) != 0)
+				hidden = 2;
+			else if (containingClass != null && (modifiers & (Modifier.STATIC | Modifier.INTERFACE)) == 0)
+				hidden = 1;
+			for (MemberInfo constructor : constructors)
+				info.constructors.add(hidden == 0 ? constructor : dropParameters(constructor, hidden));
+			return info;
+		}
+
+		private MemberInfo dropParameters(MemberInfo constructor, int count) {
+			if (constructor.parameters.size() < count)
+				return constructor;
+			MemberInfo result = new MemberInfo(constructor.name, constructor.modifiers, constructor.type);
+			result.parameters.addAll(constructor.parameters.subList(count, constructor.parameters.size()));
+			result.annotations.addAll(constructor.annotations);
+			return result;
+		}
+
+		private void readConstantPool() throws IOException {
+			int count = in.readUnsignedShort();
+			pool = new Object[count];
+			for (int i = 1; i < count; i++) {
+				int tag = in.readUnsignedByte();
+				switch (tag) {
+				case CONSTANT_Utf8:
+					pool[i] = in.readUTF();
+					break;
+				case CONSTANT_Integer:
+					pool[i] = in.readInt();
+					break;
+				case CONSTANT_Float:
+					pool[i] = in.readFloat();
+					break;
+				case CONSTANT_Long:
+					pool[i++] = in.readLong();
+					break;
+				case CONSTANT_Double:
+					pool[i++] = in.readDouble();
+					break;
+				case CONSTANT_Class:
+				case CONSTANT_String:
+					/* Resolved through the Utf8 entry when used. */
+					pool[i] = new int[] { tag, in.readUnsignedShort() };
+					break;
+				case CONSTANT_MethodType:
+				case CONSTANT_Module:
+				case CONSTANT_Package:
+					in.readUnsignedShort();
+					break;
+				case CONSTANT_MethodHandle:
+					in.readUnsignedByte();
+					in.readUnsignedShort();
+					break;
+				case CONSTANT_Fieldref:
+				case CONSTANT_Methodref:
+				case CONSTANT_InterfaceMethodref:
+				case CONSTANT_NameAndType:
+				case CONSTANT_Dynamic:
+				case CONSTANT_InvokeDynamic:
+					in.readInt();
+					break;
+				default:
+					throw new IOException("Unknown constant pool tag " + tag);
+				}
+			}
+		}
+
+		private String utf8(int index) {
+			return (String)pool[index];
+		}
+
+		private String className(int index) {
+			return utf8(((int[])pool[index])[1]).replace('/', '.');
+		}
+
+		private Object constant(int index) {
+			Object value = pool[index];
+			if (value instanceof int[])
+				return utf8(((int[])value)[1]);
+			return value;
+		}
+
+		private MemberInfo readField() throws IOException {
+			int access = in.readUnsignedShort();
+			String name = utf8(in.readUnsignedShort());
+			String descriptor = utf8(in.readUnsignedShort());
+			MemberInfo field = new MemberInfo(name, access & FIELD_MODIFIERS, type(descriptor, new int[1]));
+
+			int attributeCount = in.readUnsignedShort();
+			for (int i = 0; i < attributeCount; i++) {
+				String attribute = utf8(in.readUnsignedShort());
+				int length = in.readInt();
+				if (attribute.equals("ConstantValue"))
+					field.constantValue = constantValue(constant(in.readUnsignedShort()), descriptor);
+				else if (attribute.equals("RuntimeVisibleAnnotations") || attribute.equals("RuntimeInvisibleAnnotations"))
+					readAnnotations(field.annotations);
+				else
+					in.skipBytes(length);
+			}
+			return ((access & ACC_SYNTHETIC) != 0 ? null : field);
+		}
+
+		/*
+		 * Boolean, char, byte and short constants are stored as ints.  (DocModel
+		 * presents field constants other than booleans as ints again.)
+		 */
+		private Object constantValue(Object value, String descriptor) {
+			if (!(value instanceof Integer))
+				return value;
+			int i = (Integer)value;
+			switch (descriptor.charAt(0)) {
+			case 'Z': return i != 0;
+			case 'C': return (char)i;
+			case 'B': return (byte)i;
+			case 'S': return (short)i;
+			default: return value;
+			}
+		}
+
+		private MemberInfo readMethod() throws IOException {
+			int access = in.readUnsignedShort();
+			String name = utf8(in.readUnsignedShort());
+			String descriptor = utf8(in.readUnsignedShort());
+
+			List<TypeInfo> parameters = new ArrayList<TypeInfo>();
+			int[] position = { 1 };
+			while (descriptor.charAt(position[0]) != ')')
+				parameters.add(type(descriptor, position));
+			position[0]++;
+			TypeInfo returnType = type(descriptor, position);
+
+			boolean constructor = name.equals("<init>");
+			MemberInfo method = new MemberInfo(name, access & METHOD_MODIFIERS, constructor ? null : returnType);
+			method.parameters.addAll(parameters);
+
+			int attributeCount = in.readUnsignedShort();
+			for (int i = 0; i < attributeCount; i++) {
+				String attribute = utf8(in.readUnsignedShort());
+				int length = in.readInt();
+				if (attribute.equals("RuntimeVisibleAnnotations") || attribute.equals("RuntimeInvisibleAnnotations"))
+					readAnnotations(method.annotations);
+				else
+					in.skipBytes(length);
+			}
+
+			if ((access & (ACC_SYNTHETIC | ACC_BRIDGE)) != 0 || name.equals("<clinit>"))
+				return null;
+			return method;
+		}
+
+		private void readAnnotations(List<AnnotationInfo> result) throws IOException {
+			int count = in.readUnsignedShort();
+			for (int i = 0; i < count; i++)
+				result.add(readAnnotation());
+		}
+
+		private AnnotationInfo readAnnotation() throws IOException {
+			AnnotationInfo info = new AnnotationInfo(type(utf8(in.readUnsignedShort()), new int[1]).name);
+			int count = in.readUnsignedShort();
+			for (int i = 0; i < count; i++) {
+				String name = utf8(in.readUnsignedShort());
+				info.values.put(name, readElementValue());
+			}
+			return info;
+		}
+
+		private Object readElementValue() throws IOException {
+			int tag = in.readUnsignedByte();
+			switch (tag) {
+			case 'B':
+			case 'C':
+			case 'S':
+			case 'Z':
+				return constantValue(constant(in.readUnsignedShort()), String.valueOf((char)tag));
+			case 'I':
+			case 'J':
+			case 'F':
+			case 'D':
+			case 's':
+				return constant(in.readUnsignedShort());
+			case 'e':
+				String type = type(utf8(in.readUnsignedShort()), new int[1]).name;
+				return new EnumConstant(type, utf8(in.readUnsignedShort()));
+			case 'c':
+				return type(utf8(in.readUnsignedShort()), new int[1]);
+			case '@':
+				return readAnnotation();
+			case '[':
+				Object[] values = new Object[in.readUnsignedShort()];
+				for (int i = 0; i < values.length; i++)
+					values[i] = readElementValue();
+				return values;
+			default:
+				throw new IOException("Unknown element value tag " + (char)tag);
+			}
+		}
+	}
+
+	/*
+	 * Read the type of a descriptor at position[0], and move past it.
+	 */
+	static TypeInfo type(String descriptor, int[] position) {
+		int i = position[0];
+		int dimensions = 0;
+		while (descriptor.charAt(i) == '[') {
+			dimensions++;
+			i++;
+		}
+
+		String name;
+		char c = descriptor.charAt(i++);
+		switch (c) {
+		case 'V': name = "void"; break;
+		case 'Z': name = "boolean"; break;
+		case 'B': name = "byte"; break;
+		case 'C': name = "char"; break;
+		case 'S': name = "short"; break;
+		case 'I': name = "int"; break;
+		case 'J': name = "long"; break;
+		case 'F': name = "float"; break;
+		case 'D': name = "double"; break;
+		case 'L':
+			int end = descriptor.indexOf(';', i);
+			name = descriptor.substring(i, end).replace('/', '.');
+			i = end + 1;
+			break;
+		default:
+			throw new IllegalArgumentException("Bad descriptor " + descriptor);
+		}
+
+		position[0] = i;
+		return new TypeInfo(name, dimensions);
+	}
+}
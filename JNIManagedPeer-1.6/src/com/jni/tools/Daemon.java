@@ -0,0 +1,448 @@
+/*
+ * Copyright 2014 Jesse Benson
+ *
+ * This code is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this work. If not, see http://www.gnu.org/licenses/.
+ */
+
+package com.jni.tools;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.sun.tools.javah.Util;
+
+/**
+ * A long running generator that serves command lines, so a build doesn't pay
+ * for starting a JVM (and loading javadoc) for every run, and the classes read
+ * from jars and the platform are kept between runs.
+ *
+ *	-daemon               Serve requests on stdin/stdout
+ *	-daemon -port <port>  Serve requests on a TCP port of the loopback address
+ *	-port <port> ...      Run the rest of the command line in the daemon
+ *
+ * Requests and responses are UTF-8 lines.  A request is "run", an "arg <arg>"
+ * line per argument and "end"; the response is the output of the run as
+ * "out <line>" and "err <line>" lines and then "exit <value>".  A "stop"
+ * request ends the daemon.  Backslashes, newlines and carriage returns in
+ * arguments and output are escaped as \\, \n and \r.
+ *
+ * On a TCP port any local user could connect, so the daemon writes a random
+ * token to a file only its user can read (.jnimanagedpeer-<port> in the home
+ * directory), and a connection must start with a "token <token>" line.  The
+ * client reads the token from the file, so only the daemon's user gets in.
+ *
+ * Requests run one at a time, since the options of a run are static.
+ */
+public class Daemon {
+
+	private static final String UTF8 = "UTF-8";
+	private static final String TOKEN_FILE = ".jnimanagedpeer-";
+	private static final boolean isWindows = System.getProperty("os.name").startsWith("Windows");
+
+	/* The streams of the process, which the daemon replaces to capture runs. */
+	private static final PrintStream stdout = System.out;
+	private static final PrintStream stderr = System.err;
+
+	public static void main(String[] args) {
+		/* A failed run must not end the daemon. */
+		Util.setExitOnError(false);
+
+		try {
+			if (args.length == 1) {
+				serve(System.in, stdout, null);
+			} else if (args.length == 3 && args[1].equals("-port")) {
+				ServerSocket server = new ServerSocket(port(args[2]), 0, InetAddress.getByName(null));
+				File tokenFile = tokenFile(server.getLocalPort());
+				try {
+					String token = writeToken(tokenFile);
+					if (Util.verbose)
+						Util.log("Listening on port " + server.getLocalPort());
+					boolean running = true;
+					while (running) {
+						Socket socket = server.accept();
+						try {
+							running = serve(socket.getInputStream(), socket.getOutputStream(), token);
+						} catch (IOException e) {
+							/* The client went away; wait for the next one. */
+						} finally {
+							socket.close();
+						}
+					}
+				} finally {
+					tokenFile.delete();
+					server.close();
+				}
+			} else {
+				Util.setExitOnError(true);
+				Util.usage(1);
+			}
+		} catch (IOException e) {
+			stderr.println("Error: " + e.getMessage());
+			System.exit(15);
+		}
+	}
+
+	/**
+	 * Forward a command line (-port <port> followed by the usual arguments) to
+	 * the daemon on that port and return its exit value.  If no daemon is
+	 * listening, the command runs in this process instead.
+	 */
+	public static int forward(String[] args) {
+		int port = port(args[1]);
+		String[] command = new String[args.length - 2];
+		System.arraycopy(args, 2, command, 0, command.length);
+
+		/* Without the token file of this user, no daemon of this user is listening. */
+		String token = readToken(tokenFile(port));
+		if (token == null) {
+			if (Util.verbose)
+				Util.log("No generator daemon on port " + port + ", generating in process.");
+			return Main.run(command);
+		}
+
+		Socket socket;
+		try {
+			socket = new Socket(InetAddress.getByName(null), port);
+		} catch (ConnectException e) {
+			if (Util.verbose)
+				Util.log("No generator daemon on port " + port + ", generating in process.");
+			return Main.run(command);
+		} catch (IOException e) {
+			Util.error("Cannot connect to the generator daemon on port %s.\n%s", String.valueOf(port), e.getMessage());
+			return 15; /* dead code. */
+		}
+
+		try {
+			try {
+				Writer out = new OutputStreamWriter(socket.getOutputStream(), UTF8);
+				out.write("token " + token + "\n");
+				out.write("run\n");
+				for (String arg : absolutize(command))
+					out.write("arg " + escape(arg) + "\n");
+				out.write("end\n");
+				out.flush();
+
+				BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), UTF8));
+				String line;
+				while ((line = in.readLine()) != null) {
+					if (line.startsWith("out "))
+						System.out.println(unescape(line.substring(4)));
+					else if (line.startsWith("err "))
+						System.err.println(unescape(line.substring(4)));
+					else if (line.startsWith("exit "))
+						return Integer.parseInt(line.substring(5));
+				}
+			} finally {
+				socket.close();
+			}
+		} catch (IOException e) {
+			/* Reported below. */
+		} catch (NumberFormatException e) {
+			/* Reported below. */
+		}
+		Util.error("Lost connection to the generator daemon on port %s.", String.valueOf(port));
+		return 15; /* dead code. */
+	}
+
+	private static int port(String value) {
+		int port;
+		try {
+			port = Integer.parseInt(value);
+		} catch (NumberFormatException e) {
+			port = -1;
+		}
+		if (port < 0 || port > 65535)
+			Util.error("Invalid port in -port commandline parameter: %s", value);
+		return port;
+	}
+
+	private static File tokenFile(int port) {
+		return new File(System.getProperty("user.home"), TOKEN_FILE + port);
+	}
+
+	/*
+	 * Write a new random token to a file that only the owner can read or write.
+	 * The permissions are set before the token is written.
+	 */
+	private static String writeToken(File file) throws IOException {
+		byte[] random = new byte[32];
+		new SecureRandom().nextBytes(random);
+		StringBuilder token = new StringBuilder(random.length * 2);
+		for (byte b : random)
+			token.append(String.format("%02x", b & 0xff));
+
+		file.delete();
+		if (!file.createNewFile())
+			throw new IOException("Cannot create token file " + file);
+		file.deleteOnExit();
+		/* Windows can't take read access away; there the home directory keeps the file private. */
+		boolean restricted = file.setReadable(false, false) && file.setWritable(false, false);
+		if (!(file.setReadable(true, true) && file.setWritable(true, true)) || !(restricted || isWindows))
+			throw new IOException("Cannot restrict the permissions of token file " + file);
+
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			out.write(token.toString().getBytes(UTF8));
+		} finally {
+			out.close();
+		}
+		return token.toString();
+	}
+
+	/*
+	 * The token of the daemon on a port, or null if there is no token file.
+	 */
+	private static String readToken(File file) {
+		if (!file.isFile())
+			return null;
+		try {
+			BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), UTF8));
+			try {
+				return in.readLine();
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			Util.error("Cannot read the generator daemon token file %s.\n%s", file.toString(), e.getMessage());
+			return null; /* dead code. */
+		}
+	}
+
+	/*
+	 * The daemon has its own working directory, so make the files of a command
+	 * line absolute.
+	 */
+	private static List<String> absolutize(String[] args) {
+		List<String> result = new ArrayList<String>(args.length + 2);
+		boolean classpath = false;
+		for (int i = 0; i < args.length; i++) {
+			String arg = args[i];
+			boolean hasValue = (i + 1 < args.length);
+			classpath |= arg.equals("-classpath");
+			if (hasValue && (arg.equals("-d") || arg.equals("-javad") || arg.equals("-typemap") || arg.equals("-batch"))) {
+				result.add(arg);
+				result.add(new File(args[++i]).getAbsolutePath());
+			} else if (hasValue && (arg.equals("-classpath") || arg.equals("-bootclasspath"))) {
+				result.add(arg);
+				result.add(absolutePath(args[++i]));
+			} else if (hasValue && (arg.equals("-pch") || arg.equals("-namespace") || arg.equals("-j") || arg.equals("-exceptions") || arg.equals("-registry"))) {
+				result.add(arg);
+				result.add(args[++i]);
+			} else if (arg.length() > 0 && arg.charAt(0) != '-' && new File(arg).exists()) {
+				/* A jar or directory of -classfiles. */
+				result.add(new File(arg).getAbsolutePath());
+			} else {
+				result.add(arg);
+			}
+		}
+
+		/* Without -classpath, classes are found where the client runs, not the daemon. */
+		if (!classpath) {
+			String path = System.getenv("CLASSPATH");
+			result.add(0, "-classpath");
+			result.add(1, absolutePath(path != null ? path : "."));
+		}
+		return result;
+	}
+
+	private static String absolutePath(String path) {
+		StringBuilder result = new StringBuilder();
+		for (String element : path.split(File.pathSeparator)) {
+			if (result.length() > 0)
+				result.append(File.pathSeparator);
+			if (element.length() > 0)
+				result.append(new File(element).getAbsolutePath());
+		}
+		return result.toString();
+	}
+
+	/*
+	 * Serve the requests of a connection.  Returns false once asked to stop.  A
+	 * connection with a token must first send it; any other connection is
+	 * closed without running anything.
+	 */
+	private static boolean serve(InputStream input, OutputStream output, String token) throws IOException {
+		BufferedReader in = new BufferedReader(new InputStreamReader(input, UTF8));
+		Writer out = new OutputStreamWriter(output, UTF8);
+		if (token != null) {
+			String line = in.readLine();
+			if (line == null || !line.startsWith("token ")
+					|| !MessageDigest.isEqual(line.substring(6).getBytes(UTF8), token.getBytes(UTF8))) {
+				out.write("err " + escape("Invalid token") + "\n");
+				out.write("exit 15\n");
+				out.flush();
+				return true;
+			}
+		}
+
+		List<String> args = new ArrayList<String>();
+		String line;
+		while ((line = in.readLine()) != null) {
+			if (line.equals("stop")) {
+				return false;
+			} else if (line.equals("run")) {
+				args.clear();
+			} else if (line.startsWith("arg ")) {
+				args.add(unescape(line.substring(4)));
+			} else if (line.equals("end")) {
+				int exitValue = execute(args.toArray(new String[args.size()]), out);
+				out.write("exit " + exitValue + "\n");
+				out.flush();
+			} else {
+				out.write("err " + escape("Unknown request: " + line) + "\n");
+				out.write("exit 15\n");
+				out.flush();
+			}
+		}
+		return true;
+	}
+
+	/* The client of the current run, which receives what the run prints. */
+	private static Writer client;
+
+	private static synchronized int execute(String[] args, Writer out) {
+		/*
+		 * javadoc keeps writers on the streams it first finds, so the streams are
+		 * replaced once and only their destination changes between runs.
+		 */
+		if (!(System.out instanceof RunStream)) {
+			System.setOut(new RunStream("out"));
+			System.setErr(new RunStream("err"));
+		}
+
+		setClient(out);
+		try {
+			return Main.run(args);
+		} catch (Util.Exit e) {
+			return e.exitValue;
+		} catch (RuntimeException e) {
+			/* A bug in one run must not end the daemon. */
+			e.printStackTrace();
+			return 15;
+		} finally {
+			System.out.flush();
+			System.err.flush();
+			setClient(null);
+			MainDoclet.reset();
+		}
+	}
+
+	private static void setClient(Writer out) {
+		synchronized (LineStream.class) {
+			client = out;
+		}
+	}
+
+	private static class RunStream extends PrintStream {
+		RunStream(String prefix) {
+			super(new LineStream(prefix), true);
+		}
+	}
+
+	/*
+	 * Sends what a run prints to its client a line at a time.  Between runs
+	 * stdout may be the channel of the requests, so anything printed goes to
+	 * stderr.
+	 */
+	private static class LineStream extends OutputStream {
+		private final String prefix;
+		private final ByteArrayOutputStream line = new ByteArrayOutputStream();
+
+		LineStream(String prefix) {
+			this.prefix = prefix;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			synchronized (LineStream.class) {
+				if (b == '\n') {
+					send();
+				} else {
+					line.write(b);
+				}
+			}
+		}
+
+		@Override
+		public void flush() throws IOException {
+			synchronized (LineStream.class) {
+				if (line.size() > 0)
+					send();
+				if (client != null)
+					client.flush();
+			}
+		}
+
+		private void send() throws IOException {
+			String s = line.toString();
+			line.reset();
+			if (s.endsWith("\r"))
+				s = s.substring(0, s.length() - 1);
+			if (client != null)
+				client.write(prefix + " " + escape(s) + "\n");
+			else
+				stderr.println(s);
+		}
+	}
+
+	private static String escape(String s) {
+		StringBuilder result = new StringBuilder(s.length());
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c == '\\')
+				result.append("\\\\");
+			else if (c == '\n')
+				result.append("\\n");
+			else if (c == '\r')
+				result.append("\\r");
+			else
+				result.append(c);
+		}
+		return result.toString();
+	}
+
+	private static String unescape(String s) {
+		StringBuilder result = new StringBuilder(s.length());
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c == '\\' && i + 1 < s.length()) {
+				c = s.charAt(++i);
+				if (c == 'n')
+					c = '\n';
+				else if (c == 'r')
+					c = '\r';
+			}
+			result.append(c);
+		}
+		return result.toString();
+	}
+}
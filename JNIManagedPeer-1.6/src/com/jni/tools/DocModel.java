@@ -0,0 +1,1370 @@
+/*
+ * Copyright 2014 Jesse Benson
+ *
+ * This code is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this work. If not, see http://www.gnu.org/licenses/.
+ */
+
+package com.jni.tools;
+
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.sun.javadoc.AnnotatedType;
+import com.sun.javadoc.AnnotationDesc;
+import com.sun.javadoc.AnnotationTypeDoc;
+import com.sun.javadoc.AnnotationTypeElementDoc;
+import com.sun.javadoc.AnnotationValue;
+import com.sun.javadoc.ClassDoc;
+import com.sun.javadoc.ConstructorDoc;
+import com.sun.javadoc.Doc;
+import com.sun.javadoc.ExecutableMemberDoc;
+import com.sun.javadoc.FieldDoc;
+import com.sun.javadoc.MemberDoc;
+import com.sun.javadoc.MethodDoc;
+import com.sun.javadoc.PackageDoc;
+import com.sun.javadoc.ParamTag;
+import com.sun.javadoc.Parameter;
+import com.sun.javadoc.ParameterizedType;
+import com.sun.javadoc.ProgramElementDoc;
+import com.sun.javadoc.RootDoc;
+import com.sun.javadoc.SeeTag;
+import com.sun.javadoc.SerialFieldTag;
+import com.sun.javadoc.SourcePosition;
+import com.sun.javadoc.Tag;
+import com.sun.javadoc.ThrowsTag;
+import com.sun.javadoc.Type;
+import com.sun.javadoc.TypeVariable;
+import com.sun.javadoc.WildcardType;
+
+/**
+ * Presents plain descriptions of classes through the doclet API that the
+ * generators are written against, so that front ends other than javadoc
+ * (javac annotation processing, class files) can drive the same generators.
+ *
+ * A front end describes classes as ClassInfo and supplies a Resolver for the
+ * classes they refer to.  Each part of the doclet API has an adapter class;
+ * what the generators don't use, such as comments and tags, throws
+ * UnsupportedOperationException.
+ * Classes look as javadoc presents them to a legacy doclet like MainDoclet:
+ * types are erased and variable arity methods take an array.
+ * Parameters whose names are not known are named arg0, arg1, ... as javadoc
+ * names them for classes read from class files.
+ */
+public class DocModel {
+
+	/*
+	 * A type: a primitive keyword or the binary name of a class, and the number
+	 * of array dimensions.
+	 */
+	public static final class TypeInfo {
+		public final String name;
+		public final int dimensions;
+
+		public TypeInfo(String name, int dimensions) {
+			this.name = name;
+			this.dimensions = dimensions;
+		}
+
+		public boolean isPrimitive() {
+			return primitives.contains(name);
+		}
+	}
+
+	/*
+	 * An enum constant used as an annotation value.
+	 */
+	public static final class EnumConstant {
+		public final String type;
+		public final String name;
+
+		public EnumConstant(String type, String name) {
+			this.type = type;
+			this.name = name;
+		}
+	}
+
+	/*
+	 * An annotation and the values given to its elements, in declaration order.
+	 * Values are Strings, boxed primitives, TypeInfo (class literals),
+	 * EnumConstant, AnnotationInfo or Object[] of those.
+	 */
+	public static final class AnnotationInfo {
+		public final String type;
+		public final Map<String, Object> values = new LinkedHashMap<String, Object>();
+
+		public AnnotationInfo(String type) {
+			this.type = type;
+		}
+	}
+
+	/*
+	 * A field, method or constructor.  The type is the field type or return type,
+	 * and null for constructors.
+	 */
+	public static final class MemberInfo {
+		public final String name;
+		public final int modifiers;
+		public final TypeInfo type;
+		public final List<TypeInfo> parameters = new ArrayList<TypeInfo>();
+		/* Parameter names, if known; otherwise they are argN. */
+		public final List<String> parameterNames = new ArrayList<String>();
+		public final List<AnnotationInfo> annotations = new ArrayList<AnnotationInfo>();
+		public Object constantValue;
+
+		public MemberInfo(String name, int modifiers, TypeInfo type) {
+			this.name = name;
+			this.modifiers = modifiers;
+			this.type = type;
+		}
+	}
+
+	/*
+	 * A class.  Class names are binary names (a.b.Outer$Inner); the qualified
+	 * name is the canonical one (a.b.Outer.Inner).
+	 */
+	public static final class ClassInfo {
+		public final String binaryName;
+		public final String qualifiedName;
+		public final String simpleName;
+		public final int modifiers;
+		public String superclass;
+		public String containingClass;
+		public final List<String> interfaces = new ArrayList<String>();
+		public final List<AnnotationInfo> annotations = new ArrayList<AnnotationInfo>();
+		public final List<MemberInfo> fields = new ArrayList<MemberInfo>();
+		public final List<MemberInfo> constructors = new ArrayList<MemberInfo>();
+		public final List<MemberInfo> methods = new ArrayList<MemberInfo>();
+
+		public ClassInfo(String binaryName, String qualifiedName, String simpleName, int modifiers) {
+			this.binaryName = binaryName;
+			this.qualifiedName = qualifiedName;
+			this.simpleName = simpleName;
+			this.modifiers = modifiers;
+		}
+
+		public boolean isInterface() {
+			return (modifiers & Modifier.INTERFACE) != 0;
+		}
+
+		public String packageName() {
+			int index = binaryName.lastIndexOf('.');
+			return (index < 0 ? "" : binaryName.substring(0, index));
+		}
+	}
+
+	/*
+	 * Looks up the classes that described classes refer to.
+	 */
+	public interface Resolver {
+		/**
+		 * Returns the named class (by binary name), or null if it cannot be found.
+		 */
+		ClassInfo resolve(String binaryName);
+	}
+
+	/*
+	 * Receives the messages the generators report through the root.
+	 */
+	public interface Reporter {
+		void error(String message);
+		void warning(String message);
+		void notice(String message);
+	}
+
+	/*
+	 * Modifier bits not defined by java.lang.reflect.Modifier in Java 6.  Class
+	 * modifiers may carry these and INTERFACE; member modifiers are the source
+	 * modifiers only.
+	 */
+	public static final int ANNOTATION = 0x2000;
+	public static final int ENUM = 0x4000;
+
+	private static final List<String> primitives = java.util.Arrays.asList(
+			"void", "boolean", "byte", "char", "short", "int", "long", "float", "double");
+
+	private final Resolver resolver;
+	private final Reporter reporter;
+
+	/* One adapter per class and type, so the documents keep their identity. */
+	private final Map<String, ClassDoc> classes = new HashMap<String, ClassDoc>();
+	private final Map<String, Type> types = new HashMap<String, Type>();
+
+	public DocModel(Resolver resolver, Reporter reporter) {
+		this.resolver = resolver;
+		this.reporter = reporter;
+	}
+
+	/**
+	 * Returns the root over the given classes.
+	 */
+	public RootDoc root(List<ClassInfo> infos) {
+		ClassDoc[] docs = new ClassDoc[infos.size()];
+		for (int i = 0; i < docs.length; i++)
+			docs[i] = classDoc(infos.get(i));
+		return new RootAdapter(docs);
+	}
+
+	/**
+	 * Returns the document of a described class.
+	 */
+	public synchronized ClassDoc classDoc(ClassInfo info) {
+		ClassDoc doc = classes.get(info.binaryName);
+		if (doc == null) {
+			doc = new ClassAdapter(info);
+			classes.put(info.binaryName, doc);
+		}
+		return doc;
+	}
+
+	/**
+	 * Returns the document of the class with the given binary name.  A class the
+	 * resolver cannot find is presented as an empty class, so its uses still map
+	 * to a plain object.
+	 */
+	public synchronized ClassDoc classDoc(String binaryName) {
+		ClassDoc doc = classes.get(binaryName);
+		if (doc == null) {
+			ClassInfo info = resolver.resolve(binaryName);
+			if (info == null) {
+				reporter.warning("Class not found: " + binaryName);
+				int index = binaryName.lastIndexOf('.');
+				info = new ClassInfo(binaryName, binaryName.replace('$', '.'), binaryName.substring(index + 1), Modifier.PUBLIC);
+				if (!binaryName.equals("java.lang.Object"))
+					info.superclass = "java.lang.Object";
+			}
+			doc = classDoc(info);
+			classes.put(binaryName, doc);
+		}
+		return doc;
+	}
+
+	/*
+	 * Look a class up by its canonical name, trying the binary names it may stand
+	 * for (a.b.Outer.Inner may be a.b.Outer$Inner).
+	 */
+	private synchronized ClassDoc classNamed(String name) {
+		String binaryName = name;
+		while (true) {
+			ClassDoc doc = classes.get(binaryName);
+			if (doc != null)
+				return doc;
+			ClassInfo info = resolver.resolve(binaryName);
+			if (info != null)
+				return classDoc(info);
+
+			int index = binaryName.lastIndexOf('.');
+			if (index < 0)
+				return null;
+			binaryName = binaryName.substring(0, index) + '$' + binaryName.substring(index + 1);
+		}
+	}
+
+	/**
+	 * Returns the document of a type.  Class types are their ClassDoc.
+	 */
+	public synchronized Type type(TypeInfo info) {
+		if (info.dimensions == 0 && !info.isPrimitive())
+			return classDoc(info.name);
+
+		String key = info.name + info.dimensions;
+		Type type = types.get(key);
+		if (type == null) {
+			type = new TypeAdapter(info);
+			types.put(key, type);
+		}
+		return type;
+	}
+
+	private static UnsupportedOperationException unsupported(String method) {
+		return new UnsupportedOperationException(method + "()");
+	}
+
+	/*
+	 * Primitive and array types.
+	 */
+	private class TypeAdapter implements Type {
+		private final TypeInfo info;
+
+		TypeAdapter(TypeInfo info) {
+			this.info = info;
+		}
+
+		private String name(boolean qualified) {
+			if (info.isPrimitive())
+				return info.name;
+			ClassDoc component = classDoc(info.name);
+			return (qualified ? component.qualifiedTypeName() : component.typeName());
+		}
+
+		public String typeName() {
+			return name(false);
+		}
+
+		public String qualifiedTypeName() {
+			return name(true);
+		}
+
+		public String simpleTypeName() {
+			return (info.isPrimitive() ? info.name : classDoc(info.name).simpleTypeName());
+		}
+
+		public String dimension() {
+			StringBuilder s = new StringBuilder();
+			for (int i = 0; i < info.dimensions; i++)
+				s.append("[]");
+			return s.toString();
+		}
+
+		@Override
+		public String toString() {
+			return name(true) + dimension();
+		}
+
+		public boolean isPrimitive() {
+			return info.dimensions == 0;
+		}
+
+		public ClassDoc asClassDoc() {
+			return (info.isPrimitive() ? null : classDoc(info.name));
+		}
+
+		public Type getElementType() {
+			return (info.dimensions == 0 ? null : type(new TypeInfo(info.name, info.dimensions - 1)));
+		}
+
+		/* Not a parameterized type, type variable, wildcard... */
+
+		public ParameterizedType asParameterizedType() {
+			return null;
+		}
+
+		public TypeVariable asTypeVariable() {
+			return null;
+		}
+
+		public WildcardType asWildcardType() {
+			return null;
+		}
+
+		public AnnotatedType asAnnotatedType() {
+			return null;
+		}
+
+		public AnnotationTypeDoc asAnnotationTypeDoc() {
+			return null;
+		}
+	}
+
+	/*
+	 * What every document has in common: no comments, and the kind of document
+	 * is none of them unless a subclass says so.
+	 */
+	private abstract class DocAdapter implements Doc {
+		public String commentText() {
+			return "";
+		}
+
+		public String getRawCommentText() {
+			return "";
+		}
+
+		public void setRawCommentText(String rawDocumentation) {
+			throw unsupported("Doc.setRawCommentText");
+		}
+
+		public Tag[] tags() {
+			throw unsupported("Doc.tags");
+		}
+
+		public Tag[] tags(String tagname) {
+			throw unsupported("Doc.tags");
+		}
+
+		public SeeTag[] seeTags() {
+			throw unsupported("Doc.seeTags");
+		}
+
+		public Tag[] inlineTags() {
+			throw unsupported("Doc.inlineTags");
+		}
+
+		public Tag[] firstSentenceTags() {
+			throw unsupported("Doc.firstSentenceTags");
+		}
+
+		public int compareTo(Object obj) {
+			return toString().compareTo(String.valueOf(obj));
+		}
+
+		public boolean isField() {
+			return false;
+		}
+
+		public boolean isEnumConstant() {
+			return false;
+		}
+
+		public boolean isConstructor() {
+			return false;
+		}
+
+		public boolean isMethod() {
+			return false;
+		}
+
+		public boolean isAnnotationTypeElement() {
+			return false;
+		}
+
+		public boolean isInterface() {
+			return false;
+		}
+
+		public boolean isException() {
+			throw unsupported("Doc.isException");
+		}
+
+		public boolean isError() {
+			throw unsupported("Doc.isError");
+		}
+
+		public boolean isEnum() {
+			return false;
+		}
+
+		public boolean isAnnotationType() {
+			return false;
+		}
+
+		public boolean isOrdinaryClass() {
+			return false;
+		}
+
+		public boolean isClass() {
+			return false;
+		}
+
+		public boolean isIncluded() {
+			return true;
+		}
+
+		public SourcePosition position() {
+			return null;
+		}
+	}
+
+	/*
+	 * What classes, fields, methods and constructors have in common.
+	 */
+	private abstract class ProgramElementAdapter extends DocAdapter implements ProgramElementDoc {
+		protected abstract int modifierBits();
+		protected abstract List<AnnotationInfo> annotationInfos();
+
+		public int modifierSpecifier() {
+			return modifierBits() & ~(Modifier.INTERFACE | ANNOTATION | ENUM);
+		}
+
+		public String modifiers() {
+			return Modifier.toString(modifierSpecifier());
+		}
+
+		public AnnotationDesc[] annotations() {
+			return DocModel.this.annotations(annotationInfos());
+		}
+
+		public boolean isPublic() {
+			return Modifier.isPublic(modifierBits());
+		}
+
+		public boolean isProtected() {
+			return Modifier.isProtected(modifierBits());
+		}
+
+		public boolean isPrivate() {
+			return Modifier.isPrivate(modifierBits());
+		}
+
+		public boolean isPackagePrivate() {
+			return (modifierBits() & (Modifier.PUBLIC | Modifier.PROTECTED | Modifier.PRIVATE)) == 0;
+		}
+
+		public boolean isStatic() {
+			return Modifier.isStatic(modifierBits());
+		}
+
+		public boolean isFinal() {
+			return Modifier.isFinal(modifierBits());
+		}
+
+		public boolean isAbstract() {
+			return Modifier.isAbstract(modifierBits());
+		}
+
+		public boolean isNative() {
+			return Modifier.isNative(modifierBits());
+		}
+
+		public boolean isSynchronized() {
+			return Modifier.isSynchronized(modifierBits());
+		}
+
+		public boolean isTransient() {
+			return Modifier.isTransient(modifierBits());
+		}
+
+		public boolean isVolatile() {
+			return Modifier.isVolatile(modifierBits());
+		}
+	}
+
+	private AnnotationDesc[] annotations(List<AnnotationInfo> infos) {
+		AnnotationDesc[] result = new AnnotationDesc[infos.size()];
+		for (int i = 0; i < result.length; i++)
+			result[i] = new AnnotationAdapter(infos.get(i));
+		return result;
+	}
+
+	private class ClassAdapter extends ProgramElementAdapter implements ClassDoc {
+		protected final ClassInfo info;
+		private FieldDoc[] fields;
+		private MethodDoc[] methods;
+		private ConstructorDoc[] constructors;
+
+		ClassAdapter(ClassInfo info) {
+			this.info = info;
+		}
+
+		protected int modifierBits() {
+			return info.modifiers;
+		}
+
+		protected List<AnnotationInfo> annotationInfos() {
+			return info.annotations;
+		}
+
+		public String name() {
+			return typeName();
+		}
+
+		public String typeName() {
+			String packageName = info.packageName();
+			return (packageName.length() == 0 ? info.qualifiedName : info.qualifiedName.substring(packageName.length() + 1));
+		}
+
+		public String qualifiedName() {
+			return info.qualifiedName;
+		}
+
+		public String qualifiedTypeName() {
+			return info.qualifiedName;
+		}
+
+		@Override
+		public String toString() {
+			return info.qualifiedName;
+		}
+
+		public String simpleTypeName() {
+			return info.simpleName;
+		}
+
+		public String dimension() {
+			return "";
+		}
+
+		public boolean isPrimitive() {
+			return false;
+		}
+
+		public ClassDoc asClassDoc() {
+			return this;
+		}
+
+		public AnnotationTypeDoc asAnnotationTypeDoc() {
+			return null;
+		}
+
+		public ParameterizedType asParameterizedType() {
+			return null;
+		}
+
+		public TypeVariable asTypeVariable() {
+			return null;
+		}
+
+		public WildcardType asWildcardType() {
+			return null;
+		}
+
+		public AnnotatedType asAnnotatedType() {
+			return null;
+		}
+
+		public Type getElementType() {
+			return null;
+		}
+
+		@Override
+		public boolean isInterface() {
+			return info.isInterface() && (info.modifiers & ANNOTATION) == 0;
+		}
+
+		@Override
+		public boolean isAnnotationType() {
+			return (info.modifiers & ANNOTATION) != 0;
+		}
+
+		@Override
+		public boolean isEnum() {
+			return (info.modifiers & ENUM) != 0;
+		}
+
+		@Override
+		public boolean isClass() {
+			return !info.isInterface();
+		}
+
+		@Override
+		public boolean isOrdinaryClass() {
+			return !info.isInterface() && (info.modifiers & ENUM) == 0;
+		}
+
+		public ClassDoc containingClass() {
+			return (info.containingClass == null ? null : classDoc(info.containingClass));
+		}
+
+		public PackageDoc containingPackage() {
+			return new PackageAdapter(info.packageName());
+		}
+
+		public ClassDoc superclass() {
+			return (info.superclass == null || info.isInterface() ? null : classDoc(info.superclass));
+		}
+
+		public Type superclassType() {
+			return superclass();
+		}
+
+		public boolean subclassOf(ClassDoc cd) {
+			if (info.isInterface())
+				return cd.qualifiedName().equals("java.lang.Object");
+			for (ClassDoc c = this; c != null; c = c.superclass()) {
+				if (c.qualifiedName().equals(cd.qualifiedName()))
+					return true;
+			}
+			return false;
+		}
+
+		public ClassDoc[] interfaces() {
+			ClassDoc[] result = new ClassDoc[info.interfaces.size()];
+			for (int i = 0; i < result.length; i++)
+				result[i] = classDoc(info.interfaces.get(i));
+			return result;
+		}
+
+		public Type[] interfaceTypes() {
+			ClassDoc[] interfaces = interfaces();
+			Type[] result = new Type[interfaces.length];
+			System.arraycopy(interfaces, 0, result, 0, interfaces.length);
+			return result;
+		}
+
+		public TypeVariable[] typeParameters() {
+			return new TypeVariable[0];
+		}
+
+		public ParamTag[] typeParamTags() {
+			throw unsupported("ClassDoc.typeParamTags");
+		}
+
+		/* Every member is included, so the filter makes no difference. */
+
+		public synchronized FieldDoc[] fields() {
+			if (fields == null) {
+				fields = new FieldDoc[info.fields.size()];
+				for (int i = 0; i < fields.length; i++)
+					fields[i] = new FieldAdapter(this, info.fields.get(i));
+			}
+			return fields.clone();
+		}
+
+		public FieldDoc[] fields(boolean filter) {
+			return fields();
+		}
+
+		public synchronized MethodDoc[] methods() {
+			if (methods == null) {
+				methods = new MethodDoc[info.methods.size()];
+				for (int i = 0; i < methods.length; i++)
+					methods[i] = new MethodAdapter(this, info.methods.get(i));
+			}
+			return methods.clone();
+		}
+
+		public MethodDoc[] methods(boolean filter) {
+			return methods();
+		}
+
+		public synchronized ConstructorDoc[] constructors() {
+			if (constructors == null) {
+				constructors = new ConstructorDoc[info.constructors.size()];
+				for (int i = 0; i < constructors.length; i++)
+					constructors[i] = new ConstructorAdapter(this, info.constructors.get(i));
+			}
+			return constructors.clone();
+		}
+
+		public ConstructorDoc[] constructors(boolean filter) {
+			return constructors();
+		}
+
+		public ClassDoc findClass(String className) {
+			return classNamed(className);
+		}
+
+		public FieldDoc[] enumConstants() {
+			throw unsupported("ClassDoc.enumConstants");
+		}
+
+		public ClassDoc[] innerClasses() {
+			throw unsupported("ClassDoc.innerClasses");
+		}
+
+		public ClassDoc[] innerClasses(boolean filter) {
+			throw unsupported("ClassDoc.innerClasses");
+		}
+
+		public ClassDoc[] importedClasses() {
+			throw unsupported("ClassDoc.importedClasses");
+		}
+
+		public PackageDoc[] importedPackages() {
+			throw unsupported("ClassDoc.importedPackages");
+		}
+
+		public boolean isSerializable() {
+			throw unsupported("ClassDoc.isSerializable");
+		}
+
+		public boolean isExternalizable() {
+			throw unsupported("ClassDoc.isExternalizable");
+		}
+
+		public MethodDoc[] serializationMethods() {
+			throw unsupported("ClassDoc.serializationMethods");
+		}
+
+		public FieldDoc[] serializableFields() {
+			throw unsupported("ClassDoc.serializableFields");
+		}
+
+		public boolean definesSerializableFields() {
+			throw unsupported("ClassDoc.definesSerializableFields");
+		}
+	}
+
+	/*
+	 * Fields, methods and constructors.
+	 */
+	private abstract class MemberAdapter extends ProgramElementAdapter implements MemberDoc {
+		protected final ClassDoc owner;
+		protected final MemberInfo info;
+
+		MemberAdapter(ClassDoc owner, MemberInfo info) {
+			this.owner = owner;
+			this.info = info;
+		}
+
+		protected int modifierBits() {
+			return info.modifiers;
+		}
+
+		protected List<AnnotationInfo> annotationInfos() {
+			return info.annotations;
+		}
+
+		public String name() {
+			return info.name;
+		}
+
+		public String qualifiedName() {
+			return owner.qualifiedName() + "." + name();
+		}
+
+		@Override
+		public String toString() {
+			return qualifiedName();
+		}
+
+		public ClassDoc containingClass() {
+			return owner;
+		}
+
+		public PackageDoc containingPackage() {
+			return owner.containingPackage();
+		}
+
+		public boolean isSynthetic() {
+			return false;
+		}
+	}
+
+	private class FieldAdapter extends MemberAdapter implements FieldDoc {
+		FieldAdapter(ClassDoc owner, MemberInfo info) {
+			super(owner, info);
+		}
+
+		public Type type() {
+			return DocModel.this.type(info.type);
+		}
+
+		@Override
+		public boolean isField() {
+			return true;
+		}
+
+		/*
+		 * Like javadoc, present char, byte and short constants as Integers (as
+		 * the class file holds them); only booleans get their own type.
+		 */
+		public Object constantValue() {
+			Object value = info.constantValue;
+			if (value instanceof Character)
+				return (int)(Character)value;
+			if (value instanceof Byte || value instanceof Short)
+				return ((Number)value).intValue();
+			return value;
+		}
+
+		public String constantValueExpression() {
+			return (info.constantValue == null ? null : constantExpression(constantValue()));
+		}
+
+		public SerialFieldTag[] serialFieldTags() {
+			throw unsupported("FieldDoc.serialFieldTags");
+		}
+	}
+
+	/*
+	 * Methods and constructors.
+	 */
+	private abstract class ExecutableAdapter extends MemberAdapter implements ExecutableMemberDoc {
+		private Parameter[] parameters;
+
+		ExecutableAdapter(ClassDoc owner, MemberInfo info) {
+			super(owner, info);
+		}
+
+		private String signature(boolean qualified) {
+			StringBuilder s = new StringBuilder("(");
+			for (int i = 0; i < info.parameters.size(); i++) {
+				Type type = type(info.parameters.get(i));
+				if (i > 0)
+					s.append(", ");
+				s.append(qualified ? type.qualifiedTypeName() : type.typeName());
+				s.append(type.dimension());
+			}
+			return s.append(')').toString();
+		}
+
+		public String signature() {
+			return signature(true);
+		}
+
+		public String flatSignature() {
+			return signature(false);
+		}
+
+		@Override
+		public String toString() {
+			return qualifiedName() + signature(true);
+		}
+
+		public synchronized Parameter[] parameters() {
+			if (parameters == null) {
+				parameters = new Parameter[info.parameters.size()];
+				for (int i = 0; i < parameters.length; i++)
+					parameters[i] = new ParameterAdapter(parameterName(i), info.parameters.get(i));
+			}
+			return parameters.clone();
+		}
+
+		private String parameterName(int i) {
+			return (info.parameterNames.size() == info.parameters.size() ? info.parameterNames.get(i) : "arg" + i);
+		}
+
+		public boolean isVarArgs() {
+			return false;
+		}
+
+		public ClassDoc[] thrownExceptions() {
+			return new ClassDoc[0];
+		}
+
+		public Type[] thrownExceptionTypes() {
+			return new Type[0];
+		}
+
+		public TypeVariable[] typeParameters() {
+			return new TypeVariable[0];
+		}
+
+		public Type receiverType() {
+			throw unsupported("ExecutableMemberDoc.receiverType");
+		}
+
+		public ThrowsTag[] throwsTags() {
+			throw unsupported("ExecutableMemberDoc.throwsTags");
+		}
+
+		public ParamTag[] paramTags() {
+			throw unsupported("ExecutableMemberDoc.paramTags");
+		}
+
+		public ParamTag[] typeParamTags() {
+			throw unsupported("ExecutableMemberDoc.typeParamTags");
+		}
+	}
+
+	private class MethodAdapter extends ExecutableAdapter implements MethodDoc {
+		MethodAdapter(ClassDoc owner, MemberInfo info) {
+			super(owner, info);
+		}
+
+		public Type returnType() {
+			return type(info.type);
+		}
+
+		@Override
+		public boolean isMethod() {
+			return true;
+		}
+
+		public boolean isDefault() {
+			return false;
+		}
+
+		public ClassDoc overriddenClass() {
+			throw unsupported("MethodDoc.overriddenClass");
+		}
+
+		public Type overriddenType() {
+			throw unsupported("MethodDoc.overriddenType");
+		}
+
+		public MethodDoc overriddenMethod() {
+			throw unsupported("MethodDoc.overriddenMethod");
+		}
+
+		public boolean overrides(MethodDoc meth) {
+			throw unsupported("MethodDoc.overrides");
+		}
+	}
+
+	private class ConstructorAdapter extends ExecutableAdapter implements ConstructorDoc {
+		ConstructorAdapter(ClassDoc owner, MemberInfo info) {
+			super(owner, info);
+		}
+
+		/* Constructors are named after their class. */
+		@Override
+		public String name() {
+			return owner.simpleTypeName();
+		}
+
+		@Override
+		public boolean isConstructor() {
+			return true;
+		}
+	}
+
+	private class ParameterAdapter implements Parameter {
+		private final String name;
+		private final TypeInfo info;
+
+		ParameterAdapter(String name, TypeInfo info) {
+			this.name = name;
+			this.info = info;
+		}
+
+		public String name() {
+			return name;
+		}
+
+		public Type type() {
+			return DocModel.this.type(info);
+		}
+
+		public String typeName() {
+			return type().typeName() + type().dimension();
+		}
+
+		@Override
+		public String toString() {
+			return typeName() + " " + name;
+		}
+
+		public AnnotationDesc[] annotations() {
+			return new AnnotationDesc[0];
+		}
+	}
+
+	private class PackageAdapter extends DocAdapter implements PackageDoc {
+		private final String name;
+
+		PackageAdapter(String name) {
+			this.name = name;
+		}
+
+		public String name() {
+			return name;
+		}
+
+		@Override
+		public String toString() {
+			return name;
+		}
+
+		public ClassDoc[] allClasses(boolean filter) {
+			throw unsupported("PackageDoc.allClasses");
+		}
+
+		public ClassDoc[] allClasses() {
+			throw unsupported("PackageDoc.allClasses");
+		}
+
+		public ClassDoc[] ordinaryClasses() {
+			throw unsupported("PackageDoc.ordinaryClasses");
+		}
+
+		public ClassDoc[] exceptions() {
+			throw unsupported("PackageDoc.exceptions");
+		}
+
+		public ClassDoc[] errors() {
+			throw unsupported("PackageDoc.errors");
+		}
+
+		public ClassDoc[] enums() {
+			throw unsupported("PackageDoc.enums");
+		}
+
+		public ClassDoc[] interfaces() {
+			throw unsupported("PackageDoc.interfaces");
+		}
+
+		public AnnotationTypeDoc[] annotationTypes() {
+			throw unsupported("PackageDoc.annotationTypes");
+		}
+
+		public AnnotationDesc[] annotations() {
+			throw unsupported("PackageDoc.annotations");
+		}
+
+		public ClassDoc findClass(String className) {
+			throw unsupported("PackageDoc.findClass");
+		}
+	}
+
+	/*
+	 * Annotations, their types, elements and values.  Annotation types are
+	 * presented by name only; they need not be resolvable.
+	 */
+	private class AnnotationAdapter implements AnnotationDesc {
+		private final AnnotationInfo info;
+
+		AnnotationAdapter(AnnotationInfo info) {
+			this.info = info;
+		}
+
+		public AnnotationTypeDoc annotationType() {
+			return new AnnotationTypeAdapter(info);
+		}
+
+		public ElementValuePair[] elementValues() {
+			List<ElementValuePair> pairs = new ArrayList<ElementValuePair>();
+			for (Map.Entry<String, Object> value : info.values.entrySet())
+				pairs.add(new ElementValueAdapter(info, value.getKey(), value.getValue()));
+			return pairs.toArray(new ElementValuePair[pairs.size()]);
+		}
+
+		public boolean isSynthesized() {
+			return false;
+		}
+
+		@Override
+		public String toString() {
+			return "@" + info.type.replace('$', '.');
+		}
+	}
+
+	/*
+	 * An annotation type as a class of its own name, whose elements are those
+	 * given values.
+	 */
+	private class AnnotationTypeAdapter extends ClassAdapter implements AnnotationTypeDoc {
+		private final AnnotationInfo annotation;
+
+		AnnotationTypeAdapter(AnnotationInfo annotation) {
+			super(annotationClass(annotation.type));
+			this.annotation = annotation;
+		}
+
+		@Override
+		public AnnotationTypeDoc asAnnotationTypeDoc() {
+			return this;
+		}
+
+		public AnnotationTypeElementDoc[] elements() {
+			List<AnnotationTypeElementDoc> elements = new ArrayList<AnnotationTypeElementDoc>();
+			for (String element : annotation.values.keySet())
+				elements.add(new AnnotationElementAdapter(this, element));
+			return elements.toArray(new AnnotationTypeElementDoc[elements.size()]);
+		}
+	}
+
+	private static ClassInfo annotationClass(String binaryName) {
+		String qualifiedName = binaryName.replace('$', '.');
+		return new ClassInfo(binaryName, qualifiedName, qualifiedName.substring(qualifiedName.lastIndexOf('.') + 1),
+				Modifier.PUBLIC | Modifier.INTERFACE | Modifier.ABSTRACT | ANNOTATION);
+	}
+
+	/*
+	 * An element of an annotation type, by name only: its type and default are
+	 * not described.
+	 */
+	private class AnnotationElementAdapter extends MethodAdapter implements AnnotationTypeElementDoc {
+		AnnotationElementAdapter(ClassDoc owner, String name) {
+			super(owner, new MemberInfo(name, Modifier.PUBLIC | Modifier.ABSTRACT, null));
+		}
+
+		@Override
+		public Type returnType() {
+			throw unsupported("AnnotationTypeElementDoc.returnType");
+		}
+
+		@Override
+		public boolean isAnnotationTypeElement() {
+			return true;
+		}
+
+		@Override
+		public String toString() {
+			return qualifiedName();
+		}
+
+		public AnnotationValue defaultValue() {
+			throw unsupported("AnnotationTypeElementDoc.defaultValue");
+		}
+	}
+
+	private class ElementValueAdapter implements AnnotationDesc.ElementValuePair {
+		private final AnnotationInfo annotation;
+		private final String name;
+		private final Object value;
+
+		ElementValueAdapter(AnnotationInfo annotation, String name, Object value) {
+			this.annotation = annotation;
+			this.name = name;
+			this.value = value;
+		}
+
+		public AnnotationTypeElementDoc element() {
+			return new AnnotationElementAdapter(new AnnotationTypeAdapter(annotation), name);
+		}
+
+		public AnnotationValue value() {
+			return new AnnotationValueAdapter(value);
+		}
+
+		@Override
+		public String toString() {
+			return name + "=" + valueString(value);
+		}
+	}
+
+	private class AnnotationValueAdapter implements AnnotationValue {
+		private final Object value;
+
+		AnnotationValueAdapter(Object value) {
+			this.value = value;
+		}
+
+		/*
+		 * The value as javadoc presents it: types as Type, enum constants as
+		 * FieldDoc.
+		 */
+		public Object value() {
+			if (value instanceof TypeInfo)
+				return type((TypeInfo)value);
+			if (value instanceof EnumConstant) {
+				EnumConstant constant = (EnumConstant)value;
+				MemberInfo field = new MemberInfo(constant.name, Modifier.PUBLIC | Modifier.STATIC | Modifier.FINAL | ENUM, new TypeInfo(constant.type, 0));
+				return new FieldAdapter(classDoc(constant.type), field);
+			}
+			if (value instanceof AnnotationInfo)
+				return new AnnotationAdapter((AnnotationInfo)value);
+			if (value instanceof Object[]) {
+				Object[] values = (Object[])value;
+				AnnotationValue[] result = new AnnotationValue[values.length];
+				for (int i = 0; i < values.length; i++)
+					result[i] = new AnnotationValueAdapter(values[i]);
+				return result;
+			}
+			return value;
+		}
+
+		@Override
+		public String toString() {
+			return valueString(value);
+		}
+	}
+
+	/*
+	 * The value as it would be written in source.
+	 */
+	private static String valueString(Object value) {
+		if (value instanceof TypeInfo) {
+			TypeInfo type = (TypeInfo)value;
+			StringBuilder s = new StringBuilder(type.name.replace('$', '.'));
+			for (int i = 0; i < type.dimensions; i++)
+				s.append("[]");
+			return s.append(".class").toString();
+		}
+		if (value instanceof EnumConstant)
+			return ((EnumConstant)value).type.replace('$', '.') + "." + ((EnumConstant)value).name;
+		if (value instanceof AnnotationInfo) {
+			AnnotationInfo annotation = (AnnotationInfo)value;
+			StringBuilder s = new StringBuilder("@").append(annotation.type.replace('$', '.')).append('(');
+			for (Map.Entry<String, Object> entry : annotation.values.entrySet()) {
+				if (s.charAt(s.length() - 1) != '(')
+					s.append(", ");
+				s.append(entry.getKey()).append('=').append(valueString(entry.getValue()));
+			}
+			return s.append(')').toString();
+		}
+		if (value instanceof Object[]) {
+			StringBuilder s = new StringBuilder("{");
+			for (Object element : (Object[])value) {
+				if (s.length() > 1)
+					s.append(", ");
+				s.append(valueString(element));
+			}
+			return s.append('}').toString();
+		}
+		return constantExpression(value);
+	}
+
+	/*
+	 * A constant as a Java literal.
+	 */
+	private static String constantExpression(Object value) {
+		if (value instanceof String) {
+			StringBuilder s = new StringBuilder("\"");
+			for (char ch : ((String)value).toCharArray())
+				s.append(escape(ch, '"'));
+			return s.append('"').toString();
+		}
+		if (value instanceof Character)
+			return "'" + escape((Character)value, '\'') + "'";
+		if (value instanceof Long)
+			return value + "L";
+		if (value instanceof Float)
+			return value + "f";
+		return String.valueOf(value);
+	}
+
+	private static String escape(char ch, char quote) {
+		if (ch == quote || ch == '\\')
+			return "\\" + ch;
+		if (ch == '\n')
+			return "\\n";
+		if (ch == '\r')
+			return "\\r";
+		if (ch == '\t')
+			return "\\t";
+		if (ch < 32 || ch > 126)
+			return String.format("\\u%04x", (int)ch);
+		return String.valueOf(ch);
+	}
+
+	private class RootAdapter extends DocAdapter implements RootDoc {
+		private final ClassDoc[] docs;
+
+		RootAdapter(ClassDoc[] docs) {
+			this.docs = docs;
+		}
+
+		public String name() {
+			return "";
+		}
+
+		@Override
+		public String toString() {
+			return "";
+		}
+
+		public ClassDoc[] classes() {
+			return docs.clone();
+		}
+
+		public ClassDoc[] specifiedClasses() {
+			return docs.clone();
+		}
+
+		public ClassDoc classNamed(String qualifiedName) {
+			return DocModel.this.classNamed(qualifiedName);
+		}
+
+		public String[][] options() {
+			return new String[0][];
+		}
+
+		public PackageDoc[] specifiedPackages() {
+			return new PackageDoc[0];
+		}
+
+		public PackageDoc packageNamed(String name) {
+			throw unsupported("RootDoc.packageNamed");
+		}
+
+		public void printError(String msg) {
+			reporter.error(msg);
+		}
+
+		public void printError(SourcePosition pos, String msg) {
+			reporter.error(msg);
+		}
+
+		public void printWarning(String msg) {
+			reporter.warning(msg);
+		}
+
+		public void printWarning(SourcePosition pos, String msg) {
+			reporter.warning(msg);
+		}
+
+		public void printNotice(String msg) {
+			reporter.notice(msg);
+		}
+
+		public void printNotice(SourcePosition pos, String msg) {
+			reporter.notice(msg);
+		}
+	}
+}
@@ -0,0 +1,199 @@
+/*
+ * Copyright 2014 Jesse Benson
+ *
+ * This code is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this work. If not, see http://www.gnu.org/licenses/.
+ */
+
+package com.jni.tools;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.AnnotationValue;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.ArrayType;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.lang.model.util.Elements;
+import javax.lang.model.util.Types;
+
+import com.jni.tools.DocModel.AnnotationInfo;
+import com.jni.tools.DocModel.ClassInfo;
+import com.jni.tools.DocModel.EnumConstant;
+import com.jni.tools.DocModel.MemberInfo;
+import com.jni.tools.DocModel.TypeInfo;
+
+/**
+ * Describes javax.lang.model elements for the DocModel, so the generators can
+ * run on the classes javac is compiling.  Generic types are described by their
+ * erasure.
+ */
+public class ElementReader implements DocModel.Resolver {
+
+	private final Elements elements;
+	private final Types types;
+
+	public ElementReader(Elements elements, Types types) {
+		this.elements = elements;
+		this.types = types;
+	}
+
+	public ClassInfo resolve(String binaryName) {
+		/* Elements looks classes up by canonical name. */
+		TypeElement element = elements.getTypeElement(binaryName.replace('$', '.'));
+		return (element == null ? null : describe(element));
+	}
+
+	public ClassInfo describe(TypeElement element) {
+		int modifiers = modifiers(element.getModifiers());
+		ElementKind kind = element.getKind();
+		if (kind == ElementKind.INTERFACE)
+			modifiers |= java.lang.reflect.Modifier.INTERFACE | java.lang.reflect.Modifier.ABSTRACT;
+		else if (kind == ElementKind.ANNOTATION_TYPE)
+			modifiers |= java.lang.reflect.Modifier.INTERFACE | java.lang.reflect.Modifier.ABSTRACT | DocModel.ANNOTATION;
+		else if (kind == ElementKind.ENUM)
+			modifiers |= DocModel.ENUM;
+
+		ClassInfo info = new ClassInfo(binaryName(element), element.getQualifiedName().toString(),
+				element.getSimpleName().toString(), modifiers);
+
+		if (element.getSuperclass().getKind() == TypeKind.DECLARED)
+			info.superclass = binaryName(element.getSuperclass());
+		for (TypeMirror iface : element.getInterfaces())
+			info.interfaces.add(binaryName(iface));
+		if (element.getEnclosingElement() instanceof TypeElement)
+			info.containingClass = binaryName((TypeElement)element.getEnclosingElement());
+		annotations(element, info.annotations);
+
+		List<? extends Element> members = element.getEnclosedElements();
+		for (VariableElement field : ElementFilter.fieldsIn(members)) {
+			MemberInfo member = new MemberInfo(field.getSimpleName().toString(), modifiers(field.getModifiers()), type(field.asType()));
+			member.constantValue = field.getConstantValue();
+			annotations(field, member.annotations);
+			info.fields.add(member);
+		}
+		for (ExecutableElement constructor : ElementFilter.constructorsIn(members))
+			info.constructors.add(describe(constructor, null));
+		for (ExecutableElement method : ElementFilter.methodsIn(members))
+			info.methods.add(describe(method, type(method.getReturnType())));
+
+		return info;
+	}
+
+	private MemberInfo describe(ExecutableElement executable, TypeInfo returnType) {
+		MemberInfo member = new MemberInfo(executable.getSimpleName().toString(), modifiers(executable.getModifiers()), returnType);
+		for (VariableElement param : executable.getParameters()) {
+			member.parameters.add(type(param.asType()));
+			member.parameterNames.add(param.getSimpleName().toString());
+		}
+		annotations(executable, member.annotations);
+		return member;
+	}
+
+	private String binaryName(TypeElement element) {
+		return elements.getBinaryName(element).toString();
+	}
+
+	private String binaryName(TypeMirror type) {
+		return binaryName((TypeElement)((DeclaredType)type).asElement());
+	}
+
+	private TypeInfo type(TypeMirror type) {
+		int dimensions = 0;
+		type = types.erasure(type);
+		while (type.getKind() == TypeKind.ARRAY) {
+			dimensions++;
+			type = types.erasure(((ArrayType)type).getComponentType());
+		}
+
+		switch (type.getKind()) {
+		case DECLARED:
+			return new TypeInfo(binaryName(type), dimensions);
+		case VOID:
+		case BOOLEAN:
+		case BYTE:
+		case CHAR:
+		case SHORT:
+		case INT:
+		case LONG:
+		case FLOAT:
+		case DOUBLE:
+			return new TypeInfo(type.getKind().name().toLowerCase(), dimensions);
+		default:
+			/* Unresolved types: the name is all there is. */
+			return new TypeInfo(type.toString(), dimensions);
+		}
+	}
+
+	private static int modifiers(Set<Modifier> modifiers) {
+		int result = 0;
+		for (Modifier modifier : modifiers) {
+			switch (modifier) {
+			case PUBLIC: result |= java.lang.reflect.Modifier.PUBLIC; break;
+			case PROTECTED: result |= java.lang.reflect.Modifier.PROTECTED; break;
+			case PRIVATE: result |= java.lang.reflect.Modifier.PRIVATE; break;
+			case ABSTRACT: result |= java.lang.reflect.Modifier.ABSTRACT; break;
+			case STATIC: result |= java.lang.reflect.Modifier.STATIC; break;
+			case FINAL: result |= java.lang.reflect.Modifier.FINAL; break;
+			case TRANSIENT: result |= java.lang.reflect.Modifier.TRANSIENT; break;
+			case VOLATILE: result |= java.lang.reflect.Modifier.VOLATILE; break;
+			case SYNCHRONIZED: result |= java.lang.reflect.Modifier.SYNCHRONIZED; break;
+			case NATIVE: result |= java.lang.reflect.Modifier.NATIVE; break;
+			case STRICTFP: result |= java.lang.reflect.Modifier.STRICT; break;
+			default: break;
+			}
+		}
+		return result;
+	}
+
+	private void annotations(Element element, List<AnnotationInfo> result) {
+		for (AnnotationMirror mirror : element.getAnnotationMirrors())
+			result.add(annotation(mirror));
+	}
+
+	private AnnotationInfo annotation(AnnotationMirror mirror) {
+		AnnotationInfo info = new AnnotationInfo(binaryName(mirror.getAnnotationType()));
+		for (Map.Entry<? extends ExecutableElement, ? extends AnnotationValue> entry : mirror.getElementValues().entrySet())
+			info.values.put(entry.getKey().getSimpleName().toString(), value(entry.getValue().getValue()));
+		return info;
+	}
+
+	private Object value(Object value) {
+		if (value instanceof TypeMirror)
+			return type((TypeMirror)value);
+		if (value instanceof VariableElement) {
+			VariableElement constant = (VariableElement)value;
+			return new EnumConstant(binaryName((TypeElement)constant.getEnclosingElement()), constant.getSimpleName().toString());
+		}
+		if (value instanceof AnnotationMirror)
+			return annotation((AnnotationMirror)value);
+		if (value instanceof List) {
+			List<?> values = (List<?>)value;
+			Object[] result = new Object[values.size()];
+			for (int i = 0; i < result.length; i++)
+				result[i] = value(((AnnotationValue)values.get(i)).getValue());
+			return result;
+		}
+		return value;
+	}
+}
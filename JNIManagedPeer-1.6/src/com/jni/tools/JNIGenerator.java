@@ -17,15 +17,33 @@
 
 package com.jni.tools;
 
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
 
 import com.jni.annotation.JNIClass;
+import com.jni.annotation.JNIConstructor;
+import com.jni.annotation.JNIField;
 import com.jni.annotation.JNIMethod;
 import com.sun.javadoc.AnnotationDesc;
 import com.sun.javadoc.AnnotationTypeDoc;
-import com.sun.javadoc.AnnotationTypeElementDoc;
 import com.sun.javadoc.ClassDoc;
+import com.sun.javadoc.ConstructorDoc;
+import com.sun.javadoc.ExecutableMemberDoc;
+import com.sun.javadoc.FieldDoc;
 import com.sun.javadoc.MethodDoc;
 import com.sun.javadoc.Parameter;
 import com.sun.javadoc.ProgramElementDoc;
@@ -33,13 +51,143 @@ import com.sun.javadoc.RootDoc;
 import com.sun.javadoc.Type;
 import com.sun.tools.javah.Gen;
 import com.sun.tools.javah.Mangle;
-import com.sun.tools.javah.TypeSignature;
 import com.sun.tools.javah.Util;
 
 public class JNIGenerator extends Gen {
 
+	/*
+	 * Revision of the generated code.  Bump this whenever the output changes, so
+	 * incremental runs replace peers generated by an older version.
+	 */
+	private static final int REVISION = 11;
+
+	/*
+	 * Mapping of Java types to JNI and C++ types, resolved once per type.
+	 */
+	protected final JNITypeRegistry typeRegistry;
+
+	/*
+	 * Resolve the class and method IDs of each peer up front in Initialize(),
+	 * instead of in function-local statics on first use.
+	 */
+	protected boolean eager = false;
+
+	/*
+	 * Name of the registry that initializes all the peers, or null.  Implies eager.
+	 */
+	protected String registry;
+
+	/*
+	 * Pass the arguments of calls in arrays of jvalue, to Call<X>MethodA,
+	 * instead of as varargs.
+	 */
+	protected boolean jvalues = false;
+
+	/*
+	 * What the methods of peers do when the Java method throws, unless their
+	 * class or method says otherwise: NONE, THROW or RESULT.
+	 */
+	protected String exceptions = "NONE";
+
+	/*
+	 * Name of the ID of the packer method of a snapshot, in the IDs of a peer.
+	 */
+	private static final String PACKER_ID = "Snapshot_packer";
+
+	/*
+	 * Name of the generated Java companion class of the packer, in the IDs of
+	 * a peer.
+	 */
+	private static final String PACKER_CLASS_ID = "packerClazz";
+
+	/*
+	 * Name of the method of the generated packer.
+	 */
+	private static final String PACK_METHOD = "pack";
+
+	/*
+	 * Name of the Java companion class of the batched methods, in the IDs of a
+	 * peer.
+	 */
+	private static final String BATCH_CLASS_ID = "batchClazz";
+
+	/*
+	 * The header of the array and buffer views, written next to the peers that
+	 * use them.
+	 */
+	static final String SUPPORT_HEADER = "JNIManagedPeerSupport.h";
+
 	public JNIGenerator(RootDoc root) {
 		super(root);
+		this.typeRegistry = new JNITypeRegistry(root);
+	}
+
+	/**
+	 * A generator that shares the resolved types of another generator of the
+	 * same root, such as one for another output directory.
+	 */
+	public JNIGenerator(JNIGenerator other) {
+		super(other.root, other.typeSignature);
+		this.typeRegistry = other.typeRegistry;
+	}
+
+	public JNITypeRegistry getTypeRegistry() {
+		return typeRegistry;
+	}
+
+	public void setEager(boolean state) {
+		eager = state;
+	}
+
+	public void setJValues(boolean state) {
+		jvalues = state;
+	}
+
+	public void setExceptions(String policy) {
+		exceptions = policy;
+	}
+
+	/**
+	 * Returns the exception policy named on a command line (none, throw or
+	 * result), or null if there is no such policy.
+	 */
+	public static String parseExceptionPolicy(String name) {
+		for (JNIMethod.ExceptionPolicy policy : JNIMethod.ExceptionPolicy.values()) {
+			if (policy != JNIMethod.ExceptionPolicy.DEFAULT && policy.name().equalsIgnoreCase(name))
+				return policy.name();
+		}
+		return null;
+	}
+
+	public void setRegistry(String registry) {
+		this.registry = registry;
+		if (registry != null)
+			eager = true;
+	}
+
+	@Override
+	protected String getGeneratorVersion() {
+		return "JNIGenerator " + REVISION;
+	}
+
+	@Override
+	protected void describeOptions(StringBuilder s) {
+		super.describeOptions(s);
+		s.append("eager ").append(eager).append('\n');
+		s.append("registry ").append(registry).append('\n');
+		s.append("jvalues ").append(jvalues).append('\n');
+		s.append("exceptions ").append(exceptions).append('\n');
+		typeRegistry.describe(s);
+	}
+
+	/*
+	 * A parameter of a class type is a jthrowable or a jclass depending on the
+	 * superclasses of that class, which change without the class using it.
+	 */
+	@Override
+	protected void describe(StringBuilder s, Type type) {
+		super.describe(s, type);
+		s.append(" as ").append(jniTypeOf(type).cppType);
 	}
 
 	@Override
@@ -53,12 +201,82 @@ public class JNIGenerator extends Gen {
 		return super.baseFileName(clazz) + "ManagedPeer";
 	}
 	
+	@Override
+	protected void prepare(ClassDoc clazz) throws ClassNotFoundException {
+		super.prepare(clazz);
+
+		/* Type mapping and signatures look up further classes through the root. */
+		for (MethodDoc method : clazz.methods()) {
+			if (getAnnotation(method, JNIMethod.class) != null) {
+				jniType(method.returnType());
+				for (Parameter param : method.parameters())
+					jniType(param.type());
+				typeSignature.getTypeSignature(method);
+				getArrayMode(method);
+				isStrings(method);
+				getExceptionPolicy(method);
+			}
+		}
+		for (FieldDoc field : getFieldIDs(clazz).keySet()) {
+			jniType(field.type());
+			typeSignature.getTypeSignature(field.type());
+		}
+		for (MethodDoc method : getNatives(clazz).keySet()) {
+			jniType(method.returnType());
+			for (Parameter param : method.parameters())
+				jniType(param.type());
+			typeSignature.getTypeSignature(method);
+		}
+		for (ConstructorDoc constructor : getConstructorIDs(clazz).keySet()) {
+			for (Parameter param : constructor.parameters())
+				jniType(param.type());
+			typeSignature.getTypeSignature(constructor);
+		}
+		for (MethodDoc method : getBatchMethods(clazz).keySet())
+			getBatchSignature(method);
+
+		getPacker(clazz);
+	}
+
 	@Override
 	public void writeDeclaration(OutputStream o, ClassDoc clazz) {
 		try {
+			checkSnapshot(clazz);
+			checkNatives(clazz);
+			checkConstructors(clazz);
+			checkBatch(clazz);
+
 			String cname = baseFileName(clazz);
 			PrintWriter pw = wrapWriter(o);
 
+			/* Headers of the custom mapped types the methods and fields use */
+			Set<String> includes = new TreeSet<String>();
+			for (MethodDoc method : clazz.methods()) {
+				if (getAnnotation(method, JNIMethod.class) != null) {
+					addInclude(includes, method.returnType());
+					for (Parameter param : method.parameters())
+						addInclude(includes, param.type());
+				}
+			}
+			Map<FieldDoc, String> fieldIDs = getFieldIDs(clazz);
+			for (FieldDoc field : fieldIDs.keySet())
+				addInclude(includes, field.type());
+			Map<ConstructorDoc, String> constructorIDs = getConstructorIDs(clazz);
+			for (ConstructorDoc constructor : constructorIDs.keySet()) {
+				for (Parameter param : constructor.parameters())
+					addInclude(includes, param.type());
+			}
+			if (usesSupport(clazz))
+				includes.add(SUPPORT_HEADER);
+			includes.remove(cname + ".h");
+			Map<FieldDoc, String> constants = getConstants(clazz);
+			if (needsLimits(constants))
+				pw.println("#include <limits>");
+			for (String include : includes)
+				pw.println("#include \"" + include + "\"");
+			if (!includes.isEmpty() || needsLimits(constants))
+				pw.println();
+
 			/* Get the desired namespace for this peer class */
 			String[] namespace = getNamespace(clazz);
 			pw.println(cppNamespaceBegin(namespace));
@@ -76,6 +294,64 @@ public class JNIGenerator extends Gen {
 			pw.println();
 			pw.println("\t" + "static jclass GetClass();");
 			pw.println();
+			Map<MethodDoc, String> batchMethods = getBatchMethods(clazz);
+			if (!batchMethods.isEmpty()) {
+				pw.println("\t" + "/* The Java companion class of the batched methods, " + getBatchClassName(clazz) + ". */");
+				pw.println("\t" + "static jclass GetBatchClass();");
+				pw.println();
+			}
+			if (!constants.isEmpty()) {
+				pw.println("\t" + "/* The compile-time constants of the class. */");
+				for (Map.Entry<FieldDoc, String> entry : constants.entrySet())
+					pw.println("\t" + "static constexpr " + getConstantType(entry.getKey()) + " " + entry.getValue() + " = " + getConstantLiteral(entry.getKey()) + ";");
+				pw.println();
+			}
+			if (isLocalRefs(clazz)) {
+				pw.println("\t" + "/* Deletes the local references made in its scope, such as an iteration of a loop. */");
+				pw.println("\t" + "typedef ::JNI::LocalFrame LocalFrame;");
+				pw.println();
+			}
+			if (isEnv(clazz)) {
+				pw.println("\t" + "/* Looks the JNIEnv up once, for the overloads taking a JNIEnv*. */");
+				pw.println("\t" + "typedef ::JNI::EnvScope EnvScope;");
+				pw.println();
+			}
+			if (eager) {
+				pw.println("\t" + "/* Resolve the class and method IDs; call once before using the peer. */");
+				pw.println("\t" + "static bool Initialize(JNIEnv* env);");
+				pw.println("\t" + "static void Uninitialize(JNIEnv* env);");
+				pw.println();
+			}
+
+			/* The native methods of the class, to be defined in C++ */
+			Map<MethodDoc, String> natives = getNatives(clazz);
+			if (!natives.isEmpty()) {
+				pw.println("\t" + "/* The native methods of the class, defined in C++ and bound by RegisterNatives(). */");
+				pw.println("\t" + "struct Natives");
+				pw.println("\t" + "{");
+				for (Map.Entry<MethodDoc, String> entry : natives.entrySet())
+					pw.println("\t\t" + "static " + getNativeDeclaration(entry.getKey(), entry.getValue()) + ";");
+				pw.println("\t" + "};");
+				pw.println();
+				if (eager)
+					pw.println("\t" + "/* Called by Initialize(). */");
+				pw.println("\t" + "static bool RegisterNatives(JNIEnv* env);");
+				pw.println();
+			}
+
+			/* Write factories for constructors marked with the JNIConstructor annotation. */
+			if (!constructorIDs.isEmpty()) {
+				pw.println("\t" + "/* Create objects of the class; NewArray() stores count of them in an array. */");
+				for (ConstructorDoc constructor : constructorIDs.keySet()) {
+					String env = getEnvName(constructor);
+					String[] arrayNames = getArrayNames(constructor);
+					writeDeclaration(pw, "static " + withPolicy(constructor, cname), "New", getConstructorSignature(constructor, false),
+							getParameterNames(constructor), "", env);
+					writeDeclaration(pw, "static " + withPolicy(constructor, "jsize"), "NewArray", getConstructorSignature(constructor, true),
+							arrayNames[0] + ", " + arrayNames[1] + (constructor.parameters().length > 0 ? ", " + getParameterNames(constructor) : ""), "", env);
+				}
+				pw.println();
+			}
 
 			/* Write declarations for methods marked with the JNIMethod annotation. */
 			MethodDoc[] classmethods = clazz.methods();
@@ -86,10 +362,92 @@ public class JNIGenerator extends Gen {
 					String returnType = getReturnType(method);
 					String methodName = getMethodName(method);
 					String qualifiers = (isStatic(method) ? "" : " const");
-					String argumentSignature = getArgumentsSignature(method, /*includeTypes:*/ true);
+					String env = getEnvName(method);
 					
-					pw.println("\t" + modifiers + returnType + " " + methodName + "(" + argumentSignature + ")" + qualifiers + ";");
+					for (boolean raw : getArrayForms(method)) {
+						String argumentSignature = getArgumentsSignature(method, /*includeTypes:*/ true, raw);
+						writeDeclaration(pw, modifiers + returnType, methodName, argumentSignature, getParameterNames(method), qualifiers, env);
+						for (String buffer : getBufferTypes(method))
+							writeDeclaration(pw, modifiers + withPolicy(method, "jsize"), methodName, getBufferSignature(method, argumentSignature, buffer),
+									getBufferSignature(method, getParameterNames(method), null), qualifiers, env);
+					}
+					if (batchMethods.containsKey(method)) {
+						String results = (isVoid(method) ? "" : ", " + getResultsName(method));
+						writeDeclaration(pw, modifiers + withPolicy(method, getBatchValueType(method)), methodName + "Batch", getBatchArgumentsSignature(method),
+								getParameterNames(method) + results, qualifiers, env);
+					}
+				}
+			}
+
+			/* Write accessors for fields marked with the JNIField annotation. */
+			if (!fieldIDs.isEmpty())
+				pw.println();
+			for (FieldDoc field : fieldIDs.keySet()) {
+				String modifiers = (field.isStatic() ? "static " : "");
+				String qualifiers = (field.isStatic() ? "" : " const");
+				JNIType type = jniTypeOf(field.type());
+				String env = (isEnv(clazz) ? "env" : null);
+
+				writeDeclaration(pw, modifiers + getResultType(clazz, type), "get_" + getFieldName(field), "", "", qualifiers, env);
+				if (!field.isFinal())
+					writeDeclaration(pw, modifiers + "void", "set_" + getFieldName(field), type.parameter("value"), "value", qualifiers, env);
+			}
+
+			/* A struct of the fields, copied in and out at once */
+			List<FieldDoc> snapshotFields = getSnapshotFields(clazz);
+			if (!snapshotFields.isEmpty()) {
+				pw.println();
+				if (hasPacker(clazz)) {
+					/* The layout the packer must return, so a hand-written one can be checked */
+					String packer = (isPack(clazz) ? getPackerClassName(clazz) + "." + PACK_METHOD : getPackerName(clazz));
+					List<FieldDoc> packedFields = getPackedFields(clazz);
+					StringBuilder layout = new StringBuilder(getLayoutLiteral(clazz, "L"));
+					for (FieldDoc field : packedFields)
+						layout.append(", ").append(field.name());
+					pw.println("\t" + "/*");
+					pw.println("\t" + " * Snapshot() reads the fields with one call of " + packer + "(), which returns");
+					pw.println("\t" + " * { " + layout + " }.  Another layout is read field by field.");
+					if (packedFields.size() < snapshotFields.size())
+						pw.println("\t" + " * The fields that can't be packed are always read one by one.");
+					pw.println("\t" + " */");
+				} else {
+					pw.println("\t" + "/* Snapshot() reads the fields at once; object fields are local references. */");
 				}
+				pw.println("\t" + "struct Fields");
+				pw.println("\t" + "{");
+				for (FieldDoc field : snapshotFields)
+					pw.println("\t\t" + snapshotType(field) + " " + getFieldName(field) + ";");
+				pw.println("\t" + "};");
+				pw.println();
+				String env = (isEnv(clazz) ? "env" : null);
+				writeDeclaration(pw, "Fields", "Snapshot", "", "", " const", env);
+				if (hasWritableField(snapshotFields))
+					writeDeclaration(pw, "void", "WriteBack", "const Fields& fields", "fields", " const", env);
+			}
+
+			if (eager) {
+				/* The IDs, resolved by Initialize() */
+				pw.println();
+				pw.println("private:");
+				pw.println("\t" + "struct IDs");
+				pw.println("\t" + "{");
+				pw.println("\t\t" + "jclass clazz;");
+				if (!batchMethods.isEmpty())
+					pw.println("\t\t" + "jclass " + BATCH_CLASS_ID + ";");
+				if (hasPackerClass(clazz))
+					pw.println("\t\t" + "jclass " + PACKER_CLASS_ID + ";");
+				for (String id : constructorIDs.values())
+					pw.println("\t\t" + "jmethodID " + id + ";");
+				for (String id : getMethodIDs(clazz).values())
+					pw.println("\t\t" + "jmethodID " + id + ";");
+				for (String id : fieldIDs.values())
+					pw.println("\t\t" + "jfieldID " + id + ";");
+				if (hasPacker(clazz))
+					pw.println("\t\t" + "jmethodID " + PACKER_ID + ";");
+				for (String id : batchMethods.values())
+					pw.println("\t\t" + "jmethodID " + id + "_batch;");
+				pw.println("\t" + "};");
+				pw.println("\t" + "static IDs ids;");
 			}
 
 			pw.println("};");
@@ -107,7 +465,17 @@ public class JNIGenerator extends Gen {
 		try {
 			String cname = baseFileName(clazz);
 			PrintWriter pw = wrapWriter(o);
-			TypeSignature typeSignature = new TypeSignature(root);
+
+			/* Unpacking floating point fields copies their bits */
+			if (hasPacker(clazz)) {
+				for (FieldDoc field : getPackedFields(clazz)) {
+					if (isFloatingPoint(field)) {
+						pw.println("#include <cstring>");
+						pw.println();
+						break;
+					}
+				}
+			}
 
 			/* Get the desired namespace for this peer class */
 			String[] namespace = getNamespace(clazz);
@@ -133,57 +501,74 @@ public class JNIGenerator extends Gen {
 			pw.println("}");
 			pw.println();
 
-			/* static GetClass method - uses a static "ref counted" JClass variable to read the Java class once */
-			pw.println("jclass " + cname + "::GetClass()");
-			pw.println("{");
-			pw.println("\t" + "static ::JNI::JClass clazz(\"" + typeSignature.getTypeSignature(clazz) + "\");");
-			pw.println("\t" + "return clazz;");
-			pw.println("}");
-			pw.println();
+			/* Definitions of the constants, for uses that need their address before C++17 */
+			Map<FieldDoc, String> constants = getConstants(clazz);
+			if (!constants.isEmpty()) {
+				pw.println("#if __cplusplus < 201703L");
+				for (Map.Entry<FieldDoc, String> entry : constants.entrySet())
+					pw.println("constexpr " + getConstantType(entry.getKey()) + " " + cname + "::" + entry.getValue() + ";");
+				pw.println("#endif");
+				pw.println();
+			}
+
+			Map<MethodDoc, String> methodIDs = getMethodIDs(clazz);
+			Map<FieldDoc, String> fieldIDs = getFieldIDs(clazz);
+			if (eager) {
+				writeIDs(pw, clazz, methodIDs, fieldIDs);
+			} else {
+				/* static GetClass method - uses a static "ref counted" JClass variable to read the Java class once */
+				pw.println("jclass " + cname + "::GetClass()");
+				pw.println("{");
+				pw.println("\t" + "static ::JNI::JClass clazz(\"" + typeSignature.getTypeSignature(clazz) + "\");");
+				pw.println("\t" + "return clazz;");
+				pw.println("}");
+				pw.println();
+			}
+
+			Map<MethodDoc, String> batchMethods = getBatchMethods(clazz);
+			if (!batchMethods.isEmpty()) {
+				pw.println("jclass " + cname + "::GetBatchClass()");
+				pw.println("{");
+				if (eager) {
+					pw.println("\t" + "return ids." + BATCH_CLASS_ID + ";");
+				} else {
+					pw.println("\t" + "static ::JNI::JClass clazz(\"" + getBatchClassSignature(clazz) + "\");");
+					pw.println("\t" + "return clazz;");
+				}
+				pw.println("}");
+				pw.println();
+			}
+
+			/* The table of the native methods of the class */
+			Map<MethodDoc, String> natives = getNatives(clazz);
+			if (!natives.isEmpty())
+				writeRegisterNatives(pw, clazz, natives);
+
+			/* Write factories for constructors marked with the JNIConstructor annotation. */
+			for (Map.Entry<ConstructorDoc, String> entry : getConstructorIDs(clazz).entrySet()) {
+				writeConstructor(pw, clazz, entry.getKey(), entry.getValue(), /*bulk:*/ false);
+				writeConstructor(pw, clazz, entry.getKey(), entry.getValue(), /*bulk:*/ true);
+			}
 
 			/* Write definitions for methods marked with the JNIMethod annotation. */
-			MethodDoc[] classmethods = clazz.methods();
-			for (MethodDoc method : classmethods) {
-				AnnotationTypeDoc jniMethod = getAnnotation(method, JNIMethod.class);
-				if (jniMethod != null) {
-					String returnType = getReturnType(method);
-					String methodName = getMethodName(method);
-					String qualifiers = (isStatic(method) ? "" : " const");
-					String argumentSignature = getArgumentsSignature(method, /*includeTypes:*/ true);
-
-					String methodSimpleName = method.name();
-					String methodSignature = typeSignature.getTypeSignature(method.signature(), method.returnType());
-
-					/* Method signature */
-					pw.println(returnType + " " + cname + "::" + methodName + "(" + argumentSignature + ")" + qualifiers);
-					pw.println("{");
-
-					/* Static variable to compute the jmethodID once on first use */
-					pw.println("\t" + "static jmethodID methodID(Env().Get" + (isStatic(method) ? "Static" : "") + "MethodID(GetClass(), \"" + methodSimpleName + "\", \"" + methodSignature + "\"));");
-
-					/* Generate the code to call the Java method. */
-					pw.print("\t");
-					pw.print(getCallSignature(method));
-					pw.print("(");
-
-					/* If the method is not static, we need a Java instance to invoke */
-					if (isStatic(method))
-						pw.print("GetClass(), ");
-					else
-						pw.print("Object(), ");
-					pw.print("methodID");
-
-					/* If the method has parameters, we need to forward the parameters */
-					String arguments = getArgumentsSignature(method, /*includeTypes:*/ false);
-					if (arguments != null && !arguments.isEmpty())
-						pw.print(", " + arguments);
-					pw.println(");");
-
-					pw.println("}");
-					pw.println();
+			for (Map.Entry<MethodDoc, String> entry : methodIDs.entrySet()) {
+				for (boolean raw : getArrayForms(entry.getKey())) {
+					writeMethod(pw, clazz, entry.getKey(), entry.getValue(), /*buffer:*/ null, raw);
+					for (String buffer : getBufferTypes(entry.getKey()))
+						writeMethod(pw, clazz, entry.getKey(), entry.getValue(), buffer, raw);
 				}
+				if (batchMethods.containsKey(entry.getKey()))
+					writeBatchMethod(pw, clazz, entry.getKey(), entry.getValue());
 			}
 
+			/* Write accessors for fields marked with the JNIField annotation. */
+			for (Map.Entry<FieldDoc, String> entry : fieldIDs.entrySet())
+				writeFieldAccessors(pw, clazz, entry.getKey(), entry.getValue());
+
+			/* Write Snapshot() and WriteBack() for the struct of the fields. */
+			if (!getSnapshotFields(clazz).isEmpty())
+				writeSnapshot(pw, clazz, fieldIDs);
+
 			/* Close the namespace */
 			pw.println(cppNamespaceEnd(namespace));
 		} catch (ClassNotFoundException e) {
@@ -191,15 +576,1551 @@ public class JNIGenerator extends Gen {
 		}
 	}
 
+	/*
+	 * A method of the peer, calling the Java method with its cached method ID.
+	 * Spans and strings passed as views are turned into Java arrays and strings
+	 * first.  A buffer overload (of the element type given) copies the result
+	 * into the buffer of the caller and returns its length.  The raw overload
+	 * takes the Java arrays of the spans as they are.  With the THROW or RESULT
+	 * policy the method checks for a Java exception after the call.
+	 */
+	private void writeMethod(PrintWriter pw, ClassDoc clazz, MethodDoc method, String id, String buffer, boolean raw) {
+		String cname = baseFileName(clazz);
+		String policy = getExceptionPolicy(method);
+		String valueType = (buffer != null ? "jsize" : getValueType(method));
+		String returnType = withPolicy(method, valueType);
+		String qualifiers = (isStatic(method) ? "" : " const");
+		String argumentSignature = getArgumentsSignature(method, /*includeTypes:*/ true, raw);
+		if (buffer != null)
+			argumentSignature = getBufferSignature(method, argumentSignature, buffer);
+		String env = getEnvName(method);
+		if (env != null)
+			argumentSignature = withEnv(argumentSignature, env);
+		String methodID = "methodID";
+
+		/* Method signature */
+		pw.println(returnType + " " + cname + "::" + getMethodName(method) + "(" + argumentSignature + ")" + qualifiers);
+		pw.println("{");
+
+		if (eager) {
+			/* Resolved by Initialize() */
+			methodID = "ids." + id;
+		} else {
+			/* Static variable to compute the jmethodID once on first use */
+			pw.println("\t" + "static jmethodID methodID(" + callOn(env) + "Get" + (isStatic(method) ? "Static" : "") + "MethodID(GetClass(), \"" + method.name() + "\", \"" + typeSignature.getTypeSignature(method) + "\"));");
+		}
+
+		/* Java arrays and strings for the views, deleted when the method returns */
+		for (Parameter param : method.parameters()) {
+			String argument = (raw && isArrayView(method, param) ? null : getViewArgumentType(method, param.type()));
+			if (argument != null) {
+				String name = getViewArgumentName(method, param);
+				pw.println("\t" + argument + " " + name + "(" + envOf(env) + ", " + param.name() + ");");
+				pw.println("\t" + "if (!" + name + ".ok())");
+				if (policy.equals("THROW"))
+					pw.println("\t\t" + "throw ::JNI::JavaException();");
+				else
+					pw.println("\t\t" + "return" + (returnType.equals("void") ? "" : " " + returnType + "()") + ";");
+			}
+		}
+
+		/* The arguments in an array of jvalue, for Call<X>MethodA */
+		Parameter[] params = method.parameters();
+		String values = null;
+		if (jvalues && params.length > 0) {
+			Set<String> names = new HashSet<String>();
+			for (Parameter param : params)
+				names.add(param.name());
+			values = uniqueName("args", names);
+			pw.println("\t" + "jvalue " + values + "[" + params.length + "];");
+			for (int i = 0; i < params.length; i++)
+				pw.println("\t" + values + "[" + i + "]." + jvalueMember(params[i].type()) + " = " + getArgument(method, params[i], raw) + ";");
+		}
+
+		/* Generate the code to call the Java method. */
+		StringBuilder call = new StringBuilder(getCallSignature(method, jniTypeOf(method.returnType()).callSuffix, env));
+		if (values != null)
+			call.append("A");
+		call.append("(");
+
+		/* If the method is not static, we need a Java instance to invoke */
+		String clazzRef = (eager ? "ids.clazz" : "GetClass()");
+		if (isStatic(method))
+			call.append(clazzRef + ", ");
+		else if (isNonvirtual(method))
+			call.append("Object(), " + clazzRef + ", ");
+		else
+			call.append("Object(), ");
+		call.append(methodID);
+
+		/* If the method has parameters, we need to forward the parameters */
+		String arguments = getArgumentsSignature(method, /*includeTypes:*/ false, raw);
+		if (values != null)
+			call.append(", " + values);
+		else if (arguments != null && !arguments.isEmpty())
+			call.append(", " + arguments);
+		call.append(")");
+
+		if (valueType.equals("void")) {
+			pw.println("\t" + call + ";");
+			if (policy.equals("THROW")) {
+				pw.println("\t" + "if (" + callOn(env) + "ExceptionCheck())");
+				pw.println("\t\t" + "throw ::JNI::JavaException();");
+			} else if (policy.equals("RESULT")) {
+				pw.println("\t" + "return " + returnType + "(" + callOn(env) + "ExceptionCheck());");
+			}
+		} else if (policy.equals("NONE")) {
+			pw.println("\t" + "return " + getValue(method, call.toString(), buffer, env) + ";");
+		} else {
+			/* The JNI result is checked before it is converted, which may call JNI (or pin an array). */
+			Set<String> names = new HashSet<String>();
+			for (Parameter param : params)
+				names.add(param.name());
+			String result = uniqueName("result", names);
+			JNIType type = jniTypeOf(method.returnType());
+			pw.println("\t" + (type.callSuffix.equals("Object") ? "jobject" : type.cppType) + " " + result + " = " + call + ";");
+			pw.println("\t" + "if (" + callOn(env) + "ExceptionCheck())");
+			if (policy.equals("THROW")) {
+				pw.println("\t\t" + "throw ::JNI::JavaException();");
+				pw.println("\t" + "return " + getValue(method, result, buffer, env) + ";");
+			} else {
+				pw.println("\t\t" + "return " + returnType + "();");
+				pw.println("\t" + "return " + returnType + "(" + getValue(method, result, buffer, env) + ", false);");
+			}
+		}
+
+		pw.println("}");
+		pw.println();
+	}
+
+	/*
+	 * The batch method of the peer, calling the Java companion method once with
+	 * the spans of the arguments in Java arrays.  The results are copied into
+	 * the buffer of the caller, which has room for as many as the spans hold.
+	 */
+	private void writeBatchMethod(PrintWriter pw, ClassDoc clazz, MethodDoc method, String id) {
+		String cname = baseFileName(clazz);
+		String policy = getExceptionPolicy(method);
+		String valueType = getBatchValueType(method);
+		String returnType = withPolicy(method, valueType);
+		String qualifiers = (isStatic(method) ? "" : " const");
+		String env = getEnvName(method);
+		String methodID = "ids." + id + "_batch";
+		Parameter[] params = method.parameters();
+		Set<String> names = new HashSet<String>();
+		for (Parameter param : params)
+			names.add(param.name());
+		if (env != null)
+			names.add(env);
+		names.add(getResultsName(method));
+
+		pw.println(returnType + " " + cname + "::" + getMethodName(method) + "Batch(" + withEnv(getBatchArgumentsSignature(method), env) + ")" + qualifiers);
+		pw.println("{");
+		if (!eager) {
+			/* Static variable to compute the jmethodID once on first use */
+			pw.println("\t" + "static jmethodID methodID(" + callOn(env) + "GetStaticMethodID(GetBatchClass(), \"" + method.name() + "\", \"" + getBatchSignature(method) + "\"));");
+			methodID = "methodID";
+		}
+
+		/* The Java arrays of the spans, deleted when the method returns */
+		String failure = (policy.equals("THROW") ? "throw ::JNI::JavaException();" : "return" + (returnType.equals("void") ? "" : " " + returnType + "()") + ";");
+		List<String> arguments = new ArrayList<String>();
+		if (!isStatic(method))
+			arguments.add("Object()");
+
+		/* The companion method loops over the first array, so the spans must all be as long. */
+		if (params.length > 1) {
+			StringBuilder mismatch = new StringBuilder();
+			for (int i = 1; i < params.length; i++)
+				mismatch.append((i > 1 ? " || " : "") + params[i].name() + ".size() != " + params[0].name() + ".size()");
+			pw.println("\t" + "if (" + mismatch + ") {");
+			pw.println("\t\t" + "::JNI::ThrowIllegalArgument(" + envOf(env) + ", \"The spans of " + cname + "::" + getMethodName(method) + "Batch() differ in length.\");");
+			pw.println("\t\t" + failure);
+			pw.println("\t" + "}");
+		}
+
+		for (Parameter param : params) {
+			String name = uniqueName(param.name() + "_array", names);
+			names.add(name);
+			pw.println("\t" + "::JNI::ArrayArgument<" + jniTypeOf(param.type()).cppType + "> " + name + "(" + envOf(env) + ", " + param.name() + ");");
+			pw.println("\t" + "if (!" + name + ".ok())");
+			pw.println("\t\t" + failure);
+			arguments.add(name + ".get()");
+		}
+
+		/* One call of the companion method, with all arguments in arrays */
+		JNIType type = jniTypeOf(method.returnType());
+		StringBuilder call = new StringBuilder(callOn(env) + "CallStatic" + (type.isVoid() ? "Void" : "Object") + "Method");
+		String batchClass = (eager ? "ids." + BATCH_CLASS_ID : "GetBatchClass()");
+		if (jvalues) {
+			String values = uniqueName("args", names);
+			names.add(values);
+			pw.println("\t" + "jvalue " + values + "[" + arguments.size() + "];");
+			for (int i = 0; i < arguments.size(); i++)
+				pw.println("\t" + values + "[" + i + "].l = " + arguments.get(i) + ";");
+			call.append("A(" + batchClass + ", " + methodID + ", " + values + ")");
+		} else {
+			call.append("(" + batchClass + ", " + methodID);
+			for (String argument : arguments)
+				call.append(", " + argument);
+			call.append(")");
+		}
+
+		if (type.isVoid()) {
+			pw.println("\t" + call + ";");
+			if (policy.equals("THROW")) {
+				pw.println("\t" + "if (" + callOn(env) + "ExceptionCheck())");
+				pw.println("\t\t" + "throw ::JNI::JavaException();");
+			} else if (policy.equals("RESULT")) {
+				pw.println("\t" + "return " + returnType + "(" + callOn(env) + "ExceptionCheck());");
+			}
+		} else {
+			/* The companion returns null only when it threw. */
+			String array = "j" + method.returnType().typeName() + "Array";
+			String result = uniqueName("result", names);
+			names.add(result);
+			String length = uniqueName("length", names);
+			pw.println("\t" + array + " " + result + " = (" + array + ")" + call + ";");
+			pw.println("\t" + "if (" + result + " == NULL)");
+			pw.println("\t\t" + failure);
+			pw.println("\t" + "jsize " + length + " = " + callOn(env) + "GetArrayLength(" + result + ");");
+			pw.println("\t" + callOn(env) + "Get" + type.callSuffix + "ArrayRegion(" + result + ", 0, " + length + ", " + getResultsName(method) + ");");
+			pw.println("\t" + callOn(env) + "DeleteLocalRef(" + result + ");");
+			if (policy.equals("RESULT"))
+				pw.println("\t" + "return " + returnType + "(" + length + ", false);");
+			else
+				pw.println("\t" + "return " + length + ";");
+		}
+		pw.println("}");
+		pw.println();
+	}
+
+	/*
+	 * A factory of the peer, creating an object with NewObject and the cached
+	 * ID of the constructor.  The bulk variant, NewArray(), stores count objects
+	 * in an array, made with the elements i of the argument arrays, and deletes
+	 * each local reference as it goes.  It stops at the first exception, and
+	 * returns the number of objects made.
+	 */
+	private void writeConstructor(PrintWriter pw, ClassDoc clazz, ConstructorDoc constructor, String id, boolean bulk) {
+		String cname = baseFileName(clazz);
+		String policy = getExceptionPolicy(constructor);
+		String returnType = withPolicy(constructor, (bulk ? "jsize" : cname));
+		String env = getEnvName(constructor);
+		String[] arrayNames = getArrayNames(constructor);
+		Parameter[] params = constructor.parameters();
+		Set<String> names = new HashSet<String>();
+		for (Parameter param : params)
+			names.add(param.name());
+		if (env != null)
+			names.add(env);
+		names.add(arrayNames[0]);
+		names.add(arrayNames[1]);
+
+		pw.println(returnType + " " + cname + "::" + (bulk ? "NewArray" : "New") + "(" + withEnv(getConstructorSignature(constructor, bulk), env) + ")");
+		pw.println("{");
+
+		String methodID = "ids." + id;
+		String clazzRef = "ids.clazz";
+		if (!eager) {
+			/* Static variable to compute the jmethodID once on first use */
+			pw.println("\t" + "static jmethodID methodID(" + callOn(env) + "GetMethodID(GetClass(), \"<init>\", \"" + typeSignature.getTypeSignature(constructor) + "\"));");
+			methodID = "methodID";
+			clazzRef = "GetClass()";
+			if (bulk) {
+				clazzRef = uniqueName("clazz", names);
+				names.add(clazzRef);
+				pw.println("\t" + "jclass " + clazzRef + " = GetClass();");
+			}
+		}
+
+		/* The arguments, of the objects in turn for NewArray() */
+		String index = null;
+		String indent = "\t";
+		if (bulk) {
+			index = uniqueName("i", names);
+			names.add(index);
+		}
+		String[] arguments = new String[params.length];
+		for (int i = 0; i < params.length; i++)
+			arguments[i] = jniTypeOf(params[i].type()).argument(params[i].name() + (bulk ? "[" + index + "]" : ""));
+		String values = null;
+		if (jvalues && params.length > 0) {
+			values = uniqueName("args", names);
+			names.add(values);
+			pw.println("\t" + "jvalue " + values + "[" + params.length + "];");
+		}
+		if (bulk) {
+			pw.println("\t" + "for (jsize " + index + " = 0; " + index + " < " + arrayNames[1] + "; " + index + "++) {");
+			indent = "\t\t";
+		}
+		StringBuilder call = new StringBuilder(callOn(env) + "NewObject" + (values != null ? "A" : "") + "(" + clazzRef + ", " + methodID);
+		if (values != null) {
+			for (int i = 0; i < params.length; i++)
+				pw.println(indent + values + "[" + i + "]." + jvalueMember(params[i].type()) + " = " + arguments[i] + ";");
+			call.append(", " + values);
+		} else {
+			for (String argument : arguments)
+				call.append(", " + argument);
+		}
+		call.append(")");
+
+		if (!bulk && policy.equals("NONE")) {
+			pw.println("\t" + "return " + cname + "(" + call + ");");
+			pw.println("}");
+			pw.println();
+			return;
+		}
+
+		/* NewObject returns NULL when the constructor throws (or memory runs out). */
+		String object = uniqueName("object", names);
+		pw.println(indent + "jobject " + object + " = " + call + ";");
+		pw.println(indent + "if (" + object + " == NULL)");
+		if (policy.equals("THROW"))
+			pw.println(indent + "\t" + "throw ::JNI::JavaException();");
+		else if (policy.equals("RESULT"))
+			pw.println(indent + "\t" + "return " + returnType + "();");
+		else
+			pw.println(indent + "\t" + "return " + index + ";");
+		if (bulk) {
+			pw.println(indent + callOn(env) + "SetObjectArrayElement(" + arrayNames[0] + ", " + index + ", " + object + ");");
+			pw.println(indent + callOn(env) + "DeleteLocalRef(" + object + ");");
+			pw.println("\t" + "}");
+		}
+		String value = (bulk ? arrayNames[1] : cname + "(" + object + ")");
+		if (policy.equals("RESULT"))
+			pw.println("\t" + "return " + returnType + "(" + value + ", false);");
+		else
+			pw.println("\t" + "return " + value + ";");
+		pw.println("}");
+		pw.println();
+	}
+
+	/*
+	 * The get_ and set_ accessors of a field, through Get<X>Field and Set<X>Field
+	 * with a cached field ID.  Final fields only get a get_ accessor.
+	 */
+	private void writeFieldAccessors(PrintWriter pw, ClassDoc clazz, FieldDoc field, String id) {
+		String cname = baseFileName(clazz);
+		String fieldName = getFieldName(field);
+		String qualifiers = (field.isStatic() ? "" : " const");
+		String statik = (field.isStatic() ? "Static" : "");
+		String target = (field.isStatic() ? (eager ? "ids.clazz" : "GetClass()") : "Object()");
+		String fieldID = (eager ? "ids." + id : "fieldID");
+		String env = (isEnv(clazz) ? "env" : null);
+		String lookup = "\t" + "static jfieldID fieldID(" + callOn(env) + "Get" + statik + "FieldID(GetClass(), \"" + field.name() + "\", \""
+				+ typeSignature.getTypeSignature(field.type()) + "\"));";
+		JNIType type = jniTypeOf(field.type());
+
+		pw.println(getResultType(clazz, type) + " " + cname + "::get_" + fieldName + "(" + withEnv("", env) + ")" + qualifiers);
+		pw.println("{");
+		if (!eager)
+			pw.println(lookup);
+		pw.println("\t" + "return " + getResult(clazz, type, callOn(env) + "Get" + statik + type.callSuffix + "Field(" + target + ", " + fieldID + ")", env) + ";");
+		pw.println("}");
+		pw.println();
+
+		if (field.isFinal())
+			return;
+		pw.println("void " + cname + "::set_" + fieldName + "(" + withEnv(type.parameter("value"), env) + ")" + qualifiers);
+		pw.println("{");
+		if (!eager)
+			pw.println(lookup);
+		pw.println("\t" + callOn(env) + "Set" + statik + type.callSuffix + "Field(" + target + ", " + fieldID + ", " + type.argument("value") + ");");
+		pw.println("}");
+		pw.println();
+	}
+
+	/*
+	 * Snapshot() and WriteBack() of the instance fields marked with JNIField.
+	 * Snapshot() gets each field with its cached field ID, or unpacks the array
+	 * returned by one call of the packer if it starts with the hash of the
+	 * layout, and gets the fields that can't be packed.  WriteBack() sets the
+	 * fields that are not final.
+	 */
+	private void writeSnapshot(PrintWriter pw, ClassDoc clazz, Map<FieldDoc, String> fieldIDs) throws ClassNotFoundException {
+		String cname = baseFileName(clazz);
+		List<FieldDoc> fields = getSnapshotFields(clazz);
+		String env = (isEnv(clazz) ? "env" : null);
+
+		/* Without eager IDs, the field IDs of the struct are looked up together on first use. */
+		List<String> ids = new ArrayList<String>(fields.size());
+		for (int i = 0; i < fields.size(); i++)
+			ids.add(eager ? "ids." + fieldIDs.get(fields.get(i)) : "fieldIDs[" + i + "]");
+		String lookup = null;
+		if (!eager) {
+			StringBuilder s = new StringBuilder("\t" + "static const jfieldID fieldIDs[] = {" + lineSeparator);
+			for (FieldDoc field : fields)
+				s.append("\t\t" + callOn(env) + "GetFieldID(GetClass(), \"" + field.name() + "\", \"" + typeSignature.getTypeSignature(field.type()) + "\")," + lineSeparator);
+			lookup = s.append("\t" + "};").toString();
+		}
+
+		pw.println(cname + "::Fields " + cname + "::Snapshot(" + withEnv("", env) + ") const");
+		pw.println("{");
+		boolean lookedUp = false;
+		if (hasPacker(clazz)) {
+			List<FieldDoc> packedFields = getPackedFields(clazz);
+			if (lookup != null && packedFields.size() < fields.size()) {
+				pw.println(lookup);
+				lookedUp = true;
+			}
+			String methodID = (eager ? "ids." + PACKER_ID : "methodID");
+			String call;
+			if (isPack(clazz)) {
+				String packerClass = (eager ? "ids." + PACKER_CLASS_ID : "packerClass");
+				if (!eager) {
+					pw.println("\t" + "static ::JNI::JClass packerClass(\"" + getPackerClassSignature(clazz) + "\");");
+					pw.println("\t" + "static jmethodID methodID(" + callOn(env) + "GetStaticMethodID(packerClass, \"" + PACK_METHOD + "\", \"" + getPackSignature(clazz) + "\"));");
+				}
+				call = "CallStaticObjectMethod(" + packerClass + ", " + methodID + ", Object())";
+			} else {
+				MethodDoc packer = getPacker(clazz);
+				if (!eager)
+					pw.println("\t" + "static jmethodID methodID(" + callOn(env) + "GetMethodID(GetClass(), \"" + packer.name() + "\", \"" + typeSignature.getTypeSignature(packer) + "\"));");
+				call = "CallObjectMethod(Object(), " + methodID + ")";
+			}
+			int length = packedFields.size() + 1;
+			pw.println("\t" + "jlongArray packed = (jlongArray)" + callOn(env) + call + ";");
+			pw.println("\t" + "if (packed == NULL)");
+			pw.println("\t\t" + "return Fields();");
+			pw.println("\t" + "jlong values[" + length + "] = { 0 };");
+			pw.println("\t" + "if (" + callOn(env) + "GetArrayLength(packed) == " + length + ")");
+			pw.println("\t\t" + callOn(env) + "GetLongArrayRegion(packed, 0, " + length + ", values);");
+			pw.println("\t" + callOn(env) + "DeleteLocalRef(packed);");
+			pw.println("\t" + "if (values[0] == (jlong)" + getLayoutLiteral(clazz, "ULL") + ") {");
+			pw.println("\t\t" + "Fields fields;");
+			boolean bits = false;
+			for (int i = 0; i < fields.size(); i++) {
+				FieldDoc field = fields.get(i);
+				String member = "fields." + getFieldName(field);
+				int index = packedFields.indexOf(field);
+				if (index < 0) {
+					pw.println("\t\t" + member + " = " + getSnapshotField(field, ids.get(i), env) + ";");
+					continue;
+				}
+				String value = "values[" + (index + 1) + "]";
+				String type = field.type().typeName();
+				if (type.equals("double")) {
+					pw.println("\t\t" + "std::memcpy(&" + member + ", &" + value + ", sizeof(jdouble));");
+				} else if (type.equals("float")) {
+					/* Float.floatToRawIntBits(), widened to long */
+					if (!bits)
+						pw.println("\t\t" + "jint bits;");
+					bits = true;
+					pw.println("\t\t" + "bits = (jint)" + value + ";");
+					pw.println("\t\t" + "std::memcpy(&" + member + ", &bits, sizeof(jfloat));");
+				} else if (type.equals("boolean")) {
+					pw.println("\t\t" + member + " = (" + value + " != 0 ? JNI_TRUE : JNI_FALSE);");
+				} else {
+					pw.println("\t\t" + member + " = (" + snapshotType(field) + ")" + value + ";");
+				}
+			}
+			pw.println("\t\t" + "return fields;");
+			pw.println("\t" + "}");
+			pw.println();
+			pw.println("\t" + "/* The packer is of another layout, so read the fields one by one. */");
+		}
+		if (lookup != null && !lookedUp)
+			pw.println(lookup);
+		pw.println("\t" + "Fields fields;");
+		for (int i = 0; i < fields.size(); i++) {
+			FieldDoc field = fields.get(i);
+			pw.println("\t" + "fields." + getFieldName(field) + " = " + getSnapshotField(field, ids.get(i), env) + ";");
+		}
+		pw.println("\t" + "return fields;");
+		pw.println("}");
+		pw.println();
+
+		if (!hasWritableField(fields))
+			return;
+		pw.println("void " + cname + "::WriteBack(" + withEnv("const Fields& fields", env) + ") const");
+		pw.println("{");
+		if (lookup != null)
+			pw.println(lookup);
+		for (int i = 0; i < fields.size(); i++) {
+			FieldDoc field = fields.get(i);
+			if (!field.isFinal())
+				pw.println("\t" + callOn(env) + "Set" + jniTypeOf(field.type()).callSuffix + "Field(Object(), " + ids.get(i) + ", fields." + getFieldName(field) + ");");
+		}
+		pw.println("}");
+		pw.println();
+	}
+
+	/*
+	 * Get a snapshot field with its field ID.
+	 */
+	private String getSnapshotField(FieldDoc field, String fieldID, String env) {
+		JNIType type = jniTypeOf(field.type());
+		String get = callOn(env) + "Get" + type.callSuffix + "Field(Object(), " + fieldID + ")";
+		if (type.kind == JNIType.Kind.REFERENCE)
+			get = type.result(get);
+		return get;
+	}
+
+	/*
+	 * A snapshot needs instance fields, and a named packer must exist.  Fields
+	 * the packer can't pack are read one by one.
+	 */
+	private void checkSnapshot(ClassDoc clazz) throws ClassNotFoundException {
+		if (isSnapshot(clazz) && getSnapshotFields(clazz).isEmpty())
+			Util.error("%s has no instance fields marked with JNIField to snapshot.", clazz.qualifiedName());
+		String packer = getPackerName(clazz);
+		if (packer != null) {
+			if (isPack(clazz))
+				Util.error("%s can't both name a packer and generate one.", clazz.qualifiedName());
+			if (getPacker(clazz) == null)
+				Util.error("%s has no method long[] %s() to pack its fields.", clazz.qualifiedName(), packer);
+		}
+		if (Util.verbose && (isPack(clazz) || packer != null)) {
+			List<FieldDoc> packedFields = getPackedFields(clazz);
+			for (FieldDoc field : getSnapshotFields(clazz)) {
+				if (!packedFields.contains(field))
+					Util.log("[The field " + clazz.qualifiedName() + "." + field.name() + " is not packed, and is read by itself]");
+			}
+		}
+	}
+
+	/*
+	 * The type of a field in the struct: its JNI type, since a snapshot holds
+	 * local references rather than peers.
+	 */
+	private String snapshotType(FieldDoc field) {
+		return nativeType(field.type());
+	}
+
+	/*
+	 * The JNI type of a value, which is a jobject for the classes mapped to peers.
+	 */
+	private String nativeType(Type t) {
+		JNIType type = jniTypeOf(t);
+		return (type.kind == JNIType.Kind.PEER ? "jobject" : type.cppType);
+	}
+
+	private static boolean isFloatingPoint(FieldDoc field) {
+		String type = field.type().typeName();
+		return field.type().isPrimitive() && (type.equals("double") || type.equals("float"));
+	}
+
+	private static boolean hasWritableField(List<FieldDoc> fields) {
+		for (FieldDoc field : fields) {
+			if (!field.isFinal())
+				return true;
+		}
+		return false;
+	}
+
+	/*
+	 * RegisterNatives() binds the functions of Natives to the native methods of
+	 * the class, so the library needn't export them under their JNI names.
+	 */
+	private void writeRegisterNatives(PrintWriter pw, ClassDoc clazz, Map<MethodDoc, String> natives) throws ClassNotFoundException {
+		String cname = baseFileName(clazz);
+
+		/* Overloaded native methods have the long JNI names */
+		Map<String, Integer> overloads = new HashMap<String, Integer>();
+		for (MethodDoc method : natives.keySet()) {
+			Integer count = overloads.get(method.name());
+			overloads.put(method.name(), (count == null ? 1 : count + 1));
+		}
+
+		pw.println("bool " + cname + "::RegisterNatives(JNIEnv* env)");
+		pw.println("{");
+		pw.println("\t" + "static const JNINativeMethod methods[] = {");
+		for (Map.Entry<MethodDoc, String> entry : natives.entrySet()) {
+			MethodDoc method = entry.getKey();
+			int mtype = (overloads.get(method.name()) > 1 ? Mangle.Type.METHOD_JNI_LONG : Mangle.Type.METHOD_JNI_SHORT);
+			pw.println("\t\t" + "/* " + Mangle.mangleMethod(method, typeSignature, clazz, mtype) + " */");
+			pw.println("\t\t" + "{ (char*)\"" + method.name() + "\", (char*)\"" + typeSignature.getTypeSignature(method) + "\", (void*)&Natives::" + entry.getValue() + " },");
+		}
+		pw.println("\t" + "};");
+		if (eager) {
+			pw.println("\t" + "return env->RegisterNatives(ids.clazz, methods, " + natives.size() + ") == JNI_OK;");
+		} else {
+			/* The class the peer already holds, rather than a FindClass() from the caller's class loader */
+			pw.println("\t" + "jclass clazz = GetClass();");
+			pw.println("\t" + "if (clazz == NULL)");
+			pw.println("\t\t" + "return false;");
+			pw.println("\t" + "return env->RegisterNatives(clazz, methods, " + natives.size() + ") == JNI_OK;");
+		}
+		pw.println("}");
+		pw.println();
+	}
+
+	/*
+	 * The function of a native method: the JNI types of the method, after the
+	 * JNIEnv and the object (or class, if static).
+	 */
+	private String getNativeDeclaration(MethodDoc method, String name) {
+		Parameter[] params = method.parameters();
+		Set<String> names = new HashSet<String>();
+		for (Parameter param : params)
+			names.add(param.name());
+
+		StringBuilder declaration = new StringBuilder();
+		declaration.append(nativeType(method.returnType())).append(" JNICALL ").append(name).append("(");
+		declaration.append("JNIEnv* ").append(uniqueName("env", names));
+		if (isStatic(method))
+			declaration.append(", jclass ").append(uniqueName("clazz", names));
+		else
+			declaration.append(", jobject ").append(uniqueName("object", names));
+		for (Parameter param : params)
+			declaration.append(", ").append(nativeType(param.type())).append(" ").append(param.name());
+		return declaration.append(")").toString();
+	}
+
+	private static String uniqueName(String name, Set<String> names) {
+		while (names.contains(name))
+			name = name + "_";
+		return name;
+	}
+
+	/*
+	 * A class that asks for its native methods to be registered must have some.
+	 */
+	private void checkNatives(ClassDoc clazz) throws ClassNotFoundException {
+		if (isNatives(clazz) && getNatives(clazz).isEmpty())
+			Util.error("%s has no native methods to register.", clazz.qualifiedName());
+	}
+
+	/*
+	 * NewObject can only make objects of concrete classes, and the descriptor
+	 * of the constructor of an inner class has its outer instance too.
+	 */
+	private void checkConstructors(ClassDoc clazz) throws ClassNotFoundException {
+		if (getConstructorIDs(clazz).isEmpty())
+			return;
+		String reason = null;
+		if (clazz.isInterface() || clazz.isAbstract())
+			reason = "it is abstract";
+		else if (clazz.isEnum())
+			reason = "it is an enum";
+		else if (clazz.containingClass() != null && !clazz.isStatic())
+			reason = "it is an inner class";
+		if (reason != null)
+			Util.error("%s can't be constructed with JNIConstructor, since %s.", clazz.qualifiedName(), reason);
+	}
+
+	/*
+	 * A batched method takes and returns primitives, and is called from a
+	 * companion class in the same package.
+	 */
+	private void checkBatch(ClassDoc clazz) throws ClassNotFoundException {
+		for (MethodDoc method : getBatchMethods(clazz).keySet()) {
+			boolean primitive = method.parameters().length > 0 && isPrimitive(method.returnType());
+			for (Parameter param : method.parameters())
+				primitive &= isPrimitive(param.type());
+			if (!primitive)
+				Util.error("%s.%s can't be batched: its parameters and result must be primitive, with at least one parameter.", clazz.qualifiedName(), method.name());
+			if (method.isPrivate() || clazz.isPrivate())
+				Util.error("%s.%s can't be batched, since its companion class can't call it.", clazz.qualifiedName(), method.name());
+		}
+	}
+
+	private static boolean isPrimitive(Type t) {
+		return t.isPrimitive() && t.dimension().length() == 0;
+	}
+
+	/*
+	 * The table of IDs, and the functions that use it, of an eager peer.
+	 */
+	private void writeIDs(PrintWriter pw, ClassDoc clazz, Map<MethodDoc, String> methodIDs, Map<FieldDoc, String> fieldIDs) throws ClassNotFoundException {
+		String cname = baseFileName(clazz);
+
+		pw.println(cname + "::IDs " + cname + "::ids;");
+		pw.println();
+
+		/* With a registry, Initialize() is defined there, sharing the strings of all peers. */
+		if (registry == null)
+			writeInitialize(pw, clazz, cname, methodIDs, fieldIDs, null);
+
+		pw.println("void " + cname + "::Uninitialize(JNIEnv* env)");
+		pw.println("{");
+		pw.println("\t" + "if (ids.clazz != NULL)");
+		pw.println("\t\t" + "env->DeleteGlobalRef(ids.clazz);");
+		if (!getBatchMethods(clazz).isEmpty()) {
+			pw.println("\t" + "if (ids." + BATCH_CLASS_ID + " != NULL)");
+			pw.println("\t\t" + "env->DeleteGlobalRef(ids." + BATCH_CLASS_ID + ");");
+		}
+		if (hasPackerClass(clazz)) {
+			pw.println("\t" + "if (ids." + PACKER_CLASS_ID + " != NULL)");
+			pw.println("\t\t" + "env->DeleteGlobalRef(ids." + PACKER_CLASS_ID + ");");
+		}
+		pw.println("\t" + "ids = IDs();");
+		pw.println("}");
+		pw.println();
+
+		pw.println("jclass " + cname + "::GetClass()");
+		pw.println("{");
+		pw.println("\t" + "return ids.clazz;");
+		pw.println("}");
+		pw.println();
+	}
+
+	/*
+	 * Initialize() resolves the class and every method ID, and returns false
+	 * with the Java exception pending if one is missing.  The strings are
+	 * literals, or references to the shared table of a registry.
+	 */
+	private void writeInitialize(PrintWriter pw, ClassDoc clazz, String qualifiedName, Map<MethodDoc, String> methodIDs, Map<FieldDoc, String> fieldIDs, StringTable strings) throws ClassNotFoundException {
+		pw.println("bool " + qualifiedName + "::Initialize(JNIEnv* env)");
+		pw.println("{");
+		pw.println("\t" + "jclass clazz = env->FindClass(" + string(strings, typeSignature.getTypeSignature(clazz)) + ");");
+		pw.println("\t" + "if (clazz == NULL)");
+		pw.println("\t\t" + "return false;");
+		pw.println("\t" + "ids.clazz = (jclass)env->NewGlobalRef(clazz);");
+		pw.println("\t" + "env->DeleteLocalRef(clazz);");
+		pw.println("\t" + "if (ids.clazz == NULL)");
+		pw.println("\t\t" + "return false;");
+		for (Map.Entry<ConstructorDoc, String> entry : getConstructorIDs(clazz).entrySet()) {
+			pw.println("\t" + "if ((ids." + entry.getValue() + " = env->GetMethodID(ids.clazz, "
+					+ string(strings, "<init>") + ", " + string(strings, typeSignature.getTypeSignature(entry.getKey())) + ")) == NULL)");
+			pw.println("\t\t" + "return false;");
+		}
+		for (Map.Entry<MethodDoc, String> entry : methodIDs.entrySet()) {
+			MethodDoc method = entry.getKey();
+			pw.println("\t" + "if ((ids." + entry.getValue() + " = env->Get" + (isStatic(method) ? "Static" : "") + "MethodID(ids.clazz, "
+					+ string(strings, method.name()) + ", " + string(strings, typeSignature.getTypeSignature(method)) + ")) == NULL)");
+			pw.println("\t\t" + "return false;");
+		}
+		for (Map.Entry<FieldDoc, String> entry : fieldIDs.entrySet()) {
+			FieldDoc field = entry.getKey();
+			pw.println("\t" + "if ((ids." + entry.getValue() + " = env->Get" + (field.isStatic() ? "Static" : "") + "FieldID(ids.clazz, "
+					+ string(strings, field.name()) + ", " + string(strings, typeSignature.getTypeSignature(field.type())) + ")) == NULL)");
+			pw.println("\t\t" + "return false;");
+		}
+		MethodDoc packer = getPacker(clazz);
+		if (packer != null && hasPacker(clazz)) {
+			pw.println("\t" + "if ((ids." + PACKER_ID + " = env->GetMethodID(ids.clazz, "
+					+ string(strings, packer.name()) + ", " + string(strings, typeSignature.getTypeSignature(packer)) + ")) == NULL)");
+			pw.println("\t\t" + "return false;");
+		}
+		if (hasPackerClass(clazz)) {
+			String packerClass = "ids." + PACKER_CLASS_ID;
+			pw.println("\t" + "clazz = env->FindClass(" + string(strings, getPackerClassSignature(clazz)) + ");");
+			pw.println("\t" + "if (clazz == NULL)");
+			pw.println("\t\t" + "return false;");
+			pw.println("\t" + packerClass + " = (jclass)env->NewGlobalRef(clazz);");
+			pw.println("\t" + "env->DeleteLocalRef(clazz);");
+			pw.println("\t" + "if (" + packerClass + " == NULL)");
+			pw.println("\t\t" + "return false;");
+			pw.println("\t" + "if ((ids." + PACKER_ID + " = env->GetStaticMethodID(" + packerClass + ", "
+					+ string(strings, PACK_METHOD) + ", " + string(strings, getPackSignature(clazz)) + ")) == NULL)");
+			pw.println("\t\t" + "return false;");
+		}
+		Map<MethodDoc, String> batchMethods = getBatchMethods(clazz);
+		if (!batchMethods.isEmpty()) {
+			String batch = "ids." + BATCH_CLASS_ID;
+			pw.println("\t" + "clazz = env->FindClass(" + string(strings, getBatchClassSignature(clazz)) + ");");
+			pw.println("\t" + "if (clazz == NULL)");
+			pw.println("\t\t" + "return false;");
+			pw.println("\t" + batch + " = (jclass)env->NewGlobalRef(clazz);");
+			pw.println("\t" + "env->DeleteLocalRef(clazz);");
+			pw.println("\t" + "if (" + batch + " == NULL)");
+			pw.println("\t\t" + "return false;");
+			for (Map.Entry<MethodDoc, String> entry : batchMethods.entrySet()) {
+				MethodDoc method = entry.getKey();
+				pw.println("\t" + "if ((ids." + entry.getValue() + "_batch = env->GetStaticMethodID(" + batch + ", "
+						+ string(strings, method.name()) + ", " + string(strings, getBatchSignature(method)) + ")) == NULL)");
+				pw.println("\t\t" + "return false;");
+			}
+		}
+		if (!getNatives(clazz).isEmpty())
+			pw.println("\t" + "return RegisterNatives(env);");
+		else
+			pw.println("\t" + "return true;");
+		pw.println("}");
+		pw.println();
+	}
+
+	private static String string(StringTable strings, String s) {
+		return (strings == null ? "\"" + s + "\"" : strings.reference(s));
+	}
+
+	/*
+	 * Strings shared by the peers of a registry, each stored once.
+	 */
+	private static class StringTable {
+		private final Map<String, Integer> indexes = new LinkedHashMap<String, Integer>();
+
+		String reference(String s) {
+			Integer index = indexes.get(s);
+			if (index == null) {
+				index = indexes.size();
+				indexes.put(s, index);
+			}
+			return "strings[" + index + "]";
+		}
+
+		void write(PrintWriter pw) {
+			pw.println("const char* const strings[] = {");
+			for (Map.Entry<String, Integer> entry : indexes.entrySet())
+				pw.println("\t" + "/* " + entry.getValue() + " */ \"" + entry.getKey() + "\",");
+			pw.println("};");
+		}
+	}
+
+	/*
+	 * The registry: a header and a translation unit that initialize every peer
+	 * at once, for example from JNI_OnLoad.
+	 */
+	@Override
+	protected void writeAggregates() throws IOException, ClassNotFoundException {
+		ClassDoc[] outputClasses = getOutputClasses();
+		for (ClassDoc clazz : outputClasses) {
+			if (getAnnotation(clazz, JNIClass.class) != null && usesSupport(clazz)) {
+				writeSupport();
+				break;
+			}
+		}
+		if (registry != null)
+			writeRegistry(outputClasses);
+	}
+
+	/*
+	 * The support header of the peers that pass arrays or buffers as views,
+	 * copied from the resource next to this class.
+	 */
+	private void writeSupport() throws IOException {
+		InputStream resource = JNIGenerator.class.getResourceAsStream(SUPPORT_HEADER);
+		if (resource == null)
+			Util.bug("Missing resource " + SUPPORT_HEADER);
+		ByteArrayOutputStream header = new ByteArrayOutputStream(8192);
+		PrintWriter pw = wrapWriter(header);
+		pw.println(getFileTop());
+		BufferedReader in = new BufferedReader(new InputStreamReader(resource, "UTF-8"));
+		try {
+			String line;
+			while ((line = in.readLine()) != null)
+				pw.println(line);
+		} finally {
+			in.close();
+		}
+		writeAggregate(SUPPORT_HEADER, header.toByteArray());
+	}
+
+	private void writeRegistry(ClassDoc[] outputClasses) throws IOException, ClassNotFoundException {
+		List<ClassDoc> peers = new ArrayList<ClassDoc>();
+		for (ClassDoc clazz : outputClasses) {
+			if (getAnnotation(clazz, JNIClass.class) != null)
+				peers.add(clazz);
+		}
+		String[] namespace = (this.namespace == null ? new String[0] : this.namespace.split("\\."));
+
+		ByteArrayOutputStream header = new ByteArrayOutputStream(1024);
+		PrintWriter pw = wrapWriter(header);
+		pw.println(getFileTop());
+		pw.println("#pragma once");
+		pw.println();
+		pw.println("#include <jni.h>");
+		pw.println();
+		pw.println(cppNamespaceBegin(namespace));
+		pw.println();
+		pw.println("struct " + registry);
+		pw.println("{");
+		pw.println("\t" + "/* Resolve the classes and IDs of every peer; call once before using them. */");
+		pw.println("\t" + "static bool Initialize(JNIEnv* env);");
+		pw.println("\t" + "static void Uninitialize(JNIEnv* env);");
+		pw.println("};");
+		pw.println();
+		pw.println(cppNamespaceEnd(namespace));
+		writeAggregate(registry + ".h", header.toByteArray());
+
+		/* The peers' Initialize() come first, collecting the strings. */
+		StringTable strings = new StringTable();
+		ByteArrayOutputStream initializers = new ByteArrayOutputStream(8192);
+		pw = wrapWriter(initializers);
+		for (ClassDoc clazz : peers)
+			writeInitialize(pw, clazz, getQualifiedName(clazz), getMethodIDs(clazz), getFieldIDs(clazz), strings);
+
+		ByteArrayOutputStream cpp = new ByteArrayOutputStream(16384);
+		pw = wrapWriter(cpp);
+		pw.println(getFileTop());
+		if (pch != null)
+			pw.println("#include \"" + pch + "\"");
+		for (ClassDoc clazz : peers)
+			pw.println("#include \"" + baseFileName(clazz) + ".h\"");
+		pw.println("#include \"" + registry + ".h\"");
+		pw.println();
+		pw.println("namespace {");
+		pw.println();
+		strings.write(pw);
+		pw.println();
+		pw.println("}");
+		pw.println();
+		pw.flush();
+		initializers.writeTo(cpp);
+
+		pw.println(cppNamespaceBegin(namespace));
+		pw.println();
+		pw.println("bool " + registry + "::Initialize(JNIEnv* env)");
+		pw.println("{");
+		for (ClassDoc clazz : peers) {
+			pw.println("\t" + "if (!::" + getQualifiedName(clazz) + "::Initialize(env))");
+			pw.println("\t\t" + "return false;");
+		}
+		pw.println("\t" + "return true;");
+		pw.println("}");
+		pw.println();
+		pw.println("void " + registry + "::Uninitialize(JNIEnv* env)");
+		pw.println("{");
+		for (int i = peers.size() - 1; i >= 0; i--)
+			pw.println("\t" + "::" + getQualifiedName(peers.get(i)) + "::Uninitialize(env);");
+		pw.println("}");
+		pw.println();
+		pw.println(cppNamespaceEnd(namespace));
+		pw.println();
+		pw.println("#ifdef JNIMANAGEDPEER_DEFINE_JNI_ONLOAD");
+		pw.println();
+		pw.println("JNIEXPORT jint JNICALL JNI_OnLoad(JavaVM* vm, void* /*reserved*/)");
+		pw.println("{");
+		pw.println("\t" + "JNIEnv* env;");
+		pw.println("\t" + "if (vm->GetEnv((void**)&env, JNI_VERSION_1_6) != JNI_OK)");
+		pw.println("\t\t" + "return JNI_ERR;");
+		pw.println("\t" + "if (!" + cppQualifiedName(namespace, registry) + "::Initialize(env))");
+		pw.println("\t\t" + "return JNI_ERR;");
+		pw.println("\t" + "return JNI_VERSION_1_6;");
+		pw.println("}");
+		pw.println();
+		pw.println("#endif");
+		writeAggregate(registry + ".cpp", cpp.toByteArray());
+	}
+
+	/*
+	 * Whether a peer passes arrays or buffers as views, returns LocalRefs or
+	 * Results or throws JavaException, declared in the support header.
+	 */
+	private boolean usesSupport(ClassDoc clazz) throws ClassNotFoundException {
+		if (isLocalRefs(clazz) || isEnv(clazz) || !getBatchMethods(clazz).isEmpty())
+			return true;
+		for (MethodDoc method : clazz.methods()) {
+			if (getAnnotation(method, JNIMethod.class) == null)
+				continue;
+			if (isViewResult(method) || isSupportType(method.returnType()) || !getExceptionPolicy(method).equals("NONE"))
+				return true;
+			for (Parameter param : method.parameters()) {
+				if (getViewArgumentType(method, param.type()) != null || isSupportType(param.type()))
+					return true;
+			}
+		}
+		for (FieldDoc field : getFieldIDs(clazz).keySet()) {
+			if (isSupportType(field.type()))
+				return true;
+		}
+		for (ConstructorDoc constructor : getConstructorIDs(clazz).keySet()) {
+			if (!getExceptionPolicy(constructor).equals("NONE"))
+				return true;
+			for (Parameter param : constructor.parameters()) {
+				if (isSupportType(param.type()))
+					return true;
+			}
+		}
+		return false;
+	}
+
+	private boolean isSupportType(Type t) {
+		return SUPPORT_HEADER.equals(jniTypeOf(t).include);
+	}
+
+	/*
+	 * The C++ name of the peer of a class, qualified with its namespace.
+	 */
+	protected final String getQualifiedName(ClassDoc clazz) throws ClassNotFoundException {
+		return cppQualifiedName(getNamespace(clazz), baseFileName(clazz));
+	}
+
+	private static String cppQualifiedName(String[] namespace, String name) {
+		StringBuilder result = new StringBuilder();
+		for (String ns : namespace)
+			result.append(ns).append("::");
+		return result.append(name).toString();
+	}
+
+	/*
+	 * The methods marked with the JNIMethod annotation, in declaration order,
+	 * and the names of their method IDs.  Overloads are numbered.
+	 */
+	protected final Map<MethodDoc, String> getMethodIDs(ClassDoc clazz) throws ClassNotFoundException {
+		Map<MethodDoc, String> methodIDs = new LinkedHashMap<MethodDoc, String>();
+		Map<String, Integer> overloads = new HashMap<String, Integer>();
+		for (MethodDoc method : clazz.methods()) {
+			if (getAnnotation(method, JNIMethod.class) != null) {
+				String name = getMethodName(method);
+				Integer count = overloads.get(name);
+				overloads.put(name, (count == null ? 1 : count + 1));
+				methodIDs.put(method, (count == null ? name : name + "_" + count));
+			}
+		}
+		return methodIDs;
+	}
+
+	/*
+	 * The constructors marked with the JNIConstructor annotation, in declaration
+	 * order, and the names of their method IDs.  Overloads are numbered.
+	 */
+	protected final Map<ConstructorDoc, String> getConstructorIDs(ClassDoc clazz) throws ClassNotFoundException {
+		Map<ConstructorDoc, String> constructorIDs = new LinkedHashMap<ConstructorDoc, String>();
+		for (ConstructorDoc constructor : clazz.constructors()) {
+			if (getAnnotation(constructor, JNIConstructor.class) != null)
+				constructorIDs.put(constructor, (constructorIDs.isEmpty() ? "New" : "New_" + constructorIDs.size()));
+		}
+		return constructorIDs;
+	}
+
+	/*
+	 * The methods marked with @JNIMethod(batch = true), in declaration order,
+	 * and the names of their method IDs.
+	 */
+	protected final Map<MethodDoc, String> getBatchMethods(ClassDoc clazz) throws ClassNotFoundException {
+		Map<MethodDoc, String> batchMethods = new LinkedHashMap<MethodDoc, String>();
+		for (Map.Entry<MethodDoc, String> entry : getMethodIDs(clazz).entrySet()) {
+			if (Boolean.TRUE.equals(getAnnotationValue(entry.getKey(), JNIMethod.class, "batch")))
+				batchMethods.put(entry.getKey(), entry.getValue());
+		}
+		return batchMethods;
+	}
+
+	/*
+	 * The name of the Java companion class of the batched methods of a class,
+	 * in the same package.
+	 */
+	protected final String getBatchClassName(ClassDoc clazz) {
+		return super.baseFileName(clazz) + "Batch";
+	}
+
+	private String getBatchClassSignature(ClassDoc clazz) {
+		return getCompanionSignature(clazz, getBatchClassName(clazz));
+	}
+
+	/*
+	 * The name of the generated Java companion class of the packer, in the same
+	 * package.
+	 */
+	protected final String getPackerClassName(ClassDoc clazz) {
+		return super.baseFileName(clazz) + "Packer";
+	}
+
+	private String getPackerClassSignature(ClassDoc clazz) {
+		return getCompanionSignature(clazz, getPackerClassName(clazz));
+	}
+
+	private static String getCompanionSignature(ClassDoc clazz, String name) {
+		String pkg = clazz.containingPackage().name();
+		return (pkg.length() > 0 ? pkg.replace('.', '/') + "/" : "") + name;
+	}
+
+	/*
+	 * The descriptor of the generated packer: it takes the object.
+	 */
+	private String getPackSignature(ClassDoc clazz) {
+		return "(L" + typeSignature.getTypeSignature(clazz) + ";)[J";
+	}
+
+	/*
+	 * The hash of the layout of the packed snapshot fields, the first element
+	 * of the packed array: FNV-1a of the names and descriptors of the fields in
+	 * order, so a packer of other fields, or in another order, is detected.
+	 */
+	protected final long getPackedLayout(ClassDoc clazz) throws ClassNotFoundException {
+		long hash = 0xcbf29ce484222325L;
+		for (FieldDoc field : getPackedFields(clazz)) {
+			String s = field.name() + " " + typeSignature.getTypeSignature(field.type()) + ";";
+			for (int i = 0; i < s.length(); i++) {
+				hash ^= s.charAt(i);
+				hash *= 0x100000001b3L;
+			}
+		}
+		return hash;
+	}
+
+	private String getLayoutLiteral(ClassDoc clazz, String suffix) throws ClassNotFoundException {
+		return String.format("0x%016x", getPackedLayout(clazz)) + suffix;
+	}
+
+	/*
+	 * The descriptor of the companion method: the object for an instance
+	 * method, then an array of each parameter, returning an array of results.
+	 */
+	private String getBatchSignature(MethodDoc method) {
+		StringBuilder signature = new StringBuilder("(");
+		if (!isStatic(method))
+			signature.append("L" + typeSignature.getTypeSignature(method.containingClass()) + ";");
+		for (Parameter param : method.parameters())
+			signature.append("[" + typeSignature.getTypeSignature(param.type()));
+		signature.append(")");
+		signature.append(isVoid(method) ? "V" : "[" + typeSignature.getTypeSignature(method.returnType()));
+		return signature.toString();
+	}
+
+	private String getBatchValueType(MethodDoc method) {
+		return (isVoid(method) ? "void" : "jsize");
+	}
+
+	/*
+	 * The parameters of a batch method: a span of each parameter, and a buffer
+	 * for the results.
+	 */
+	private String getBatchArgumentsSignature(MethodDoc method) {
+		StringBuilder signature = new StringBuilder();
+		for (Parameter param : method.parameters()) {
+			if (signature.length() > 0)
+				signature.append(", ");
+			signature.append("const ::JNI::ArraySpan<" + jniTypeOf(param.type()).cppType + ">& " + param.name());
+		}
+		if (!isVoid(method))
+			signature.append(", " + jniTypeOf(method.returnType()).cppType + "* " + getResultsName(method));
+		return signature.toString();
+	}
+
+	private static String getResultsName(MethodDoc method) {
+		Set<String> names = new HashSet<String>();
+		for (Parameter param : method.parameters())
+			names.add(param.name());
+		return uniqueName("results", names);
+	}
+
+	/*
+	 * The Java companion classes of the batched methods and of the packer, if
+	 * the class has them.
+	 */
+	@Override
+	protected Map<String, byte[]> writeJavaSources(ClassDoc clazz) throws ClassNotFoundException {
+		Map<String, byte[]> sources = super.writeJavaSources(clazz);
+		Map<MethodDoc, String> batchMethods = getBatchMethods(clazz);
+		if (!batchMethods.isEmpty()) {
+			ByteArrayOutputStream out = new ByteArrayOutputStream(4096);
+			writeBatchClass(out, clazz, batchMethods.keySet());
+			sources.put(getBatchClassSignature(clazz).replace('/', '.'), out.toByteArray());
+		}
+		if (hasPackerClass(clazz)) {
+			ByteArrayOutputStream out = new ByteArrayOutputStream(1024);
+			writePackerClass(out, clazz);
+			sources.put(getPackerClassSignature(clazz).replace('/', '.'), out.toByteArray());
+		}
+		return sources;
+	}
+
+	/**
+	 * Returns the qualified names of the Java companion classes generated for
+	 * the class, which need a Java output directory unless a source writer
+	 * receives them.
+	 */
+	public List<String> getJavaSourceNames(ClassDoc clazz) throws ClassNotFoundException {
+		List<String> names = new ArrayList<String>();
+		if (getAnnotation(clazz, JNIClass.class) == null)
+			return names;
+		if (!getBatchMethods(clazz).isEmpty())
+			names.add(getBatchClassSignature(clazz).replace('/', '.'));
+		if (hasPackerClass(clazz))
+			names.add(getPackerClassSignature(clazz).replace('/', '.'));
+		return names;
+	}
+
+	private boolean hasPackerClass(ClassDoc clazz) throws ClassNotFoundException {
+		return isPack(clazz) && hasPacker(clazz);
+	}
+
+	/*
+	 * The generated packer returns the hash of the layout and then each field,
+	 * as Snapshot() unpacks them: floating point fields as their raw bits and
+	 * booleans as 0 or 1.
+	 */
+	private void writePackerClass(OutputStream o, ClassDoc clazz) throws ClassNotFoundException {
+		PrintWriter pw = wrapWriter(o);
+		String name = getPackerClassName(clazz);
+		pw.println(getFileTop());
+		String pkg = clazz.containingPackage().name();
+		if (pkg.length() > 0) {
+			pw.println("package " + pkg + ";");
+			pw.println();
+		}
+		pw.println("/*");
+		pw.println(" * Packs the snapshot fields of " + clazz.qualifiedName() + " for " + baseFileName(clazz) + "::Snapshot(),");
+		pw.println(" * after the hash of their layout.");
+		pw.println(" */");
+		pw.println("final class " + name + " {");
+		pw.println();
+		pw.println("\t" + "static final long LAYOUT = " + getLayoutLiteral(clazz, "L") + ";");
+		pw.println();
+		pw.println("\t" + "private " + name + "() {");
+		pw.println("\t" + "}");
+		pw.println();
+		pw.println("\t" + "static long[] " + PACK_METHOD + "(" + clazz.qualifiedName() + " object) {");
+		pw.println("\t\t" + "return new long[] {");
+		pw.println("\t\t\t" + "LAYOUT,");
+		for (FieldDoc field : getPackedFields(clazz)) {
+			String value = "object." + field.name();
+			String type = field.type().typeName();
+			if (type.equals("double"))
+				value = "Double.doubleToRawLongBits(" + value + ")";
+			else if (type.equals("float"))
+				value = "Float.floatToRawIntBits(" + value + ")";
+			else if (type.equals("boolean"))
+				value = "(" + value + " ? 1 : 0)";
+			pw.println("\t\t\t" + value + ",");
+		}
+		pw.println("\t\t" + "};");
+		pw.println("\t" + "}");
+		pw.println("}");
+		pw.flush();
+	}
+
+	/*
+	 * Each companion method calls the method for the elements i of its arrays,
+	 * as many times as the first array is long, and returns the results in an
+	 * array.
+	 */
+	private void writeBatchClass(OutputStream o, ClassDoc clazz, Set<MethodDoc> methods) {
+		PrintWriter pw = wrapWriter(o);
+		String name = getBatchClassName(clazz);
+		pw.println(getFileTop());
+		String pkg = clazz.containingPackage().name();
+		if (pkg.length() > 0) {
+			pw.println("package " + pkg + ";");
+			pw.println();
+		}
+		pw.println("/*");
+		pw.println(" * The batched methods of " + clazz.qualifiedName() + ", each called by " + baseFileName(clazz));
+		pw.println(" * with arrays of arguments in one JNI call.");
+		pw.println(" */");
+		pw.println("final class " + name + " {");
+		pw.println();
+		pw.println("\t" + "private " + name + "() {");
+		pw.println("\t" + "}");
+		for (MethodDoc method : methods) {
+			Parameter[] params = method.parameters();
+			Set<String> names = new HashSet<String>();
+			for (Parameter param : params)
+				names.add(param.name());
+			String object = uniqueName("object", names);
+			names.add(object);
+			String index = uniqueName("i", names);
+			names.add(index);
+			String result = uniqueName("result", names);
+			String resultType = method.returnType().typeName();
+
+			StringBuilder signature = new StringBuilder();
+			StringBuilder arguments = new StringBuilder();
+			if (!isStatic(method))
+				signature.append(clazz.qualifiedName() + " " + object);
+			for (Parameter param : params) {
+				if (signature.length() > 0)
+					signature.append(", ");
+				signature.append(param.type().typeName() + "[] " + param.name());
+				if (arguments.length() > 0)
+					arguments.append(", ");
+				arguments.append(param.name() + "[" + index + "]");
+			}
+			String call = (isStatic(method) ? clazz.qualifiedName() : object) + "." + method.name() + "(" + arguments + ")";
+			String count = params[0].name() + ".length";
+
+			pw.println();
+			pw.println("\t" + "static " + (isVoid(method) ? "void" : resultType + "[]") + " " + method.name() + "(" + signature + ") {");
+			if (isVoid(method)) {
+				pw.println("\t\t" + "for (int " + index + " = 0; " + index + " < " + count + "; " + index + "++)");
+				pw.println("\t\t\t" + call + ";");
+			} else {
+				pw.println("\t\t" + resultType + "[] " + result + " = new " + resultType + "[" + count + "];");
+				pw.println("\t\t" + "for (int " + index + " = 0; " + index + " < " + count + "; " + index + "++)");
+				pw.println("\t\t\t" + result + "[" + index + "] = " + call + ";");
+				pw.println("\t\t" + "return " + result + ";");
+			}
+			pw.println("\t" + "}");
+		}
+		pw.println("}");
+		pw.flush();
+	}
+
+	/*
+	 * The fields marked with the JNIField annotation, in declaration order, and
+	 * the names of their field IDs.
+	 */
+	protected final Map<FieldDoc, String> getFieldIDs(ClassDoc clazz) throws ClassNotFoundException {
+		Map<FieldDoc, String> fieldIDs = new LinkedHashMap<FieldDoc, String>();
+		for (FieldDoc field : clazz.fields()) {
+			if (getAnnotation(field, JNIField.class) != null)
+				fieldIDs.put(field, getFieldName(field) + "_field");
+		}
+		return fieldIDs;
+	}
+
+	/*
+	 * The native methods of the class, if it asks for them to be registered, in
+	 * declaration order, and the names of their functions.  Overloads are
+	 * numbered.
+	 */
+	protected final Map<MethodDoc, String> getNatives(ClassDoc clazz) {
+		Map<MethodDoc, String> natives = new LinkedHashMap<MethodDoc, String>();
+		if (!isNatives(clazz))
+			return natives;
+		Map<String, Integer> overloads = new HashMap<String, Integer>();
+		for (MethodDoc method : clazz.methods()) {
+			if (method.isNative()) {
+				String name = getMethodName(method);
+				Integer count = overloads.get(name);
+				overloads.put(name, (count == null ? 1 : count + 1));
+				natives.put(method, (count == null ? name : name + "_" + count));
+			}
+		}
+		return natives;
+	}
+
+	private boolean isNatives(ClassDoc clazz) {
+		return Boolean.TRUE.equals(getAnnotationValue(clazz, JNIClass.class, "natives"));
+	}
+
+	/*
+	 * The compile-time constants of the class, if it asks for them: its static
+	 * final fields of a primitive type or String with a constant value, in
+	 * declaration order, and their C++ names.  A constant named like a member
+	 * of the peer, or with a name C++ reserves by its form, is left out.  One
+	 * named like a keyword or a common macro gets a trailing underscore, and a
+	 * number if that is taken.
+	 */
+	protected final Map<FieldDoc, String> getConstants(ClassDoc clazz) throws ClassNotFoundException {
+		Map<FieldDoc, String> constants = new LinkedHashMap<FieldDoc, String>();
+		if (!Boolean.TRUE.equals(getAnnotationValue(clazz, JNIClass.class, "constants")))
+			return constants;
+
+		Set<String> members = getMemberNames(clazz);
+		Set<String> names = new HashSet<String>();
+		for (FieldDoc field : clazz.fields()) {
+			if (field.isStatic() && field.isFinal() && field.constantValue() != null)
+				names.add(getFieldName(field));
+		}
+		for (FieldDoc field : clazz.fields()) {
+			if (!field.isStatic() || !field.isFinal() || field.constantValue() == null)
+				continue;
+			String name = getFieldName(field);
+			if (members.contains(name) || name.contains("__") || (name.length() > 1 && name.charAt(0) == '_' && Character.isUpperCase(name.charAt(1))))
+				continue;
+			if (RESERVED_NAMES.contains(name) || name.startsWith("JNI_")) {
+				/* Numbered if the name with the underscore is taken, since __ is reserved too */
+				String base = (name.endsWith("_") ? name : name + "_");
+				name = base;
+				for (int i = 1; members.contains(name) || names.contains(name); i++)
+					name = base + i;
+				names.add(name);
+			}
+			constants.put(field, name);
+		}
+		return constants;
+	}
+
+	/*
+	 * Names a constant can't have in C++: the keywords, and macros of the C,
+	 * POSIX and Windows headers a peer may be compiled with.
+	 */
+	private static final Set<String> RESERVED_NAMES = new HashSet<String>(Arrays.asList(
+		/* C++ keywords and alternative tokens */
+		"alignas", "alignof", "and", "and_eq", "asm", "auto", "bitand", "bitor", "bool", "break", "case", "catch",
+		"char", "char8_t", "char16_t", "char32_t", "class", "compl", "concept", "const", "consteval", "constexpr",
+		"constinit", "const_cast", "continue", "co_await", "co_return", "co_yield", "decltype", "default", "delete",
+		"do", "double", "dynamic_cast", "else", "enum", "explicit", "export", "extern", "false", "float", "for",
+		"friend", "goto", "if", "inline", "int", "long", "mutable", "namespace", "new", "noexcept", "not", "not_eq",
+		"nullptr", "operator", "or", "or_eq", "private", "protected", "public", "register", "reinterpret_cast",
+		"requires", "return", "short", "signed", "sizeof", "static", "static_assert", "static_cast", "struct",
+		"switch", "template", "this", "thread_local", "throw", "true", "try", "typedef", "typeid", "typename",
+		"union", "unsigned", "using", "virtual", "void", "volatile", "wchar_t", "while",
+		/* C and POSIX macros */
+		"NULL", "EOF", "BUFSIZ", "FILENAME_MAX", "SEEK_SET", "SEEK_CUR", "SEEK_END", "EXIT_SUCCESS", "EXIT_FAILURE",
+		"RAND_MAX", "CHAR_BIT", "CHAR_MIN", "CHAR_MAX", "SHRT_MIN", "SHRT_MAX", "INT_MIN", "INT_MAX", "LONG_MIN",
+		"LONG_MAX", "UINT_MAX", "SIZE_MAX", "PATH_MAX", "EDOM", "ERANGE", "EILSEQ", "EINVAL", "ENOMEM", "ENOENT",
+		"EEXIST", "EACCES", "EAGAIN", "EINTR", "EIO", "EBUSY", "EPERM", "ETIMEDOUT", "DOMAIN", "SING", "OVERFLOW",
+		"UNDERFLOW", "TLOSS", "PLOSS", "HUGE", "INFINITY", "NAN", "M_PI", "M_E", "SIGINT", "SIGTERM", "SIGSEGV",
+		"SIGABRT", "SIGFPE", "SIGILL", "errno", "assert", "offsetof", "stdin", "stdout", "stderr", "unix", "linux",
+		"DEBUG", "NDEBUG", "None", "Bool", "Status", "Success", "True", "False",
+		/* Windows macros */
+		"TRUE", "FALSE", "ERROR", "NO_ERROR", "DELETE", "IN", "OUT", "OPTIONAL", "CONST", "VOID", "BOOL", "BOOLEAN",
+		"BYTE", "WORD", "DWORD", "CHAR", "INT", "LONG", "FLOAT", "PASCAL", "CALLBACK", "WINAPI", "APIENTRY", "NEAR",
+		"FAR", "near", "far", "min", "max", "interface", "small", "hyper", "INFINITE", "MAX_PATH", "ABSOLUTE",
+		"RELATIVE", "TRANSPARENT", "OPAQUE", "GENERIC_READ", "GENERIC_WRITE", "ERROR_SUCCESS", "S_OK", "S_FALSE",
+		"E_FAIL", "E_INVALIDARG", "E_OUTOFMEMORY", "E_NOTIMPL"));
+
+	/*
+	 * The names the peer declares, or uses from JNI::ManagedPeer in its methods.
+	 */
+	private Set<String> getMemberNames(ClassDoc clazz) throws ClassNotFoundException {
+		Set<String> names = new HashSet<String>();
+		names.add(baseFileName(clazz));
+		for (String name : new String[] { "GetClass", "Initialize", "Uninitialize", "RegisterNatives", "Natives",
+				"Fields", "Snapshot", "WriteBack", "LocalFrame", "EnvScope", "Env", "Object", "New", "NewArray" })
+			names.add(name);
+		for (MethodDoc method : clazz.methods()) {
+			if (getAnnotation(method, JNIMethod.class) != null)
+				names.add(getMethodName(method));
+		}
+		for (MethodDoc method : getBatchMethods(clazz).keySet())
+			names.add(getMethodName(method) + "Batch");
+		if (!getBatchMethods(clazz).isEmpty())
+			names.add("GetBatchClass");
+		for (FieldDoc field : getFieldIDs(clazz).keySet()) {
+			names.add("get_" + getFieldName(field));
+			names.add("set_" + getFieldName(field));
+		}
+		return names;
+	}
+
+	private static String getConstantType(FieldDoc field) {
+		if (field.type().isPrimitive())
+			return "j" + field.type().typeName();
+		return "const char*";
+	}
+
+	/*
+	 * The value of a constant as a C++ literal of its type.  The minimum int and
+	 * long can't be written as literals, and infinities and NaN have none.
+	 */
+	private static String getConstantLiteral(FieldDoc field) {
+		Object value = field.constantValue();
+		String type = field.type().typeName();
+		if (value instanceof Boolean)
+			return (((Boolean)value).booleanValue() ? "JNI_TRUE" : "JNI_FALSE");
+		if (value instanceof String)
+			return "\"" + escape((String)value) + "\"";
+		if (type.equals("long")) {
+			long v = ((Number)value).longValue();
+			return (v == Long.MIN_VALUE ? "(-9223372036854775807LL - 1)" : v + "LL");
+		}
+		if (type.equals("float")) {
+			float v = ((Number)value).floatValue();
+			if (Float.isNaN(v))
+				return "std::numeric_limits<jfloat>::quiet_NaN()";
+			if (Float.isInfinite(v))
+				return (v < 0 ? "-" : "") + "std::numeric_limits<jfloat>::infinity()";
+			return v + "f";
+		}
+		if (type.equals("double")) {
+			double v = ((Number)value).doubleValue();
+			if (Double.isNaN(v))
+				return "std::numeric_limits<jdouble>::quiet_NaN()";
+			if (Double.isInfinite(v))
+				return (v < 0 ? "-" : "") + "std::numeric_limits<jdouble>::infinity()";
+			return String.valueOf(v);
+		}
+		int v = (value instanceof Character ? (Character)value : ((Number)value).intValue());
+		return (v == Integer.MIN_VALUE ? "(-2147483647 - 1)" : String.valueOf(v));
+	}
+
+	/*
+	 * A string as the contents of a C++ string literal, in the modified UTF-8
+	 * of NewStringUTF.  Other than printable ASCII is written in octal, which
+	 * takes at most three digits, so the next character can't extend it.
+	 */
+	private static String escape(String value) {
+		StringBuilder s = new StringBuilder();
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c == '"' || c == '\\' || c == '?')
+				s.append('\\').append(c);
+			else if (c == '\n')
+				s.append("\\n");
+			else if (c == '\t')
+				s.append("\\t");
+			else if (c >= 0x20 && c < 0x7f)
+				s.append(c);
+			else if (c != 0 && c < 0x80)
+				octal(s, c);
+			else if (c < 0x800) {
+				octal(s, 0xc0 | (c >> 6));
+				octal(s, 0x80 | (c & 0x3f));
+			} else {
+				octal(s, 0xe0 | (c >> 12));
+				octal(s, 0x80 | ((c >> 6) & 0x3f));
+				octal(s, 0x80 | (c & 0x3f));
+			}
+		}
+		return s.toString();
+	}
+
+	private static void octal(StringBuilder s, int b) {
+		s.append('\\').append((char)('0' + (b >> 6))).append((char)('0' + ((b >> 3) & 7))).append((char)('0' + (b & 7)));
+	}
+
+	private static boolean needsLimits(Map<FieldDoc, String> constants) {
+		for (FieldDoc field : constants.keySet()) {
+			String literal = getConstantLiteral(field);
+			if (literal.startsWith("std::numeric_limits") || literal.startsWith("-std::numeric_limits"))
+				return true;
+		}
+		return false;
+	}
+
+	/*
+	 * The instance fields marked with the JNIField annotation, if the class asks
+	 * for a snapshot of them, or an empty list.
+	 */
+	protected final List<FieldDoc> getSnapshotFields(ClassDoc clazz) throws ClassNotFoundException {
+		List<FieldDoc> fields = new ArrayList<FieldDoc>();
+		if (!isSnapshot(clazz))
+			return fields;
+		for (FieldDoc field : getFieldIDs(clazz).keySet()) {
+			if (!field.isStatic())
+				fields.add(field);
+		}
+		return fields;
+	}
+
+	private boolean isSnapshot(ClassDoc clazz) {
+		return Boolean.TRUE.equals(getAnnotationValue(clazz, JNIClass.class, "snapshot")) || getPackerName(clazz) != null || isPack(clazz);
+	}
+
+	/*
+	 * Whether the packer is generated, as the companion class <Class>Packer.
+	 */
+	private boolean isPack(ClassDoc clazz) {
+		return Boolean.TRUE.equals(getAnnotationValue(clazz, JNIClass.class, "pack"));
+	}
+
+	/*
+	 * Whether Snapshot() calls a packer: one is generated or named, and it has
+	 * fields to pack.
+	 */
+	private boolean hasPacker(ClassDoc clazz) throws ClassNotFoundException {
+		return (isPack(clazz) || getPacker(clazz) != null) && !getPackedFields(clazz).isEmpty();
+	}
+
+	/*
+	 * The snapshot fields the packer packs: the primitive ones, which the
+	 * generated packer must also be able to read from outside the class.
+	 */
+	protected final List<FieldDoc> getPackedFields(ClassDoc clazz) throws ClassNotFoundException {
+		List<FieldDoc> fields = new ArrayList<FieldDoc>();
+		for (FieldDoc field : getSnapshotFields(clazz)) {
+			if (field.type().isPrimitive() && !(isPack(clazz) && (field.isPrivate() || clazz.isPrivate())))
+				fields.add(field);
+		}
+		return fields;
+	}
+
+	private String getPackerName(ClassDoc clazz) {
+		String packer = (String)getAnnotationValue(clazz, JNIClass.class, "packer");
+		return (packer != null && packer.length() > 0 ? packer : null);
+	}
+
+	/*
+	 * The method of the class that packs the snapshot fields into a long[], or
+	 * null.
+	 */
+	protected final MethodDoc getPacker(ClassDoc clazz) {
+		String packer = getPackerName(clazz);
+		if (packer == null)
+			return null;
+		for (MethodDoc method : clazz.methods()) {
+			if (method.name().equals(packer) && !method.isStatic() && method.parameters().length == 0
+					&& typeSignature.getTypeSignature(method).equals("()[J"))
+				return method;
+		}
+		return null;
+	}
+
 	protected final String[] getNamespace(ClassDoc clazz) throws ClassNotFoundException {
 		AnnotationTypeDoc jniClass = getAnnotation(clazz, JNIClass.class);
 		if (jniClass == null)
 			Util.bug("Tried to define non annotated class.");
 
-		for (AnnotationTypeElementDoc element : jniClass.elements()) {
-			// How do I read the value out of this?
-			//return value.split("\\.");
-		}
+		String value = (String)getAnnotationValue(clazz, JNIClass.class, "value");
+		if (value != null && value.length() > 0)
+			return value.split("\\.");
 
 		// Return the fallback namespace
 		if (namespace == null)
@@ -231,36 +2152,333 @@ public class JNIGenerator extends Gen {
 	}
 
 	protected final boolean isVoid(MethodDoc method) {
-		Type returnType = method.returnType();
-		return (jniType(returnType) == "void");
+		return jniTypeOf(method.returnType()).isVoid();
 	}
 	
 	protected final boolean isStatic(MethodDoc method) {
 		return method.isStatic();
 	}
 	
+	/*
+	 * The C++ return type of a method of the peer, a Result with the RESULT
+	 * policy.
+	 */
 	protected final String getReturnType(MethodDoc method) {
-		Type returnType = method.returnType();
-		return jniType(returnType);
+		return withPolicy(method, getValueType(method));
+	}
+
+	private String withPolicy(ExecutableMemberDoc method, String valueType) {
+		if (getExceptionPolicy(method).equals("RESULT"))
+			return "::JNI::Result<" + valueType + ">";
+		return valueType;
+	}
+
+	/*
+	 * The policy of a method or constructor for Java exceptions: its own, or
+	 * that of its class, or that of the generator.
+	 */
+	protected final String getExceptionPolicy(ExecutableMemberDoc method) {
+		Object policy = getAnnotationValue(method, JNIMethod.class, "exceptions");
+		if (policy == null || policy.toString().equals("DEFAULT"))
+			policy = getAnnotationValue(method.containingClass(), JNIClass.class, "exceptions");
+		if (policy == null || policy.toString().equals("DEFAULT"))
+			return exceptions;
+		return policy.toString();
+	}
+
+	/*
+	 * The C++ type of the result of a method: a view, a LocalRef or a JNI type.
+	 */
+	protected final String getValueType(MethodDoc method) {
+		String mode = getArrayMode(method);
+		String element = getArrayElementType(method.returnType(), mode);
+		if (element != null)
+			return (mode.equals("CRITICAL") ? "::JNI::CriticalArray<" : "::JNI::ArrayRegion<") + element + ">";
+		if (isStringView(method, method.returnType()))
+			return "::JNI::StringUTF";
+		return getResultType(method.containingClass(), jniTypeOf(method.returnType()));
+	}
+
+	/*
+	 * The C++ type of a result of the given type: a LocalRef of a reference
+	 * type if the class asks for them.
+	 */
+	private String getResultType(ClassDoc clazz, JNIType type) {
+		if (type.kind == JNIType.Kind.REFERENCE && isLocalRefs(clazz))
+			return "::JNI::LocalRef<" + type.cppType + ">";
+		return type.cppType;
+	}
+
+	/*
+	 * The expression that converts the result of a call to its C++ type.
+	 */
+	private String getResult(ClassDoc clazz, JNIType type, String call, String env) {
+		if (type.kind == JNIType.Kind.REFERENCE && isLocalRefs(clazz))
+			return getResultType(clazz, type) + "(" + envOf(env) + ", " + type.result(call) + ")";
+		return type.result(call);
+	}
+
+	private boolean isLocalRefs(ClassDoc clazz) {
+		return Boolean.TRUE.equals(getAnnotationValue(clazz, JNIClass.class, "localRefs"));
+	}
+
+	private boolean isEnv(ClassDoc clazz) {
+		return Boolean.TRUE.equals(getAnnotationValue(clazz, JNIClass.class, "env"));
+	}
+
+	/*
+	 * The name of the JNIEnv* parameter of the overloads of a method, or null
+	 * if its class has none.
+	 */
+	private String getEnvName(ExecutableMemberDoc method) {
+		if (!isEnv(method.containingClass()))
+			return null;
+		Set<String> names = new HashSet<String>();
+		for (Parameter param : method.parameters())
+			names.add(param.name());
+		return uniqueName("env", names);
+	}
+
+	/*
+	 * The JNIEnv a body calls, as a reference: the parameter of an overload
+	 * taking a JNIEnv*, or else Env().
+	 */
+	private static String envOf(String env) {
+		return (env == null ? "Env()" : "*" + env);
+	}
+
+	private static String callOn(String env) {
+		return (env == null ? "Env()." : env + "->");
+	}
+
+	private static String withEnv(String signature, String env) {
+		if (env == null)
+			return signature;
+		return "JNIEnv* " + env + (signature.length() > 0 ? ", " + signature : "");
+	}
+
+	/*
+	 * Declare a function of the peer.  With a JNIEnv* parameter, the function
+	 * without one is defined inline to pass Env().
+	 */
+	private void writeDeclaration(PrintWriter pw, String returnType, String name, String signature, String arguments, String qualifiers, String env) {
+		if (env == null) {
+			pw.println("\t" + returnType + " " + name + "(" + signature + ")" + qualifiers + ";");
+			return;
+		}
+		String forward = name + "(&Env()" + (arguments.length() > 0 ? ", " + arguments : "") + ");";
+		pw.println("\t" + returnType + " " + name + "(" + withEnv(signature, env) + ")" + qualifiers + ";");
+		pw.println("\t" + returnType + " " + name + "(" + signature + ")" + qualifiers + " { " + (returnType.endsWith(" void") || returnType.equals("void") ? "" : "return ") + forward + " }");
+	}
+
+	/*
+	 * The names of the parameters of a method, to pass them on.
+	 */
+	private static String getParameterNames(ExecutableMemberDoc method) {
+		StringBuilder names = new StringBuilder();
+		for (Parameter param : method.parameters()) {
+			if (names.length() > 0)
+				names.append(", ");
+			names.append(param.name());
+		}
+		return names.toString();
+	}
+
+	/*
+	 * The parameters of a factory: those of the constructor, or for NewArray()
+	 * the array, the count and an array of each parameter.
+	 */
+	private String getConstructorSignature(ConstructorDoc constructor, boolean bulk) {
+		StringBuilder signature = new StringBuilder();
+		if (bulk) {
+			String[] arrayNames = getArrayNames(constructor);
+			signature.append("jobjectArray " + arrayNames[0] + ", jsize " + arrayNames[1]);
+		}
+		for (Parameter param : constructor.parameters()) {
+			if (signature.length() > 0)
+				signature.append(", ");
+			JNIType type = jniTypeOf(param.type());
+			signature.append(bulk ? "const " + type.cppType + "* " + param.name() : type.parameter(param.name()));
+		}
+		return signature.toString();
+	}
+
+	/*
+	 * The names of the array and count parameters of NewArray().
+	 */
+	private static String[] getArrayNames(ConstructorDoc constructor) {
+		Set<String> names = new HashSet<String>();
+		for (Parameter param : constructor.parameters())
+			names.add(param.name());
+		String array = uniqueName("array", names);
+		names.add(array);
+		return new String[] { array, uniqueName("count", names) };
+	}
+
+	/*
+	 * Whether the strings of a method are passed as characters, as given with
+	 * the JNIMethod annotation.
+	 */
+	protected final boolean isStrings(MethodDoc method) {
+		return Boolean.TRUE.equals(getAnnotationValue(method, JNIMethod.class, "strings"));
+	}
+
+	private boolean isStringView(MethodDoc method, Type t) {
+		return isStrings(method) && t.dimension().length() == 0 && t.qualifiedTypeName().equals("java.lang.String")
+				&& jniTypeOf(t).cppType.equals("jstring");
+	}
+
+	/*
+	 * The array mode of a method, REFERENCE unless given with the JNIMethod annotation.
+	 */
+	protected final String getArrayMode(MethodDoc method) {
+		Object mode = getAnnotationValue(method, JNIMethod.class, "arrays");
+		return (mode != null ? mode.toString() : "REFERENCE");
+	}
+
+	/*
+	 * The C++ element type of a primitive array passed as a view in the given
+	 * mode, or null if the type is passed as it is.
+	 */
+	protected final String getArrayElementType(Type t, String mode) {
+		if (mode.equals("REFERENCE"))
+			return null;
+		JNIType type = jniTypeOf(t);
+		if (type.arrayKind != JNIType.ArrayKind.PRIMITIVE || type.kind != JNIType.Kind.REFERENCE)
+			return null;
+		return "j" + t.typeName();
+	}
+
+	/*
+	 * The C++ type a parameter is taken as instead of its JNI type: a span for
+	 * a primitive array, a StringRef for a string.  Null if it is passed as it
+	 * is.  Views are taken by const reference; a span made with Out() or
+	 * InOut() still writes back to the memory it refers to.
+	 */
+	private String getViewParameterType(MethodDoc method, Type t) {
+		String element = getArrayElementType(t, getArrayMode(method));
+		if (element != null)
+			return "::JNI::ArraySpan<" + element + ">";
+		if (isStringView(method, t))
+			return "::JNI::StringRef";
+		return null;
+	}
+
+	/*
+	 * The argument that makes the Java array or string of a view for a call,
+	 * or null if the parameter is passed as it is.
+	 */
+	private String getViewArgumentType(MethodDoc method, Type t) {
+		String element = getArrayElementType(t, getArrayMode(method));
+		if (element != null)
+			return "::JNI::ArrayArgument<" + element + ">";
+		if (isStringView(method, t))
+			return "::JNI::StringArgument";
+		return null;
+	}
+
+	/*
+	 * Whether a parameter is a primitive array taken as a span.
+	 */
+	private boolean isArrayView(MethodDoc method, Parameter param) {
+		return getArrayElementType(param.type(), getArrayMode(method)) != null;
+	}
+
+	/*
+	 * The forms of the overloads of a method: with spans, and also raw, taking
+	 * Java arrays the caller already has without a copy, if it has spans.
+	 */
+	private boolean[] getArrayForms(MethodDoc method) {
+		for (Parameter param : method.parameters()) {
+			if (isArrayView(method, param))
+				return new boolean[] { false, true };
+		}
+		return new boolean[] { false };
+	}
+
+	private String getViewArgumentName(MethodDoc method, Parameter param) {
+		return param.name() + (isStringView(method, param.type()) ? "_string" : "_array");
+	}
+
+	private boolean isViewResult(MethodDoc method) {
+		Type t = method.returnType();
+		return getArrayElementType(t, getArrayMode(method)) != null || isStringView(method, t);
+	}
+
+	/*
+	 * The element types of the overloads that copy the result into a buffer of
+	 * the caller: the array of a REGION method, and the UTF-8 or UTF-16
+	 * characters of a string.
+	 */
+	private List<String> getBufferTypes(MethodDoc method) {
+		List<String> buffers = new ArrayList<String>(2);
+		String mode = getArrayMode(method);
+		String element = getArrayElementType(method.returnType(), mode);
+		if (element != null && mode.equals("REGION"))
+			buffers.add(element);
+		if (isStringView(method, method.returnType())) {
+			buffers.add("char");
+			buffers.add("jchar");
+		}
+		return buffers;
+	}
+
+	/*
+	 * The parameters of a buffer overload, or their names if the buffer type is
+	 * null.
+	 */
+	private String getBufferSignature(MethodDoc method, String argumentSignature, String buffer) {
+		String[] bufferNames = getBufferNames(method);
+		return (argumentSignature.length() > 0 ? argumentSignature + ", " : "")
+				+ (buffer != null ? buffer + "* " + bufferNames[0] + ", jsize " + bufferNames[1] : bufferNames[0] + ", " + bufferNames[1]);
+	}
+
+	/*
+	 * The names of the buffer and capacity parameters of a buffer overload,
+	 * apart from those of the parameters and the JNIEnv*.
+	 */
+	private String[] getBufferNames(MethodDoc method) {
+		Set<String> names = new HashSet<String>();
+		for (Parameter param : method.parameters())
+			names.add(param.name());
+		String env = getEnvName(method);
+		if (env != null)
+			names.add(env);
+		String buffer = uniqueName("buffer", names);
+		names.add(buffer);
+		return new String[] { buffer, uniqueName("capacity", names) };
 	}
 	
 	protected final String getMethodName(MethodDoc method) {
 		return Mangle.mangle(method.name(), Mangle.Type.FIELDSTUB);
 	}
 	
+	protected final String getFieldName(FieldDoc field) {
+		return Mangle.mangle(field.name(), Mangle.Type.FIELDSTUB);
+	}
+
 	protected final String getArgumentsSignature(MethodDoc method, boolean includeTypes) {
-		StringBuffer signature = new StringBuffer();
+		return getArgumentsSignature(method, includeTypes, false);
+	}
+
+	/*
+	 * The parameters of a method, or the arguments passing them on.  In the raw
+	 * form the primitive arrays of spans are taken as Java arrays instead.
+	 */
+	private String getArgumentsSignature(MethodDoc method, boolean includeTypes, boolean raw) {
+		StringBuilder signature = new StringBuilder();
 
 		/* Write out the method parameters */
 		Parameter[] paramArgs = method.parameters();
 		for (int i = 0; i < paramArgs.length; i++) {
 			Parameter param = paramArgs[i];
-			if (includeTypes)
-			{
-				Type paramType = param.type();
-				signature.append(jniType(paramType) + " ");
-			}
-			signature.append(param.name());
+			String view = (raw && isArrayView(method, param) ? null : getViewParameterType(method, param.type()));
+			if (view != null && includeTypes)
+				signature.append("const " + view + "& " + param.name());
+			else if (includeTypes)
+				signature.append(jniTypeOf(param.type()).parameter(param.name()));
+			else
+				signature.append(getArgument(method, param, raw));
 			if (i+1 < paramArgs.length)
 				signature.append(", ");
 		}
@@ -268,88 +2486,87 @@ public class JNIGenerator extends Gen {
 		return signature.toString();
 	}
 	
-	private final String getCallSignature(MethodDoc method, String baseSignature) {
-		return String.format("Env().Call%s%sMethod", isStatic(method) ? "Static" : "", baseSignature);
+	/*
+	 * The expression passing a parameter to JNI.
+	 */
+	private String getArgument(MethodDoc method, Parameter param, boolean raw) {
+		if (getViewParameterType(method, param.type()) != null && !(raw && isArrayView(method, param)))
+			return getViewArgumentName(method, param) + ".get()";
+		return jniTypeOf(param.type()).argument(param.name());
+	}
+
+	/*
+	 * The member of jvalue holding a value of the given type.
+	 */
+	private static String jvalueMember(Type t) {
+		if (!t.isPrimitive() || t.dimension().length() > 0)
+			return "l";
+		String name = t.typeName();
+		if (name.equals("boolean"))
+			return "z";
+		if (name.equals("long"))
+			return "j";
+		return name.substring(0, 1);
+	}
+
+	private final String getCallSignature(MethodDoc method, String baseSignature, String env) {
+		return String.format("%sCall%s%sMethod", callOn(env), isStatic(method) ? "Static" : (isNonvirtual(method) ? "Nonvirtual" : ""), baseSignature);
+	}
+
+	/*
+	 * Whether an instance method can be called without a virtual lookup: no
+	 * subclass can override it, or the annotation says none does.
+	 */
+	protected final boolean isNonvirtual(MethodDoc method) {
+		if (isStatic(method))
+			return false;
+		return method.isFinal() || method.isPrivate() || method.containingClass().isFinal()
+				|| Boolean.TRUE.equals(getAnnotationValue(method, JNIMethod.class, "nonvirtual"));
 	}
 	
 	protected final String getCallSignature(MethodDoc method) {
-		String returnType = getReturnType(method);
-		
-		String baseSignature = null;
-		boolean needsCast = false;
-		boolean needsReturn = true;
-
-		if (returnType.equals("void")) {
-			baseSignature = "Void";
-			needsReturn = false;
-		} else if (returnType.equals("jboolean")) {
-			baseSignature = "Boolean";
-		} else if (returnType.equals("jbyte")) {
-			baseSignature = "Byte";
-		} else if (returnType.equals("jchar")) {
-			baseSignature = "Char";
-		} else if (returnType.equals("jshort")) {
-			baseSignature = "Short";
-		} else if (returnType.equals("jint")) {
-			baseSignature = "Int";
-		} else if (returnType.equals("jlong")) {
-			baseSignature = "Long";
-		} else if (returnType.equals("jfloat")) {
-			baseSignature = "Float";
-		} else if (returnType.equals("jdouble")) {
-			baseSignature = "Double";
-		} else if (returnType.equals("jobject")) {
-			baseSignature = "Object";
-		} else { // jclass, jstring, jthrowable, or j*Array-types
-			baseSignature = "Object";
-			needsCast = true;
-		}
-
-		StringBuffer signature = new StringBuffer();
-		if (needsReturn)
-			signature.append("return ");
-		if (needsCast)
-			signature.append("(" + returnType + ")");
-		signature.append(getCallSignature(method, baseSignature));
+		return getCallSignature(method, jniTypeOf(method.returnType()).callSuffix, null);
+	}
 
-		return signature.toString();
+	/*
+	 * Returns the result of a call converted to the C++ type of the value, or
+	 * copied into the buffer of a buffer overload.
+	 */
+	private String getValue(MethodDoc method, String call, String buffer, String env) {
+		if (buffer != null) {
+			String[] bufferNames = getBufferNames(method);
+			return "::JNI::" + (isStringView(method, method.returnType()) ? "CopyString" : "CopyArray") + "(" + envOf(env) + ", " + call + ", " + bufferNames[0] + ", " + bufferNames[1] + ")";
+		}
+		return getCallValue(method, call, env);
+	}
+
+	/*
+	 * Returns the call, with its result converted to the C++ type of the value.
+	 */
+	protected final String getCallValue(MethodDoc method, String call) {
+		return getCallValue(method, call, null);
+	}
+
+	private String getCallValue(MethodDoc method, String call, String env) {
+		JNIType returnType = jniTypeOf(method.returnType());
+		if (returnType.isVoid())
+			return call;
+		if (isViewResult(method))
+			return getValueType(method) + "(" + envOf(env) + ", " + call + ")";
+		return getResult(method.containingClass(), returnType, call, env);
+	}
+
+	private void addInclude(Set<String> includes, Type t) {
+		String include = jniTypeOf(t).include;
+		if (include != null)
+			includes.add(include);
+	}
+
+	protected final JNIType jniTypeOf(Type t) {
+		return typeRegistry.get(t);
 	}
 
 	protected final String jniType(Type t) {
-		String elmT = t.typeName();
-		ClassDoc throwable = root.classNamed("java.lang.Throwable");
-		ClassDoc jClass = root.classNamed("java.lang.Class");
-		ClassDoc tclassDoc = t.asClassDoc();
-
-		if ((t.dimension()).indexOf("[]") != -1) {
-			if ((t.dimension().indexOf("[][]") != -1) || (tclassDoc != null)) return "jobjectArray";
-			else if (elmT.equals("boolean")) return "jbooleanArray";
-			else if (elmT.equals("byte")) return "jbyteArray";
-			else if (elmT.equals("char")) return "jcharArray";
-			else if (elmT.equals("short")) return "jshortArray";
-			else if (elmT.equals("int")) return "jintArray";
-			else if (elmT.equals("long")) return "jlongArray";
-			else if (elmT.equals("float")) return "jfloatArray";
-			else if (elmT.equals("double")) return "jdoubleArray";
-		} else {
-			if (elmT.equals("void")) return "void";
-			else if (elmT.equals("String")) return "jstring";
-			else if (elmT.equals("boolean")) return "jboolean";
-			else if (elmT.equals("byte")) return "jbyte";
-			else if (elmT.equals("char")) return "jchar";
-			else if (elmT.equals("short")) return "jshort";
-			else if (elmT.equals("int")) return "jint";
-			else if (elmT.equals("long")) return "jlong";
-			else if (elmT.equals("float")) return "jfloat";
-			else if (elmT.equals("double")) return "jdouble";
-			else if (tclassDoc != null) {
-				if (tclassDoc.subclassOf(throwable)) return "jthrowable";
-				else if (tclassDoc.subclassOf(jClass)) return "jclass";
-				else return "jobject";
-			}
-		}
-
-		Util.bug("Unknown JNI type.");
-		return null; /* dead code. */
+		return jniTypeOf(t).cppType;
 	}
 }
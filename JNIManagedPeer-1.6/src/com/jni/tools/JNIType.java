@@ -0,0 +1,101 @@
+/*
+ * Copyright 2014 Jesse Benson
+ *
+ * This code is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this work. If not, see http://www.gnu.org/licenses/.
+ */
+
+package com.jni.tools;
+
+/**
+ * How a Java type is passed to and returned from JNI calls in the generated
+ * C++ code.  Instances are created once per type by the JNITypeRegistry.
+ */
+public final class JNIType {
+
+	public enum ArrayKind {
+		/* Not an array. */
+		NONE,
+		/* An array of a primitive type (jintArray, ...). */
+		PRIMITIVE,
+		/* An array of objects or of arrays (jobjectArray). */
+		OBJECT
+	}
+
+	public enum Kind {
+		/* A primitive type, or void. */
+		PRIMITIVE,
+		/* A JNI reference type (jobject, jstring, jintArray, ...). */
+		REFERENCE,
+		/* A C++ class constructed from the jobject, such as a managed peer. */
+		PEER
+	}
+
+	/* The C++ type of return values and of the parameters of peer methods. */
+	public final String cppType;
+
+	/* The X of the JNIEnv Call<X>Method functions that return this type. */
+	public final String callSuffix;
+
+	/* Whether the result of Call<X>Method must be converted to the C++ type. */
+	public final boolean needsCast;
+
+	public final ArrayKind arrayKind;
+
+	public final Kind kind;
+
+	/* A header to include for the C++ type, or null. */
+	public final String include;
+
+	public JNIType(String cppType, String callSuffix, boolean needsCast, ArrayKind arrayKind, Kind kind, String include) {
+		this.cppType = cppType;
+		this.callSuffix = callSuffix;
+		this.needsCast = needsCast;
+		this.arrayKind = arrayKind;
+		this.kind = kind;
+		this.include = include;
+	}
+
+	public boolean isVoid() {
+		return callSuffix.equals("Void");
+	}
+
+	/**
+	 * Returns the declaration of a parameter of this type.
+	 */
+	public String parameter(String name) {
+		if (kind == Kind.PEER)
+			return "const " + cppType + "& " + name;
+		return cppType + " " + name;
+	}
+
+	/**
+	 * Returns the expression that passes a parameter of this type to JNI.
+	 */
+	public String argument(String name) {
+		if (kind == Kind.PEER)
+			return name + ".Object()";
+		return name;
+	}
+
+	/**
+	 * Returns the expression that converts the result of Call<X>Method.
+	 */
+	public String result(String call) {
+		if (!needsCast)
+			return call;
+		if (kind == Kind.PEER)
+			return cppType + "(" + call + ")";
+		return "(" + cppType + ")" + call;
+	}
+}
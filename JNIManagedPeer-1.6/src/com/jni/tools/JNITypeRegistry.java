@@ -0,0 +1,189 @@
+/*
+ * Copyright 2014 Jesse Benson
+ *
+ * This code is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this work. If not, see http://www.gnu.org/licenses/.
+ */
+
+package com.jni.tools;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.sun.javadoc.ClassDoc;
+import com.sun.javadoc.RootDoc;
+import com.sun.javadoc.Type;
+import com.sun.tools.javah.Util;
+
+/**
+ * Maps Java types to their JNIType.  Each distinct type is resolved once per
+ * run; later lookups only hit the cache.
+ *
+ * Classes can be given their own mapping, such as the managed peer generated
+ * for them, with map() or a type map file (-typemap) of lines:
+ *
+ *	<java class> <C++ type> [peer|ref] [<header>]
+ *
+ * A peer is a C++ class constructed from the jobject, passed by const
+ * reference and to JNI with Object().  A ref (the default) is a JNI reference
+ * type, cast from the jobject.  The header, if given, is included by the
+ * peers that use the type.  Lines starting with # are comments.
+ *
+ * The java.nio buffers are jobjects unless mapped.  Mapping one as a peer of
+ * DirectBuffer<T> with the support header, such as
+ *
+ *	java.nio.IntBuffer ::JNI::DirectBuffer<jint> peer JNIManagedPeerSupport.h
+ *
+ * passes the address and capacity of a direct buffer instead.
+ */
+public class JNITypeRegistry {
+
+	private static final String[] primitives = {
+		"void", "boolean", "byte", "char", "short", "int", "long", "float", "double"
+	};
+	private static final String[] callSuffixes = {
+		"Void", "Boolean", "Byte", "Char", "Short", "Int", "Long", "Float", "Double"
+	};
+
+	private final RootDoc root;
+
+	/* Custom mappings by qualified class name, sorted so they describe stably. */
+	private final Map<String, JNIType> custom = new TreeMap<String, JNIType>();
+
+	/* Resolved types by qualified name and dimension. */
+	private final Map<String, JNIType> types = new ConcurrentHashMap<String, JNIType>();
+
+	private ClassDoc throwable;
+	private ClassDoc jClass;
+
+	public JNITypeRegistry(RootDoc root) {
+		this.root = root;
+	}
+
+	/**
+	 * Map a Java class to a C++ type.  Must be called before types are looked up.
+	 */
+	public void map(String qualifiedName, String cppType, JNIType.Kind kind, String include) {
+		custom.put(qualifiedName, new JNIType(cppType, "Object", true, JNIType.ArrayKind.NONE, kind, include));
+	}
+
+	/**
+	 * Read mappings from a type map file.
+	 */
+	public void load(File file) throws IOException {
+		BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+		try {
+			String line;
+			while ((line = in.readLine()) != null) {
+				line = line.trim();
+				if (line.length() == 0 || line.startsWith("#"))
+					continue;
+
+				String[] words = line.split("\\s+");
+				JNIType.Kind kind = JNIType.Kind.REFERENCE;
+				if (words.length > 2 && words[2].equals("peer"))
+					kind = JNIType.Kind.PEER;
+				else if (words.length > 2 && !words[2].equals("ref"))
+					words = null;
+				if (words == null || words.length < 2 || words.length > 4)
+					Util.error("Invalid type mapping in %s: %s", file.getPath(), line);
+				map(words[0], words[1], kind, (words.length > 3 ? words[3] : null));
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Describe the custom mappings, for the fingerprints of generated classes.
+	 */
+	public void describe(StringBuilder s) {
+		for (Map.Entry<String, JNIType> entry : custom.entrySet()) {
+			JNIType type = entry.getValue();
+			s.append("typemap ").append(entry.getKey()).append(' ').append(type.cppType)
+				.append(' ').append(type.kind).append(' ').append(type.include).append('\n');
+		}
+	}
+
+	/**
+	 * Returns the mapping of a type.  The first lookup of a class type walks its
+	 * superclasses through the root, so generators running on several threads
+	 * should look their types up while preparing the classes.
+	 */
+	public JNIType get(Type t) {
+		String key = t.qualifiedTypeName() + t.dimension();
+		JNIType type = types.get(key);
+		if (type == null) {
+			type = resolve(t);
+			types.put(key, type);
+		}
+		return type;
+	}
+
+	private synchronized JNIType resolve(Type t) {
+		String elmT = t.typeName();
+		ClassDoc tclassDoc = t.asClassDoc();
+		int dimensions = t.dimension().length() / 2;
+
+		if (dimensions > 0) {
+			if (dimensions > 1 || tclassDoc != null)
+				return reference("jobjectArray", JNIType.ArrayKind.OBJECT);
+			for (String primitive : primitives) {
+				if (elmT.equals(primitive) && !primitive.equals("void"))
+					return reference("j" + primitive + "Array", JNIType.ArrayKind.PRIMITIVE);
+			}
+		} else {
+			for (int i = 0; i < primitives.length; i++) {
+				if (tclassDoc == null && elmT.equals(primitives[i])) {
+					String cppType = (i == 0 ? "void" : "j" + primitives[i]);
+					return new JNIType(cppType, callSuffixes[i], false, JNIType.ArrayKind.NONE, JNIType.Kind.PRIMITIVE, null);
+				}
+			}
+			if (tclassDoc != null) {
+				JNIType mapped = custom.get(tclassDoc.qualifiedName());
+				if (mapped != null)
+					return mapped;
+				if (tclassDoc.qualifiedName().equals("java.lang.String"))
+					return reference("jstring", JNIType.ArrayKind.NONE);
+
+				if (throwable == null) {
+					throwable = root.classNamed("java.lang.Throwable");
+					jClass = root.classNamed("java.lang.Class");
+				}
+				if (tclassDoc.subclassOf(throwable))
+					return reference("jthrowable", JNIType.ArrayKind.NONE);
+				if (tclassDoc.subclassOf(jClass))
+					return reference("jclass", JNIType.ArrayKind.NONE);
+
+				return new JNIType("jobject", "Object", false, JNIType.ArrayKind.NONE, JNIType.Kind.REFERENCE, null);
+			}
+		}
+
+		Util.bug("Unknown JNI type.");
+		return null; /* dead code. */
+	}
+
+	/*
+	 * A JNI reference type other than jobject: Call<X>Method returns a jobject
+	 * that must be cast.
+	 */
+	private static JNIType reference(String cppType, JNIType.ArrayKind arrayKind) {
+		return new JNIType(cppType, "Object", true, arrayKind, JNIType.Kind.REFERENCE, null);
+	}
+}
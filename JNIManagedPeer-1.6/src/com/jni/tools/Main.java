@@ -17,19 +17,58 @@
 
 package com.jni.tools;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
+import com.sun.javadoc.RootDoc;
 import com.sun.tools.javah.Util;
 
 public class Main {
 
 	public static void main(String[] args) {
 
+		if (args.length > 0 && args[0].equals("-daemon")) {
+			/* Serve requests until stopped. */
+			Daemon.main(args);
+			return;
+		}
+
+		if (args.length > 1 && args[0].equals("-port")) {
+			/* Forward the command to a running daemon. */
+			System.exit(Daemon.forward(args));
+		}
+
+		/*
+		 * Errors are thrown as Util.Exit, so that the generator can remove what it
+		 * staged before the process ends.
+		 */
+		Util.setExitOnError(false);
+		int exitValue;
+		try {
+			exitValue = run(args);
+		} catch (Util.Exit e) {
+			exitValue = e.exitValue;
+		}
+		System.exit(exitValue);
+	}
+
+	/**
+	 * Run one command line and return the exit value.  Errors end the process,
+	 * unless Util.setExitOnError(false) makes them throw Util.Exit.
+	 */
+	public static int run(String[] args) {
+
 		if (args.length == 0) {
 			Util.usage(1);
 		}
 
+		/* A batch manifest names the classes itself. */
+		boolean batch = Arrays.asList(args).contains("-batch");
+		String batchFile = null;
+		boolean classfiles = false;
 		List<String> javadocargsList = new ArrayList<String>();
 		for (int i = 0; i < args.length; i++) {
 			final int index = i;
@@ -40,11 +79,11 @@ public class Main {
 					Util.usage(1);
 				} else if (args[i].charAt(0) == '-') {
 					Util.error("Missing output directory in -d commandline parameter.");
-				} else if ((i+1) >= args.length) {
+				} else if (!batch && (i+1) >= args.length) {
 					Util.error("No classes specified on the commandline.");
 				}
 			} else if (args[i].equals("-v") || args[i].equals("-verbose")) {
-				if ((i+1) >= args.length) {
+				if (!batch && (i+1) >= args.length) {
 					Util.error("No classes specified on the commandline.");
 				}
 				args[i] = "-verbose";
@@ -56,20 +95,109 @@ public class Main {
 				}
 			} else if (args[i].equals("-pch")) {
 				i++;
-				if ((i+1) >= args.length) {
+				if (i >= args.length) {
+					Util.usage(1);
+				} else if (!batch && (i+1) >= args.length) {
 					Util.error("No classes specified on the commandline.");
 				}
 				MainDoclet.pch = args[i];
 				continue;
 			} else if (args[i].equals("-namespace")) {
 				i++;
-				if ((i+1) >= args.length) {
+				if (i >= args.length) {
+					Util.usage(1);
+				} else if (!batch && (i+1) >= args.length) {
 					Util.error("No classes specified on the commandline.");
 				}
 				MainDoclet.namespace = args[i];
 				continue;
+			} else if (args[i].equals("-javad")) {
+				i++;
+				if (i >= args.length) {
+					Util.usage(1);
+				} else if (args[i].charAt(0) == '-') {
+					Util.error("Missing output directory in -javad commandline parameter.");
+				} else if (!batch && (i+1) >= args.length) {
+					Util.error("No classes specified on the commandline.");
+				}
+				MainDoclet.javad = args[i];
+				continue;
+			} else if (args[i].equals("-typemap")) {
+				i++;
+				if (i >= args.length) {
+					Util.usage(1);
+				} else if (!batch && (i+1) >= args.length) {
+					Util.error("No classes specified on the commandline.");
+				}
+				MainDoclet.typemap = args[i];
+				continue;
+			} else if (args[i].equals("-registry")) {
+				i++;
+				if (i >= args.length) {
+					Util.usage(1);
+				} else if (!batch && (i+1) >= args.length) {
+					Util.error("No classes specified on the commandline.");
+				}
+				if (!BatchManifest.isIdentifier(args[i])) {
+					Util.error("Invalid registry name in -registry commandline parameter: %s", args[i]);
+				}
+				MainDoclet.registry = args[i];
+				continue;
+			} else if (args[i].equals("-exceptions")) {
+				i++;
+				if (i >= args.length) {
+					Util.usage(1);
+				} else if (!batch && (i+1) >= args.length) {
+					Util.error("No classes specified on the commandline.");
+				}
+				MainDoclet.exceptions = JNIGenerator.parseExceptionPolicy(args[i]);
+				if (MainDoclet.exceptions == null) {
+					Util.error("Invalid policy in -exceptions commandline parameter: %s", args[i]);
+				}
+				continue;
+			} else if (args[i].equals("-batch")) {
+				i++;
+				if (i >= args.length) {
+					Util.usage(1);
+				}
+				batchFile = args[i];
+				continue;
+			} else if (args[i].equals("-j")) {
+				i++;
+				if (i >= args.length) {
+					Util.usage(1);
+				} else if (!batch && (i+1) >= args.length) {
+					Util.error("No classes specified on the commandline.");
+				}
+				try {
+					MainDoclet.threads = Integer.parseInt(args[i]);
+				} catch (NumberFormatException e) {
+					MainDoclet.threads = 0;
+				}
+				if (MainDoclet.threads < 1) {
+					Util.error("Invalid thread count in -j commandline parameter: %s", args[i]);
+				}
+				continue;
+			} else if (args[i].equals("-classfiles")) {
+				if (!batch && (i+1) >= args.length) {
+					Util.error("No classes specified on the commandline.");
+				}
+				classfiles = true;
+				continue;
+			} else if (args[i].equals("-eager")) {
+				if (!batch && (i+1) >= args.length) {
+					Util.error("No classes specified on the commandline.");
+				}
+				MainDoclet.eager = true;
+				continue;
+			} else if (args[i].equals("-jvalues")) {
+				if (!batch && (i+1) >= args.length) {
+					Util.error("No classes specified on the commandline.");
+				}
+				MainDoclet.jvalues = true;
+				continue;
 			} else if (args[i].equals("-force")) {
-				if ((i+1) >= args.length) {
+				if (!batch && (i+1) >= args.length) {
 					Util.error("No classes specified on the commandline.");
 				}
 			} else if (args[i].equals("-classpath")) {
@@ -78,7 +206,7 @@ public class Main {
 					Util.usage(1);
 				} else if (args[i].charAt(0) == '-') {
 					Util.error("Missing classpath arguments in the -classpath commandline parameter.");
-				} else if ((i+1) >= args.length) {
+				} else if (!batch && (i+1) >= args.length) {
 					Util.error("No classes specified on the commandline.");
 				}
 			} else if (args[i].equals("-bootclasspath")) {
@@ -87,7 +215,7 @@ public class Main {
 					Util.usage(1);
 				} else if (args[i].charAt(0) == '-') {
 					Util.error("Missing classpath arguments in the -bootclasspath commandline parameter.");
-				} else if ((i+1) >= args.length) {
+				} else if (!batch && (i+1) >= args.length) {
 					Util.error("No classes specified on the commandline.");
 				}
 			} else if (args[i].charAt(0) == '-') {
@@ -101,6 +229,14 @@ public class Main {
 				javadocargsList.add(args[i]);
 		}
 
+		if (batchFile != null) {
+			loadBatch(batchFile, javadocargsList);
+		}
+
+		if (classfiles) {
+			return generateFromClassFiles(javadocargsList);
+		}
+
 		/* Invoke javadoc */
 		javadocargsList.add("-private");
 		javadocargsList.add("-Xclasses");
@@ -111,6 +247,123 @@ public class Main {
 		}
 
 		int rc = com.sun.tools.javadoc.Main.execute("javadoc", "com.jni.tools.MainDoclet", javadocargs);
-		System.exit(rc);
+
+		/* javadoc reports errors of the doclet as its own, so pass them on. */
+		if (MainDoclet.failure != null) {
+			throw MainDoclet.failure;
+		}
+		return rc;
+	}
+
+	/*
+	 * Read the -batch manifest, and add the classes of its units to the ones
+	 * to parse.
+	 */
+	private static void loadBatch(String batchFile, List<String> args) {
+		String classpath = System.getenv("CLASSPATH");
+		for (int i = 0; i < args.size(); i++) {
+			if (args.get(i).equals("-d")) {
+				Util.error("The -d option cannot be used with -batch; each unit names its output directory.");
+			} else if (args.get(i).equals("-classpath")) {
+				classpath = args.get(i + 1);
+			}
+		}
+
+		try {
+			MainDoclet.batch = BatchManifest.load(new File(batchFile));
+			args.addAll(MainDoclet.batch.findClasses(classpath != null ? classpath : "."));
+		} catch (IOException ioe) {
+			Util.error("Cannot read batch manifest %s.\n%s", batchFile, ioe.getMessage());
+		}
+	}
+
+	/**
+	 * Generate the managed peers from compiled classes rather than sources.
+	 * Arguments that name a jar or directory are scanned for @JNIClass classes;
+	 * other arguments are class names, found on the class path.
+	 */
+	private static int generateFromClassFiles(List<String> args) {
+		List<String[]> optionsList = new ArrayList<String[]>();
+		List<String> names = new ArrayList<String>();
+		String classpath = System.getenv("CLASSPATH");
+		String bootclasspath = null;
+
+		for (int i = 0; i < args.size(); i++) {
+			String arg = args.get(i);
+			if (arg.equals("-d") || arg.equals("-classpath") || arg.equals("-bootclasspath")) {
+				String value = args.get(++i);
+				if (arg.equals("-classpath"))
+					classpath = value;
+				else if (arg.equals("-bootclasspath"))
+					bootclasspath = value;
+				optionsList.add(new String[] { arg, value });
+			} else if (arg.charAt(0) == '-') {
+				optionsList.add(new String[] { arg });
+			} else {
+				names.add(arg);
+			}
+		}
+		MainDoclet.validateOptions(optionsList.toArray(new String[optionsList.size()][]));
+
+		ClassFileReader reader = new ClassFileReader();
+		try {
+			List<DocModel.ClassInfo> classes = new ArrayList<DocModel.ClassInfo>();
+			for (String name : names) {
+				File file = new File(name);
+				if (file.exists())
+					classes.addAll(reader.scan(file));
+			}
+
+			if (bootclasspath != null)
+				reader.addPath(bootclasspath);
+			reader.addPath(classpath != null ? classpath : ".");
+
+			for (String name : names) {
+				if (!new File(name).exists())
+					classes.add(findClass(reader, name));
+			}
+
+			DocModel model = new DocModel(reader, new DocModel.Reporter() {
+				public void error(String message) {
+					System.err.println("Error: " + message);
+				}
+
+				public void warning(String message) {
+					System.err.println("Warning: " + message);
+				}
+
+				public void notice(String message) {
+					if (Util.verbose)
+						Util.log(message);
+				}
+			});
+			RootDoc root = model.root(classes);
+			MainDoclet.generate(root);
+		} catch (IOException ioe) {
+			Util.error("Exception.\n%s", ioe.getMessage());
+		} finally {
+			reader.close();
+		}
+		return 0;
+	}
+
+	/*
+	 * Find a class by its binary or canonical name (a.b.Outer.Inner may be
+	 * a.b.Outer$Inner).
+	 */
+	private static DocModel.ClassInfo findClass(ClassFileReader reader, String name) {
+		String binaryName = name;
+		while (true) {
+			DocModel.ClassInfo info = reader.resolve(binaryName);
+			if (info != null)
+				return info;
+
+			int index = binaryName.lastIndexOf('.');
+			if (index < 0)
+				break;
+			binaryName = binaryName.substring(0, index) + '$' + binaryName.substring(index + 1);
+		}
+		Util.error("Class not found: %s", name);
+		return null;
 	}
 }
@@ -18,10 +18,10 @@
 package com.jni.tools;
 
 import com.sun.javadoc.*;
-import com.sun.tools.javah.Gen;
 import com.sun.tools.javah.Util;
 
 import java.io.*;
+import java.util.List;
 
 /**
  * A doclet to parse and execute commandline options.
@@ -29,9 +29,41 @@ import java.io.*;
 public class MainDoclet {
 
 	public static String odir;
+	public static String javad;
 	public static String pch;
 	public static boolean force = false;
+	public static boolean eager = false;
+	public static boolean jvalues = false;
+	public static String exceptions = "NONE";
 	public static String namespace;
+	public static int threads = 1;
+	public static String typemap;
+	public static String registry;
+	public static BatchManifest batch;
+
+	/* An error that ended the doclet, when errors don't end the process. */
+	public static Util.Exit failure;
+
+	/**
+	 * Restore the default options, before running another command line in
+	 * the same process.
+	 */
+	public static void reset() {
+		odir = null;
+		javad = null;
+		pch = null;
+		force = false;
+		eager = false;
+		jvalues = false;
+		exceptions = "NONE";
+		namespace = null;
+		threads = 1;
+		typemap = null;
+		registry = null;
+		batch = null;
+		failure = null;
+		Util.verbose = false;
+	}
 
 	/**
 	 * Entry point.
@@ -40,21 +72,81 @@ public class MainDoclet {
 
 		// Command line options.
 		String[][] cmdoptions = root.options();
+
+		try {
+			validateOptions(cmdoptions);
+
+			generate(root);
+		} catch (Util.Exit e) {
+			failure = e;
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Generate the managed peers of the classes of the root, with the options
+	 * given on the command line, or into each unit of the -batch manifest.
+	 */
+	public static void generate(RootDoc root) {
 		// Classes specified on command line.
 		ClassDoc[] classes = root.classes();
-		Gen generator = new JNIGenerator(root);
-
-		validateOptions(cmdoptions);
+		JNIGenerator generator = new JNIGenerator(root);
 
-		if (odir == null) {
+		if (batch == null && odir == null) {
 			Util.error("No output directory specified.");
 		}
 
+		/*
+		 * Custom mappings of Java types to C++ types, if specified.
+		 */
+		if (typemap != null) {
+			try {
+				generator.getTypeRegistry().load(new File(typemap));
+			} catch (IOException ioe) {
+				Util.error("Cannot read type map %s.\n%s", typemap, ioe.getMessage());
+			}
+		}
+
+		if (classes.length == 0) {
+			Util.error("No classes specified.");
+		}
+
+		if (batch == null) {
+			generate(generator, classes, odir, javad, namespace, pch, registry);
+			return;
+		}
+
+		/*
+		 * Every unit of the batch shares the parsed classes and resolved types.
+		 */
+		for (BatchManifest.Unit unit : batch.getUnits()) {
+			ClassDoc[] unitClasses = unit.select(classes);
+			if (unitClasses.length == 0) {
+				Util.error("No classes found for the unit %s.", unit.toString());
+			}
+			if (Util.verbose) {
+				Util.log("[Generating unit " + unit + "]");
+			}
+			generate(new JNIGenerator(generator), unitClasses, unit.odir,
+					(unit.javad != null ? unit.javad : javad),
+					(unit.namespace != null ? unit.namespace : namespace),
+					(unit.pch != null ? unit.pch : pch),
+					(unit.registry != null ? unit.registry : registry));
+		}
+	}
+
+	private static void generate(JNIGenerator generator, ClassDoc[] classes, String odir, String javad, String namespace, String pch, String registry) {
 		/*
 		 * Arrange for output destination.
 		 */
 		generator.setOutDir(odir);
 
+		/*
+		 * Arrange for the destination of the Java companion classes, if specified.
+		 */
+		generator.setJavaOutDir(javad);
+
 		/*
 		 * Set the precompiled header, if specified.
 		 */
@@ -71,15 +163,53 @@ public class MainDoclet {
 		 */
 		generator.setForce(force);
 
-		if (classes.length == 0) {
-			Util.error("No classes specified.");
-		}
+		/*
+		 * Resolve the IDs of each peer up front in Initialize(), if specified.
+		 */
+		generator.setEager(eager);
+
+		/*
+		 * Pass call arguments in jvalue arrays, if specified.
+		 */
+		generator.setJValues(jvalues);
+
+		/*
+		 * What methods do when the Java method throws, unless their class or
+		 * method says otherwise.
+		 */
+		generator.setExceptions(exceptions);
+
+		/*
+		 * Generate a registry initializing all the peers, if specified.
+		 */
+		generator.setRegistry(registry);
+
+		/*
+		 * Number of classes to generate in parallel.
+		 */
+		generator.setThreads(threads);
 
 		/*
 		 * Set classes.
 		 */
 		generator.setClasses(classes);
 
+		/*
+		 * Companion classes need the Java output directory; find out before
+		 * anything is written.
+		 */
+		if (javad == null) {
+			for (ClassDoc clazz : classes) {
+				try {
+					List<String> companions = generator.getJavaSourceNames(clazz);
+					if (!companions.isEmpty())
+						Util.error("No Java output directory specified for the companion class %s.", companions.get(0));
+				} catch (ClassNotFoundException cnfe) {
+					Util.error("Class not found.\n%s", cnfe.getMessage());
+				}
+			}
+		}
+
 		try {
 			generator.run();
 		} catch (ClassNotFoundException cnfe) {
@@ -87,8 +217,6 @@ public class MainDoclet {
 		} catch (IOException ioe) {
 			Util.error("Exception.\n%s", ioe.getMessage());
 		}
-
-		return true;
 	}
 
 	/**
@@ -0,0 +1,157 @@
+/*
+ * Copyright 2014 Jesse Benson
+ *
+ * This code is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this work. If not, see http://www.gnu.org/licenses/.
+ */
+
+package com.jni.tools;
+
+import java.lang.reflect.InvocationTargetException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.security.CodeSource;
+import java.util.Set;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.Messager;
+import javax.annotation.processing.ProcessingEnvironment;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.annotation.processing.SupportedOptions;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.util.ElementFilter;
+import javax.tools.Diagnostic;
+
+import com.jni.annotation.JNIClass;
+
+/**
+ * An annotation processor to generate the managed peers of the classes javac
+ * is compiling, without a separate javadoc run.
+ *
+ * Options are given to javac as -A<option>=<value>:
+ *
+ *	jni.d=<dir>           Output directory (required)
+ *	jni.pch=<file>        Precompiled header file to include in .cpp files
+ *	jni.namespace=<ns>    Namespace to put the C++ managed peers in
+ *	jni.force             Always write output files
+ *	jni.eager             Resolve the IDs of each peer in Initialize(JNIEnv*)
+ *	jni.jvalues           Pass call arguments in jvalue arrays (Call<Type>MethodA)
+ *	jni.exceptions=<p>    What methods do when Java throws: none, throw or result
+ *	jni.j=<threads>       Number of classes to generate in parallel
+ *	jni.typemap=<file>    Custom mappings of Java types to C++ types
+ *	jni.registry=<name>   Write a registry that initializes every peer (implies jni.eager)
+ *	jni.verbose           Enable verbose output
+ *
+ * javac may only compile some of the classes (an incremental build), so the
+ * peers of classes that are not compiled are kept, and the registry still
+ * covers them.
+ *
+ * The Java companion classes (batched methods, packers) are created with the
+ * Filer, in the source output directory of javac (-s), and compiled with the
+ * classes.
+ *
+ * The generators are written against the doclet API, com.sun.javadoc, which
+ * javac has from JDK 8 to 12; a newer javac gets an error.  They are loaded by
+ * a class loader of their own, ahead of the older com.sun.tools.javah in the
+ * tools.jar of JDK 8, and run by ProcessorGenerator.
+ */
+@SupportedAnnotationTypes("com.jni.annotation.JNIClass")
+@SupportedOptions({ "jni.d", "jni.pch", "jni.namespace", "jni.force", "jni.eager", "jni.jvalues", "jni.exceptions", "jni.j", "jni.typemap", "jni.registry", "jni.verbose" })
+public class MainProcessor extends AbstractProcessor {
+
+	/* Runs the generator, in the class loader of the generator. */
+	private static final String GENERATOR = "com.jni.tools.ProcessorGenerator";
+
+	private ClassLoader loader;
+
+	@Override
+	public SourceVersion getSupportedSourceVersion() {
+		return SourceVersion.latestSupported();
+	}
+
+	@Override
+	public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+		Set<TypeElement> elements = ElementFilter.typesIn(roundEnv.getElementsAnnotatedWith(JNIClass.class));
+		if (elements.isEmpty())
+			return false;
+
+		Messager messager = processingEnv.getMessager();
+		if (!hasDocletApi()) {
+			messager.printMessage(Diagnostic.Kind.ERROR, "JNIManagedPeer needs the doclet API (com.sun.javadoc), which javac has from JDK 8 to 12.");
+			return false;
+		}
+
+		/* Failures of the generator are reported to javac, not thrown at it. */
+		try {
+			Class<?> generator = Class.forName(GENERATOR, true, getLoader());
+			generator.getMethod("process", ProcessingEnvironment.class, Set.class).invoke(null, processingEnv, elements);
+		} catch (InvocationTargetException e) {
+			messager.printMessage(Diagnostic.Kind.ERROR, "JNIManagedPeer generation failed.\n" + e.getCause());
+		} catch (Exception e) {
+			messager.printMessage(Diagnostic.Kind.ERROR, "Cannot load the JNIManagedPeer generator.\n" + e);
+		} catch (LinkageError e) {
+			messager.printMessage(Diagnostic.Kind.ERROR, "Cannot load the JNIManagedPeer generator.\n" + e);
+		}
+		return false;
+	}
+
+	private static boolean hasDocletApi() {
+		try {
+			Class.forName("com.sun.javadoc.Doc", false, MainProcessor.class.getClassLoader());
+			return true;
+		} catch (ClassNotFoundException e) {
+			return false;
+		}
+	}
+
+	private synchronized ClassLoader getLoader() {
+		if (loader == null) {
+			CodeSource source = MainProcessor.class.getProtectionDomain().getCodeSource();
+			if (source == null || source.getLocation() == null)
+				loader = MainProcessor.class.getClassLoader();
+			else
+				loader = new GeneratorLoader(source.getLocation(), MainProcessor.class.getClassLoader());
+		}
+		return loader;
+	}
+
+	/*
+	 * Loads the generator from the classes of this processor before asking the
+	 * parent, which may see the com.sun.tools.javah of the JDK first.
+	 */
+	private static class GeneratorLoader extends URLClassLoader {
+		GeneratorLoader(URL url, ClassLoader parent) {
+			super(new URL[] { url }, parent);
+		}
+
+		@Override
+		protected synchronized Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+			if (!name.startsWith("com.jni.tools.") && !name.startsWith("com.sun.tools.javah."))
+				return super.loadClass(name, resolve);
+
+			Class<?> c = findLoadedClass(name);
+			if (c == null) {
+				try {
+					c = findClass(name);
+				} catch (ClassNotFoundException e) {
+					return super.loadClass(name, resolve);
+				}
+			}
+			if (resolve)
+				resolveClass(c);
+			return c;
+		}
+	}
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright 2014 Jesse Benson
+ *
+ * This code is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this work. If not, see http://www.gnu.org/licenses/.
+ */
+
+package com.jni.tools;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.processing.Filer;
+import javax.annotation.processing.Messager;
+import javax.annotation.processing.ProcessingEnvironment;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.TypeElement;
+import javax.tools.Diagnostic;
+import javax.tools.JavaFileObject;
+
+import com.sun.javadoc.ClassDoc;
+import com.sun.javadoc.RootDoc;
+import com.sun.tools.javah.Gen;
+import com.sun.tools.javah.Util;
+
+/**
+ * Generates the managed peers of the classes MainProcessor is given, with the
+ * options given to javac.  MainProcessor loads this class, and through it the
+ * generator, with a class loader of their own, so only the types of javac
+ * are shared with the processor.
+ */
+public class ProcessorGenerator {
+
+	private ProcessorGenerator() {
+	}
+
+	public static void process(final ProcessingEnvironment processingEnv, Set<TypeElement> elements) {
+		final Messager messager = processingEnv.getMessager();
+		Map<String, String> options = processingEnv.getOptions();
+		String odir = options.get("jni.d");
+		if (odir == null) {
+			messager.printMessage(Diagnostic.Kind.ERROR, "No output directory specified (-Ajni.d=<dir>).");
+			return;
+		}
+
+		int threads = 1;
+		if (options.get("jni.j") != null) {
+			try {
+				threads = Integer.parseInt(options.get("jni.j"));
+			} catch (NumberFormatException e) {
+				threads = 0;
+			}
+			if (threads < 1) {
+				messager.printMessage(Diagnostic.Kind.ERROR, "Invalid thread count in -Ajni.j: " + options.get("jni.j"));
+				return;
+			}
+		}
+
+		String exceptions = "NONE";
+		if (options.get("jni.exceptions") != null) {
+			exceptions = JNIGenerator.parseExceptionPolicy(options.get("jni.exceptions"));
+			if (exceptions == null) {
+				messager.printMessage(Diagnostic.Kind.ERROR, "Invalid policy in -Ajni.exceptions: " + options.get("jni.exceptions"));
+				return;
+			}
+		}
+
+		String registry = options.get("jni.registry");
+		if (registry != null && !BatchManifest.isIdentifier(registry)) {
+			messager.printMessage(Diagnostic.Kind.ERROR, "Invalid registry name in -Ajni.registry: " + registry);
+			return;
+		}
+
+		/* Describe the annotated classes; the classes they refer to are read on demand. */
+		ElementReader reader = new ElementReader(processingEnv.getElementUtils(), processingEnv.getTypeUtils());
+		List<DocModel.ClassInfo> classes = new ArrayList<DocModel.ClassInfo>(elements.size());
+		final Map<String, Element> origins = new HashMap<String, Element>();
+		for (TypeElement element : elements) {
+			classes.add(reader.describe(element));
+			origins.put(element.getQualifiedName().toString(), element);
+		}
+
+		DocModel model = new DocModel(reader, new DocModel.Reporter() {
+			public void error(String message) {
+				messager.printMessage(Diagnostic.Kind.ERROR, message);
+			}
+
+			public void warning(String message) {
+				messager.printMessage(Diagnostic.Kind.WARNING, message);
+			}
+
+			public void notice(String message) {
+				messager.printMessage(Diagnostic.Kind.NOTE, message);
+			}
+		});
+
+		/* A failure must be reported to javac, not end the compiler. */
+		Util.setExitOnError(false);
+		Util.verbose = options.containsKey("jni.verbose");
+		try {
+			RootDoc root = model.root(classes);
+			JNIGenerator generator = new JNIGenerator(root);
+			if (options.get("jni.typemap") != null)
+				generator.getTypeRegistry().load(new File(options.get("jni.typemap")));
+			generator.setOutDir(odir);
+			generator.setPrecompiledHeader(options.get("jni.pch"));
+			generator.setNamespace(options.get("jni.namespace"));
+			generator.setForce(options.containsKey("jni.force"));
+			generator.setEager(options.containsKey("jni.eager"));
+			generator.setJValues(options.containsKey("jni.jvalues"));
+			generator.setExceptions(exceptions);
+			generator.setThreads(threads);
+			generator.setRegistry(registry);
+			generator.setPartial(true);
+			generator.setSourceWriter(new Gen.SourceWriter() {
+				public void write(ClassDoc clazz, String className, byte[] b) throws IOException {
+					Filer filer = processingEnv.getFiler();
+					JavaFileObject source = filer.createSourceFile(className, origins.get(clazz.qualifiedName()));
+					OutputStream out = source.openOutputStream();
+					try {
+						out.write(b);
+					} finally {
+						out.close();
+					}
+				}
+			});
+			generator.setClasses(root.classes());
+			generator.run();
+		} catch (Util.Exit e) {
+			messager.printMessage(Diagnostic.Kind.ERROR, "JNIManagedPeer generation failed.");
+		} catch (ClassNotFoundException cnfe) {
+			messager.printMessage(Diagnostic.Kind.ERROR, "Class not found.\n" + cnfe.getMessage());
+		} catch (IOException ioe) {
+			messager.printMessage(Diagnostic.Kind.ERROR, "Exception.\n" + ioe.getMessage());
+		}
+
+	}
+}
@@ -30,14 +30,25 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.PrintWriter;
+import java.lang.annotation.Annotation;
 
 import com.jni.annotation.JNIClass;
 import com.sun.javadoc.*;
 
 import java.io.*;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Stack;
+import java.util.TreeMap;
 import java.util.Vector;
 import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 
 /**
@@ -55,6 +66,11 @@ public abstract class Gen {
 
 	protected RootDoc root;
 
+	/*
+	 * Type signatures, cached for the whole run.
+	 */
+	protected final TypeSignature typeSignature;
+
 	/*
 	 * List of classes for which we must generate output.
 	 */
@@ -63,8 +79,26 @@ public abstract class Gen {
 	protected String namespace; // Fallback namespace
 	static private final boolean isWindows = System.getProperty("os.name").startsWith("Windows");
 
+	/*
+	 * Record of the previous run into the output directory.
+	 */
+	private OutputManifest manifest;
+
+	/*
+	 * Stages the generated files and replaces them together at the end of the run.
+	 */
+	private OutputWriter writer;
+
 	public Gen(RootDoc root) {
+		this(root, new TypeSignature(root));
+	}
+
+	/**
+	 * Share the type signatures of another generator of the same root.
+	 */
+	public Gen(RootDoc root, TypeSignature typeSignature) {
 		this.root = root;
+		this.typeSignature = typeSignature;
 	}
 
 	/**
@@ -104,6 +138,42 @@ public abstract class Gen {
 		}
 	}
 
+	/*
+	 * Output location of the Java companion classes, in the directories of their
+	 * packages, like a source directory.  It is kept apart from the C++ files.
+	 */
+	protected String javaOutDir;
+
+	public void setJavaOutDir(String javaOutDir) {
+		if (javaOutDir != null) {
+			File d = new File(javaOutDir).getAbsoluteFile();
+			if (!d.exists()) {
+				if (!d.mkdirs())
+					Util.error("Failed to create directory: %s", d.toString());
+			}
+			this.javaOutDir = d.getPath();
+		}
+	}
+
+	/**
+	 * Receives the Java companion classes in place of the Java output directory,
+	 * such as the Filer of an annotation processor.
+	 */
+	public interface SourceWriter {
+		void write(ClassDoc clazz, String className, byte[] b) throws IOException;
+	}
+
+	/*
+	 * Where the Java companion classes go, if not to the Java output directory.
+	 * The compiler must see them on every run, so they are written for all the
+	 * classes, also those found up to date, and not recorded in the manifest.
+	 */
+	protected SourceWriter sourceWriter;
+
+	public void setSourceWriter(SourceWriter sourceWriter) {
+		this.sourceWriter = sourceWriter;
+	}
+
 	public void setClasses(ClassDoc[] classes) {
 		this.classes = classes;
 	}
@@ -117,7 +187,8 @@ public abstract class Gen {
 	}
 
 	/*
-	 * Smartness with generated files.
+	 * Smartness with generated files.  Without force, files whose contents
+	 * did not change are not rewritten.
 	 */
 	protected boolean force = false;
 
@@ -125,6 +196,26 @@ public abstract class Gen {
 		force = state;
 	}
 
+	/*
+	 * Whether the classes are only some of those generated into the output
+	 * directory (for example those of an incremental compile), in which case
+	 * the files of the other classes are kept.
+	 */
+	protected boolean partial = false;
+
+	public void setPartial(boolean state) {
+		partial = state;
+	}
+
+	/*
+	 * Number of classes to generate concurrently.
+	 */
+	protected int threads = 1;
+
+	public void setThreads(int threads) {
+		this.threads = threads;
+	}
+
 	/**
 	 * We explicitly need to write ASCII files because that is what C
 	 * compilers understand.
@@ -146,19 +237,146 @@ public abstract class Gen {
 	 *         expr `du -sk` / `ls *.h | wc -l`
 	 */
 	public void run() throws IOException, ClassNotFoundException {
-		/* Each class goes to its own files... */
+		manifest = OutputManifest.load(outDir);
+		writer = new OutputWriter(new File(outDir), force);
+		try {
+			generate();
+		} finally {
+			/* Nothing is left behind if generation failed part way. */
+			writer.abort();
+		}
+	}
+
+	private void generate() throws IOException, ClassNotFoundException {
+
+		/*
+		 * Only classes whose inputs changed since the last run into this
+		 * directory need to be generated again.
+		 */
+		Map<ClassDoc, String> stale = new LinkedHashMap<ClassDoc, String>();
 		for (ClassDoc clazz : classes) {
-			if (getAnnotation(clazz, JNIClass.class) != null)
-			{
-				/* Write the header file and declaration */
-				writeHeader(clazz);
-				/* Write the cpp file and definition */
-				writeCpp(clazz);
+			if (getAnnotation(clazz, JNIClass.class) != null) {
+				String fingerprint = fingerprint(clazz);
+				if (!force && manifest.isCurrent(clazz.qualifiedName(), fingerprint)) {
+					if (Util.verbose)
+						Util.log("[No need to generate class " + clazz.qualifiedName() + "]");
+				} else {
+					stale.put(clazz, fingerprint);
+				}
+			}
+		}
+
+		if (threads > 1 && stale.size() > 1) {
+			runParallel(stale);
+		} else {
+			/* Each class goes to its own files... */
+			for (Map.Entry<ClassDoc, String> entry : stale.entrySet())
+				writeClass(entry.getKey(), entry.getValue());
+		}
+
+		/* ...and files derived from all the classes are written each time. */
+		writeAggregates();
+
+		if (sourceWriter != null) {
+			for (ClassDoc clazz : classes) {
+				if (getAnnotation(clazz, JNIClass.class) != null) {
+					for (Map.Entry<String, byte[]> source : writeJavaSources(clazz).entrySet())
+						sourceWriter.write(clazz, source.getKey(), source.getValue());
+				}
 			}
 		}
+
+		/* Replace all changed files at once, remove those of classes that are gone, and remember this run. */
+		writer.commit();
+		if (partial)
+			manifest.retainPrevious();
+		else
+			manifest.prune();
+		manifest.save();
 	}
 
-	public final AnnotationTypeDoc getAnnotation(ProgramElementDoc element, Class annotation) throws ClassNotFoundException {
+	/*
+	 * Generate the independent classes on a pool of worker threads.  Every class
+	 * still goes to its own files, so the output does not depend on scheduling.
+	 */
+	private void runParallel(Map<ClassDoc, String> peers) throws IOException, ClassNotFoundException {
+		/*
+		 * The doclet model completes symbols lazily and is not thread-safe, so
+		 * everything the generator reads is resolved up front on this thread.
+		 */
+		for (ClassDoc clazz : peers.keySet())
+			prepare(clazz);
+
+		ExecutorService executor = Executors.newFixedThreadPool(Math.min(threads, peers.size()));
+		try {
+			List<Future<Void>> results = new ArrayList<Future<Void>>(peers.size());
+			for (final Map.Entry<ClassDoc, String> entry : peers.entrySet()) {
+				results.add(executor.submit(new Callable<Void>() {
+					public Void call() throws IOException, ClassNotFoundException {
+						writeClass(entry.getKey(), entry.getValue());
+						return null;
+					}
+				}));
+			}
+
+			/* Wait in submission order so the first failing class is the one reported. */
+			for (Future<Void> result : results)
+				await(result);
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	private static void await(Future<Void> result) throws IOException, ClassNotFoundException {
+		try {
+			result.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while generating.");
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException)
+				throw (IOException)cause;
+			if (cause instanceof ClassNotFoundException)
+				throw (ClassNotFoundException)cause;
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException)cause;
+			if (cause instanceof Error)
+				throw (Error)cause;
+			throw new IOException(String.valueOf(cause));
+		}
+	}
+
+	private void writeClass(ClassDoc clazz, String fingerprint) throws IOException, ClassNotFoundException {
+		String className = clazz.qualifiedName();
+		/* Write the header file and declaration */
+		manifest.record(className, fingerprint, writeHeader(clazz));
+		/* Write the cpp file and definition */
+		manifest.record(className, fingerprint, writeCpp(clazz));
+		/* Write the Java companion classes, unless they go to the source writer */
+		if (sourceWriter == null) {
+			for (Map.Entry<String, byte[]> source : writeJavaSources(clazz).entrySet())
+				manifest.record(className, fingerprint, writeJavaSource(clazz, source.getKey(), source.getValue()));
+		}
+	}
+
+	/**
+	 * Resolve everything about the class that the generator will read, before
+	 * the class is handed to another thread.  Subclasses that look up further
+	 * types should extend this.
+	 */
+	protected void prepare(ClassDoc clazz) throws ClassNotFoundException {
+		clazz.annotations();
+		for (MethodDoc method : clazz.methods()) {
+			method.annotations();
+			method.signature();
+			method.returnType().asClassDoc();
+			for (Parameter param : method.parameters())
+				param.type().asClassDoc();
+		}
+	}
+
+	public final AnnotationTypeDoc getAnnotation(ProgramElementDoc element, Class<? extends Annotation> annotation) throws ClassNotFoundException {
 		String annotationName = annotation.getName();
 		for (AnnotationDesc atd : element.annotations()) {
 			AnnotationTypeDoc annotationType = atd.annotationType();
@@ -168,77 +386,218 @@ public abstract class Gen {
 		}
 		return null;
 	}
+
+	/**
+	 * Returns the value given to the named element of an annotation, or null if
+	 * the annotation is not present or the element was left at its default.
+	 * Enum constants are returned by name.
+	 */
+	public final Object getAnnotationValue(ProgramElementDoc element, Class<? extends Annotation> annotation, String name) {
+		String annotationName = annotation.getName();
+		for (AnnotationDesc atd : element.annotations()) {
+			if (annotationName.equals(atd.annotationType().qualifiedName())) {
+				for (AnnotationDesc.ElementValuePair pair : atd.elementValues()) {
+					if (name.equals(pair.element().name())) {
+						Object value = pair.value().value();
+						if (value instanceof FieldDoc)
+							return ((FieldDoc)value).name();
+						return value;
+					}
+				}
+			}
+		}
+		return null;
+	}
 	
+	/**
+	 * Override this method to generate Java companion classes of a class, by
+	 * qualified class name.  Like its header and cpp file they are written when
+	 * the class changes, but into the Java output directory.
+	 */
+	protected Map<String, byte[]> writeJavaSources(ClassDoc clazz) throws ClassNotFoundException {
+		return new LinkedHashMap<String, byte[]>();
+	}
+
+	/**
+	 * The classes generated into the output directory: those of this run and,
+	 * when the run is partial, those of earlier runs that still exist, in name
+	 * order.  Files derived from all the classes must cover all of these.
+	 */
+	protected ClassDoc[] getOutputClasses() throws ClassNotFoundException {
+		if (!partial)
+			return classes;
+
+		Map<String, ClassDoc> result = new TreeMap<String, ClassDoc>();
+		for (ClassDoc clazz : classes)
+			result.put(clazz.qualifiedName(), clazz);
+		for (String name : manifest.getPreviousClasses()) {
+			if (!result.containsKey(name)) {
+				ClassDoc clazz = root.classNamed(name);
+				if (clazz != null && getAnnotation(clazz, JNIClass.class) != null)
+					result.put(name, clazz);
+			}
+		}
+		return result.values().toArray(new ClassDoc[result.size()]);
+	}
+
+	/**
+	 * Override this method to write files derived from all the classes, with
+	 * writeAggregate().  They are written on every run, after the classes.
+	 */
+	protected void writeAggregates() throws IOException, ClassNotFoundException {
+	}
+
+	/**
+	 * Write a file derived from all the classes.  Like the files of a class it is
+	 * only replaced when its contents change, and removed once no longer written.
+	 */
+	protected final void writeAggregate(String filename, byte[] b) throws IOException {
+		/* Recorded under a name no class can have. */
+		String key = "/" + filename;
+		manifest.record(key, OutputManifest.hash(b), writer.write(b, filename, manifest.getPreviousHash(key, filename)));
+	}
+
 	/*
 	 * Generate the declaration for the given type and write it to a C++ header file.
 	 */
-	private void writeHeader(ClassDoc clazz) throws IOException, ClassNotFoundException {
+	private OutputManifest.Output writeHeader(ClassDoc clazz) throws IOException, ClassNotFoundException {
 		String filename = baseFileName(clazz) + ".h";
 		ByteArrayOutputStream bout = new ByteArrayOutputStream(8192);
 		writeHeaderBegin(bout);
 		writeDeclaration(bout, clazz);
-		writeIfChanged(bout.toByteArray(), getFileObject(filename));
+		return writeIfChanged(clazz, bout.toByteArray(), filename);
 	}
 
 	/*
 	 * Generate the definition for the given type and write it to a C++ code file.
 	 */
-	private void writeCpp(ClassDoc clazz) throws IOException, ClassNotFoundException {
+	private OutputManifest.Output writeCpp(ClassDoc clazz) throws IOException, ClassNotFoundException {
 		String filename = baseFileName(clazz) + ".cpp";
 		ByteArrayOutputStream bout = new ByteArrayOutputStream(8192);
 		writeCppBegin(bout, clazz);
 		writeDefinition(bout, clazz);
-		writeIfChanged(bout.toByteArray(), getFileObject(filename));
+		return writeIfChanged(clazz, bout.toByteArray(), filename);
 	}
 	
 	/*
-	 * Write the contents of byte[] b to a file named file.  Writing
-	 * is done if either the file doesn't exist or if the contents are
-	 * different.
-	 */
-	private void writeIfChanged(byte[] b, String file) throws IOException {
-		File f = new File(file);
-		boolean mustWrite = false;
-		String event = "[No need to update file ";
-
-		if (force) {
-			mustWrite = true;
-			event = "[Forcefully writing file ";
-		} else {
-			if (!f.exists()) {
-				mustWrite = true;
-				event = "[Creating file ";
-			} else {
-				int l = (int)f.length();
-				if (b.length != l) {
-					mustWrite = true;
-					event = "[Overwriting file ";
-				} else {
-					/* Lengths are equal, so read it. */
-					byte[] a = new byte[l];
-					FileInputStream in = new FileInputStream(f);
-					if (in.read(a) != l) {
-						in.close();
-						/* This can't happen, we already checked the length. */
-						Util.error("Not enough bytes (%s) in file %s", Integer.toString(l), f.toString());
-					}
-					in.close();
-					while (--l >= 0) {
-						if (a[l] != b[l]) {
-							mustWrite = true;
-							event = "[Overwriting file ";
-						}
-					}
-				}
-			}
+	 * Write the contents of byte[] b to a file named filename in the output
+	 * directory.  Writing is done if either the file doesn't exist or if the
+	 * contents are different; the new contents replace the file on commit.
+	 */
+	private OutputManifest.Output writeIfChanged(ClassDoc clazz, byte[] b, String filename) throws IOException {
+		return writer.write(b, filename, manifest.getPreviousHash(clazz.qualifiedName(), filename));
+	}
+
+	/*
+	 * Write a Java companion class to the directory of its package under the Java
+	 * output directory.  The file is recorded by its absolute path, being outside
+	 * the output directory.  Callers check for the directory before the run.
+	 */
+	private OutputManifest.Output writeJavaSource(ClassDoc clazz, String className, byte[] b) throws IOException {
+		if (javaOutDir == null)
+			Util.bug("No Java output directory for the companion class " + className + ".");
+		String filename = new File(javaOutDir, className.replace('.', File.separatorChar) + ".java").getPath();
+		return writeIfChanged(clazz, b, filename);
+	}
+
+	/**
+	 * Returns a hash of everything the generated files for the class are derived
+	 * from: the generator, its options and the declarations of the class.  The
+	 * files of a class with an unchanged fingerprint are not generated again.
+	 */
+	protected String fingerprint(ClassDoc clazz) {
+		StringBuilder s = new StringBuilder(2048);
+		s.append(getGeneratorVersion()).append('\n');
+		describeOptions(s);
+		describe(s, clazz);
+		try {
+			return OutputManifest.hash(s.toString().getBytes("UTF-8"));
+		} catch (UnsupportedEncodingException use) {
+			Util.bug("Encoding UTF-8 not found.");
+			return null; /* dead code */
+		}
+	}
+
+	/**
+	 * Override this method to identify the generator.  Change the result whenever
+	 * the generated code changes, so previously generated files are replaced.
+	 */
+	protected abstract String getGeneratorVersion();
+
+	/**
+	 * Describe the options that affect the generated code.  Subclasses with further
+	 * options should extend this.
+	 */
+	protected void describeOptions(StringBuilder s) {
+		s.append("pch ").append(pch).append('\n');
+		s.append("namespace ").append(namespace).append('\n');
+		s.append("javad ").append(javaOutDir).append('\n');
+	}
+
+	/**
+	 * Describe the declarations of the class: every field, constructor and method
+	 * with its modifiers, types and annotations.  Method bodies are not included.
+	 * Every type goes through describe(StringBuilder, Type).
+	 */
+	protected void describe(StringBuilder s, ClassDoc clazz) {
+		s.append(clazz.modifiers()).append(" class ").append(clazz.qualifiedName());
+		if (clazz.superclass() != null)
+			s.append(" extends ").append(clazz.superclass().qualifiedName());
+		describe(s, clazz.annotations());
+		s.append('\n');
+
+		for (FieldDoc field : clazz.fields()) {
+			s.append(field.modifiers()).append(' ');
+			describe(s, field.type());
+			s.append(' ').append(field.name());
+			if (field.constantValueExpression() != null)
+				s.append(" = ").append(field.constantValueExpression());
+			describe(s, field.annotations());
+			s.append('\n');
 		}
 
-		if (Util.verbose)
-			Util.log(event + file + "]");
-		if (mustWrite) {
-			OutputStream out = new FileOutputStream(file);
-			out.write(b); /* No buffering, just one big write! */
-			out.close();
+		for (ConstructorDoc constructor : clazz.constructors()) {
+			s.append(constructor.modifiers()).append(' ').append(constructor.name());
+			describe(s, constructor.parameters());
+			describe(s, constructor.annotations());
+			s.append('\n');
+		}
+
+		for (MethodDoc method : clazz.methods()) {
+			s.append(method.modifiers()).append(' ');
+			describe(s, method.returnType());
+			s.append(' ').append(method.name());
+			describe(s, method.parameters());
+			describe(s, method.annotations());
+			s.append('\n');
+		}
+	}
+
+	/**
+	 * Describe a type used by the class.  Subclasses whose output for the type
+	 * depends on more than its name, such as on the superclasses of a referenced
+	 * class, should extend this.
+	 */
+	protected void describe(StringBuilder s, Type type) {
+		s.append(type.qualifiedTypeName()).append(type.dimension());
+	}
+
+	private void describe(StringBuilder s, Parameter[] parameters) {
+		s.append('(');
+		for (int i = 0; i < parameters.length; i++) {
+			if (i > 0)
+				s.append(',');
+			describe(s, parameters[i].type());
+		}
+		s.append(')');
+	}
+
+	private static void describe(StringBuilder s, AnnotationDesc[] annotations) {
+		for (AnnotationDesc annotation : annotations) {
+			s.append(" @").append(annotation.annotationType().qualifiedName()).append('(');
+			for (AnnotationDesc.ElementValuePair pair : annotation.elementValues())
+				s.append(pair.element().name()).append('=').append(pair.value()).append(';');
+			s.append(')');
 		}
 	}
 
@@ -307,7 +666,7 @@ public abstract class Gen {
 	/*
 	 * File name and file preamble related operations.
 	 */
-	private String getFileTop() {
+	protected String getFileTop() {
 		return "/* DO NOT EDIT THIS FILE - it is machine generated */";
 	}
 	
@@ -333,10 +692,6 @@ public abstract class Gen {
 		return Mangle.mangle(clazz.simpleTypeName(), Mangle.Type.CLASS);
 	}
 
-	private String getFileObject(String filename) {
-		return outDir + filename;
-	}
-
 	/**
 	 * Including super classes' fields.
 	 */
@@ -50,54 +50,95 @@ public class Mangle {
 	};
 
 
+	/* Warning: Intentional ASCII operation. */
+	private static final boolean[] alnum = new boolean[128];
+	static {
+		for (char ch = 'A'; ch <= 'Z'; ch++)
+			alnum[ch] = true;
+		for (char ch = 'a'; ch <= 'z'; ch++)
+			alnum[ch] = true;
+		for (char ch = '0'; ch <= '9'; ch++)
+			alnum[ch] = true;
+	}
+
+	private static final char[] hexDigits = "0123456789abcdef".toCharArray();
+
 	public static final String mangle(String name, int mtype) {
-		StringBuffer result = new StringBuffer(100);
+		/* Most names need no mangling at all. */
 		int length = name.length();
+		int i = 0;
+		while (i < length && isalnum(name.charAt(i)))
+			i++;
+		if (i == length)
+			return name;
+
+		StringBuilder result = new StringBuilder(length + 16);
+		result.append(name, 0, i);
+		mangle(result, name, i, length, mtype);
+		return result.toString();
+	}
 
-		for (int i = 0; i < length; i++) {
+	/*
+	 * Append the mangled characters [start, end) of name.
+	 */
+	private static void mangle(StringBuilder result, CharSequence name, int start, int end, int mtype) {
+		for (int i = start; i < end; i++) {
 			char ch = name.charAt(i);
 			if (isalnum(ch)) {
 				result.append(ch);
-			} else if ((ch == '.') && mtype == Mangle.Type.CLASS) {
-				result.append('_');
-			} else if (( ch == '$') && mtype == Mangle.Type.CLASS) {
-				result.append('_');
-				result.append('_');
-			} else if (ch == '_' && mtype == Mangle.Type.FIELDSTUB) {
-				result.append('_');
-			} else if (ch == '_' && mtype == Mangle.Type.CLASS) {
-				result.append('_');
-			} else if (mtype == Mangle.Type.JNI) {
-				String esc = null;
+				continue;
+			}
+
+			switch (mtype) {
+			case Mangle.Type.CLASS:
+				if (ch == '.' || ch == '_')
+					result.append('_');
+				else if (ch == '$')
+					result.append('_').append('_');
+				else
+					appendMangledChar(result, ch);
+				break;
+			case Mangle.Type.FIELDSTUB:
+				if (ch == '_')
+					result.append('_');
+				else
+					appendMangledChar(result, ch);
+				break;
+			case Mangle.Type.JNI:
 				if (ch == '_')
-					esc = "_1";
-				else if (ch == '.')
-					esc = "_";
+					result.append("_1");
+				else if (ch == '.' || ch == '/')
+					result.append('_');
 				else if (ch == ';')
-					esc = "_2";
+					result.append("_2");
 				else if (ch == '[')
-					esc = "_3";
-				if (esc != null) {
-					result.append(esc);
-				} else {
-					result.append(mangleChar(ch));
-				}
-			} else if (mtype == Mangle.Type.SIGNATURE) {
-				if (isprint(ch)) {
+					result.append("_3");
+				else
+					appendMangledChar(result, ch);
+				break;
+			case Mangle.Type.SIGNATURE:
+				if (isprint(ch))
 					result.append(ch);
-				} else {
-					result.append(mangleChar(ch));
-				}
-			} else {
-				result.append(mangleChar(ch));
+				else
+					appendMangledChar(result, ch);
+				break;
+			default:
+				appendMangledChar(result, ch);
+				break;
 			}
 		}
-
-		return result.toString();
 	}
 
 	public static String mangleMethod(MethodDoc method, RootDoc root, ClassDoc clazz, int mtype) {
-		StringBuffer result = new StringBuffer(100);
+		return mangleMethod(method, new TypeSignature(root), clazz, mtype);
+	}
+
+	/*
+	 * Mangle a method name, using (and filling) the signatures cached by the
+	 * given TypeSignature.
+	 */
+	public static String mangleMethod(MethodDoc method, TypeSignature typeSignature, ClassDoc clazz, int mtype) {
+		StringBuilder result = new StringBuilder(100);
 		result.append("Java_");
 
 		if (mtype == Mangle.Type.METHOD_JDK_1) {
@@ -109,50 +150,39 @@ public class Mangle {
 		}
 
 		/* JNI */
-		result.append(mangle(getInnerQualifiedName(clazz), Mangle.Type.JNI));
+		String className = typeSignature.getTypeSignature(clazz);
+		mangle(result, className, 0, className.length(), Mangle.Type.JNI);
 		result.append('_');
-		result.append(mangle(method.name(), Mangle.Type.JNI));
+		mangle(result, method.name(), 0, method.name().length(), Mangle.Type.JNI);
 		if (mtype == Mangle.Type.METHOD_JNI_LONG) {
 			result.append("__");
-			String typesig = method.signature();
-			TypeSignature newTypeSig = new TypeSignature(root);
-			String sig = newTypeSig.getTypeSignature(typesig,  method.returnType());
-			sig = sig.substring(1);
-			sig = sig.substring(0, sig.lastIndexOf(')'));
-			sig = sig.replace('/', '.');
-			result.append(mangle(sig, Mangle.Type.JNI));
+			/* The parameter types, without the parentheses and return type. */
+			String sig = typeSignature.getTypeSignature(method);
+			mangle(result, sig, 1, sig.lastIndexOf(')'), Mangle.Type.JNI);
 		}
 
 		return result.toString();
 	}
 
-	//where
-	private static String getInnerQualifiedName(ClassDoc clazz) {
-		ClassDoc encl = clazz.containingClass();
-		if (encl == null)
-			return clazz.qualifiedName();
-		else
-			return getInnerQualifiedName(encl) + '$' + clazz.simpleTypeName();
+	public static final String mangleChar(char ch) {
+		StringBuilder result = new StringBuilder(6);
+		appendMangledChar(result, ch);
+		return result.toString();
 	}
 
-	public static final String mangleChar(char ch) {
-		String s = Integer.toHexString(ch);
-		int nzeros = 5 - s.length();
-		char[] result = new char[6];
-		result[0] = '_';
-		for (int i = 1; i <= nzeros; i++)
-			result[i] = '0';
-		for (int i = nzeros+1, j = 0; i < 6; i++, j++)
-			result[i] = s.charAt(j);
-		return new String(result);
+	/*
+	 * Append '_' and the character as five hex digits.
+	 */
+	private static void appendMangledChar(StringBuilder result, char ch) {
+		result.append('_');
+		result.append('0');
+		for (int shift = 12; shift >= 0; shift -= 4)
+			result.append(hexDigits[(ch >> shift) & 0xF]);
 	}
 
 	/* Warning: Intentional ASCII operation. */
 	private static final boolean isalnum(char ch) {
-		return ch <= 0x7f && /* quick test */
-				((ch >= 'A' && ch <= 'Z') ||
-						(ch >= 'a' && ch <= 'z') ||
-						(ch >= '0' && ch <= '9'));
+		return ch < 128 && alnum[ch];
 	}
 
 	/* Warning: Intentional ASCII operation. */
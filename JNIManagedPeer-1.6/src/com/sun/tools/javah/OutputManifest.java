@@ -0,0 +1,315 @@
+/*
+ * Copyright 2014 Jesse Benson
+ *
+ * This code is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this work. If not, see http://www.gnu.org/licenses/.
+ */
+
+package com.sun.tools.javah;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * The on-disk record of a previous generation into an output directory.
+ *
+ * For every generated class the manifest keeps a fingerprint of the inputs
+ * that went into its peer, and the name, length and hash of each file that
+ * was written for it.  A class whose fingerprint is unchanged and whose
+ * files are still in place does not need to be generated again.
+ *
+ * The manifest is shared by all generator threads, so access is synchronized.
+ */
+public class OutputManifest {
+
+	public static final String FILENAME = ".jnimanagedpeer";
+
+	private static final String HEADER = "# JNIManagedPeer incremental manifest - it is machine generated";
+	private static final int VERSION = 1;
+	private static final String TEMP_SUFFIX = ".tmp";
+	private static final boolean isWindows = System.getProperty("os.name").startsWith("Windows");
+
+	/*
+	 * A file written for a class, relative to the output directory, or absolute
+	 * if it is outside of it.
+	 */
+	public static class Output {
+		public final String name;
+		public final long length;
+		public final String hash;
+
+		public Output(String name, long length, String hash) {
+			this.name = name;
+			this.length = length;
+			this.hash = hash;
+		}
+	}
+
+	private static class Entry {
+		final String fingerprint;
+		final List<Output> outputs = new ArrayList<Output>(2);
+
+		Entry(String fingerprint) {
+			this.fingerprint = fingerprint;
+		}
+	}
+
+	private final File file;
+	private final File dir;
+
+	/* Entries loaded from the previous run. */
+	private final Map<String, Entry> previous = new TreeMap<String, Entry>();
+	/* Entries recorded by this run. */
+	private final Map<String, Entry> current = new TreeMap<String, Entry>();
+	/* Whether this run recorded anything that differs from the previous one. */
+	private boolean dirty = false;
+
+	private OutputManifest(File dir) {
+		this.dir = dir;
+		this.file = new File(dir, FILENAME);
+	}
+
+	/**
+	 * Read the manifest of the given output directory.  A missing or unreadable
+	 * manifest is treated as empty, which simply regenerates everything.
+	 */
+	public static OutputManifest load(String outDir) {
+		OutputManifest manifest = new OutputManifest(new File(outDir));
+		if (manifest.file.exists()) {
+			try {
+				manifest.read();
+			} catch (IOException e) {
+				manifest.previous.clear();
+				if (Util.verbose)
+					Util.log("[Ignoring unreadable manifest " + manifest.file + "]");
+			}
+		}
+		return manifest;
+	}
+
+	private void read() throws IOException {
+		BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+		try {
+			Entry entry = null;
+			String line;
+			while ((line = in.readLine()) != null) {
+				if (line.length() == 0 || line.charAt(0) == '#')
+					continue;
+
+				String[] fields = line.split(" ");
+				if (fields[0].equals("version") && fields.length == 2) {
+					if (Integer.parseInt(fields[1]) != VERSION)
+						throw new IOException("Unsupported manifest version " + fields[1]);
+				} else if (fields[0].equals("class") && fields.length == 3) {
+					entry = new Entry(fields[2]);
+					previous.put(fields[1], entry);
+				} else if (fields[0].equals("output") && fields.length >= 4 && entry != null) {
+					/* An absolute name may contain spaces; the length and hash never do. */
+					String length = fields[fields.length - 2];
+					String hash = fields[fields.length - 1];
+					String name = line.substring(fields[0].length() + 1, line.length() - length.length() - hash.length() - 2);
+					entry.outputs.add(new Output(name, Long.parseLong(length), hash));
+				} else {
+					throw new IOException("Malformed manifest line: " + line);
+				}
+			}
+		} catch (NumberFormatException e) {
+			throw new IOException(e.getMessage());
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Returns true if the class was generated from the same inputs by a previous
+	 * run and all of its files are still present with the recorded length.  The
+	 * previous entry is carried over into this run in that case.
+	 */
+	public synchronized boolean isCurrent(String className, String fingerprint) {
+		Entry entry = previous.get(className);
+		if (entry == null || !entry.fingerprint.equals(fingerprint) || entry.outputs.isEmpty())
+			return false;
+
+		for (Output output : entry.outputs) {
+			File f = resolve(dir, output.name);
+			if (f.length() != output.length || !f.isFile())
+				return false;
+		}
+
+		current.put(className, entry);
+		return true;
+	}
+
+	/**
+	 * Returns the names of the classes recorded by the previous run.
+	 */
+	public synchronized Set<String> getPreviousClasses() {
+		Set<String> names = new HashSet<String>();
+		for (String name : previous.keySet()) {
+			/* Files derived from all the classes are recorded under "/<file>". */
+			if (!name.startsWith("/"))
+				names.add(name);
+		}
+		return names;
+	}
+
+	/**
+	 * Returns the hash recorded by the previous run for the named file of the class, or null.
+	 */
+	public synchronized String getPreviousHash(String className, String name) {
+		Entry entry = previous.get(className);
+		if (entry != null) {
+			for (Output output : entry.outputs) {
+				if (output.name.equals(name))
+					return output.hash;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Record a file written (or found up to date) for the class in this run.
+	 */
+	public synchronized void record(String className, String fingerprint, Output output) {
+		Entry entry = current.get(className);
+		if (entry == null || !entry.fingerprint.equals(fingerprint)) {
+			entry = new Entry(fingerprint);
+			current.put(className, entry);
+		}
+		entry.outputs.add(output);
+		dirty = true;
+	}
+
+	/**
+	 * Delete the files of classes that were generated by the previous run but
+	 * are no longer part of this one.  Files still produced by another class are kept.
+	 */
+	public synchronized void prune() {
+		Set<String> live = new HashSet<String>();
+		for (Entry entry : current.values()) {
+			for (Output output : entry.outputs)
+				live.add(output.name);
+		}
+
+		for (Map.Entry<String, Entry> stale : previous.entrySet()) {
+			if (current.containsKey(stale.getKey()))
+				continue;
+
+			for (Output output : stale.getValue().outputs) {
+				if (live.contains(output.name))
+					continue;
+
+				File f = resolve(dir, output.name);
+				if (f.isFile()) {
+					if (Util.verbose)
+						Util.log("[Removing stale file " + f + "]");
+					if (!f.delete())
+						Util.error("Failed to delete stale file: %s", f.toString());
+				}
+			}
+		}
+	}
+
+	/**
+	 * Keep the entries of classes that were not part of this run, when the run
+	 * only covered some of the classes generated into the directory.
+	 */
+	public synchronized void retainPrevious() {
+		for (Map.Entry<String, Entry> entry : previous.entrySet()) {
+			if (!current.containsKey(entry.getKey()))
+				current.put(entry.getKey(), entry.getValue());
+		}
+	}
+
+	/**
+	 * Write this run's entries, in class name order so the file is stable.  Nothing
+	 * is written when every class was found up to date.  Like OutputWriter, the
+	 * entries go to a temporary file that is renamed over the manifest, so an
+	 * interrupted run leaves the previous manifest whole.
+	 */
+	public synchronized void save() throws IOException {
+		if (!dirty && current.keySet().equals(previous.keySet()))
+			return;
+
+		File temp = File.createTempFile(file.getName() + ".", TEMP_SUFFIX, dir);
+		boolean written = false;
+		PrintWriter out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(temp), "UTF-8"));
+		try {
+			out.print(HEADER + "\n");
+			out.print("version " + VERSION + "\n");
+			for (Map.Entry<String, Entry> entry : current.entrySet()) {
+				out.print("class " + entry.getKey() + " " + entry.getValue().fingerprint + "\n");
+				for (Output output : entry.getValue().outputs)
+					out.print("output " + output.name + " " + output.length + " " + output.hash + "\n");
+			}
+			written = !out.checkError();
+		} finally {
+			out.close();
+			if (!written)
+				temp.delete();
+		}
+		if (!written)
+			throw new IOException("Failed to write " + file);
+
+		if (!temp.renameTo(file)) {
+			/* Windows does not rename over an existing file. */
+			if (!(isWindows && file.delete() && temp.renameTo(file))) {
+				temp.delete();
+				throw new IOException("Failed to replace file " + file);
+			}
+		}
+	}
+
+	/**
+	 * The file of an output name: relative to the output directory, unless absolute.
+	 */
+	static File resolve(File dir, String name) {
+		File f = new File(name);
+		return (f.isAbsolute() ? f : new File(dir, name));
+	}
+
+	/**
+	 * Hex encoded SHA-1 of the given bytes.
+	 */
+	public static String hash(byte[] b) {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			Util.bug("SHA-1 message digest not found.", e);
+			return null; /* dead code */
+		}
+
+		byte[] d = digest.digest(b);
+		char[] hex = new char[d.length * 2];
+		for (int i = 0; i < d.length; i++) {
+			hex[2*i] = Character.forDigit((d[i] >> 4) & 0xf, 16);
+			hex[2*i+1] = Character.forDigit(d[i] & 0xf, 16);
+		}
+		return new String(hex);
+	}
+}
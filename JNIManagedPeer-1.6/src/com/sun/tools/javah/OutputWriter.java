@@ -0,0 +1,183 @@
+/*
+ * Copyright 2014 Jesse Benson
+ *
+ * This code is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this work. If not, see http://www.gnu.org/licenses/.
+ */
+
+package com.sun.tools.javah;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Writes generated files into an output directory.
+ *
+ * A file is only replaced when its content differs.  New content is first
+ * written to a temporary file next to the target, and all the temporary files
+ * of a run are renamed over their targets together by commit(), so a compiler
+ * reading the directory never sees a partially written file.
+ *
+ * Files may be written from several generator threads.
+ */
+public class OutputWriter {
+
+	/* Size of the chunks compared against an existing file. */
+	private static final int CHUNK = 64 * 1024;
+
+	private static final String TEMP_SUFFIX = ".tmp";
+
+	private static final boolean isWindows = System.getProperty("os.name").startsWith("Windows");
+
+	private static class Staged {
+		final File temp;
+		final File target;
+
+		Staged(File temp, File target) {
+			this.temp = temp;
+			this.target = target;
+		}
+	}
+
+	private final File dir;
+	private final boolean force;
+	private final List<Staged> staged = new ArrayList<Staged>();
+
+	public OutputWriter(File dir, boolean force) {
+		this.dir = dir;
+		this.force = force;
+	}
+
+	/**
+	 * Stage the contents of byte[] b for the named file.  The file is written
+	 * if it doesn't exist or if its contents are different.  If the hash of the
+	 * previously written contents is known and matches, a file of the same
+	 * length is assumed to be unchanged without reading it.
+	 */
+	public OutputManifest.Output write(byte[] b, String filename, String previousHash) throws IOException {
+		File f = OutputManifest.resolve(dir, filename);
+		String hash = OutputManifest.hash(b);
+		boolean mustWrite = false;
+		String event = "[No need to update file ";
+
+		if (force) {
+			mustWrite = true;
+			event = "[Forcefully writing file ";
+		} else if (!f.exists()) {
+			mustWrite = true;
+			event = "[Creating file ";
+		} else if (f.length() != b.length) {
+			mustWrite = true;
+			event = "[Overwriting file ";
+		} else if (!hash.equals(previousHash) && !contentEquals(f, b)) {
+			mustWrite = true;
+			event = "[Overwriting file ";
+		}
+
+		if (Util.verbose)
+			Util.log(event + f + "]");
+		if (mustWrite)
+			stage(b, f);
+		return new OutputManifest.Output(filename, b.length, hash);
+	}
+
+	/*
+	 * Compare the file against b, stopping at the first chunk that differs.  The
+	 * file is read through a channel rather than mapped: on Windows a mapped file
+	 * cannot be replaced until the mapping is garbage collected.
+	 */
+	private static boolean contentEquals(File f, byte[] b) throws IOException {
+		FileInputStream in = new FileInputStream(f);
+		try {
+			FileChannel channel = in.getChannel();
+			ByteBuffer buffer = ByteBuffer.allocate(Math.min(CHUNK, b.length));
+			int offset = 0;
+			while (offset < b.length) {
+				buffer.clear();
+				buffer.limit(Math.min(buffer.capacity(), b.length - offset));
+				while (buffer.hasRemaining()) {
+					if (channel.read(buffer) < 0)
+						return false; /* The file shrank underneath us. */
+				}
+				buffer.flip();
+				if (!buffer.equals(ByteBuffer.wrap(b, offset, buffer.limit())))
+					return false;
+				offset += buffer.limit();
+			}
+			return true;
+		} finally {
+			in.close();
+		}
+	}
+
+	private void stage(byte[] b, File target) throws IOException {
+		/* The file may go to a directory of its own, such as that of a Java package. */
+		File parent = target.getParentFile();
+		if (!parent.mkdirs() && !parent.isDirectory())
+			throw new IOException("Failed to create directory " + parent);
+		File temp = File.createTempFile(target.getName() + ".", TEMP_SUFFIX, parent);
+		boolean written = false;
+		FileOutputStream out = new FileOutputStream(temp);
+		try {
+			FileChannel channel = out.getChannel();
+			ByteBuffer buffer = ByteBuffer.wrap(b);
+			while (buffer.hasRemaining())
+				channel.write(buffer); /* No buffering, just one big write! */
+			written = true;
+		} finally {
+			out.close();
+			if (!written)
+				temp.delete();
+		}
+
+		synchronized (staged) {
+			staged.add(new Staged(temp, target));
+		}
+	}
+
+	/**
+	 * Move every staged file over its target.
+	 */
+	public void commit() throws IOException {
+		synchronized (staged) {
+			try {
+				for (Staged s : staged) {
+					if (!s.temp.renameTo(s.target)) {
+						/* Windows does not rename over an existing file. */
+						if (!(isWindows && s.target.delete() && s.temp.renameTo(s.target)))
+							throw new IOException("Failed to replace file " + s.target);
+					}
+				}
+			} finally {
+				abort();
+			}
+		}
+	}
+
+	/**
+	 * Discard every file staged but not yet committed.
+	 */
+	public void abort() {
+		synchronized (staged) {
+			for (Staged s : staged)
+				s.temp.delete();
+			staged.clear();
+		}
+	}
+}
@@ -28,14 +28,16 @@ package com.sun.tools.javah;
 
 import com.sun.javadoc.*;
 
-import java.io.*;
-import java.util.*;
-
-import javax.lang.model.element.TypeElement;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Returns internal type signature.
  *
+ * Signatures are computed from the structured types of the doclet API and
+ * cached for the whole run: one instance is shared by every generator thread.
+ *
  * @author Sucheta Dambalkar
  */
 
@@ -45,191 +47,108 @@ public class TypeSignature{
 
 	/* Signature Characters */
 
-	private static final String SIG_VOID                   = "V";
-	private static final String SIG_BOOLEAN                = "Z";
-	private static final String SIG_BYTE                   = "B";
-	private static final String SIG_CHAR                   = "C";
-	private static final String SIG_SHORT                  = "S";
-	private static final String SIG_INT                    = "I";
-	private static final String SIG_LONG                   = "J";
-	private static final String SIG_FLOAT                  = "F";
-	private static final String SIG_DOUBLE                 = "D";
-	private static final String SIG_ARRAY                  = "[";
-	private static final String SIG_CLASS                  = "L";
-
+	private static final char SIG_VOID                   = 'V';
+	private static final char SIG_BOOLEAN                = 'Z';
+	private static final char SIG_BYTE                   = 'B';
+	private static final char SIG_CHAR                   = 'C';
+	private static final char SIG_SHORT                  = 'S';
+	private static final char SIG_INT                    = 'I';
+	private static final char SIG_LONG                   = 'J';
+	private static final char SIG_FLOAT                  = 'F';
+	private static final char SIG_DOUBLE                 = 'D';
+	private static final char SIG_ARRAY                  = '[';
+	private static final char SIG_CLASS                  = 'L';
+	private static final char SIG_END_CLASS              = ';';
+
+	private static final Map<String, Character> primitives = new HashMap<String, Character>();
+	static {
+		primitives.put("void", SIG_VOID);
+		primitives.put("boolean", SIG_BOOLEAN);
+		primitives.put("byte", SIG_BYTE);
+		primitives.put("char", SIG_CHAR);
+		primitives.put("short", SIG_SHORT);
+		primitives.put("int", SIG_INT);
+		primitives.put("long", SIG_LONG);
+		primitives.put("float", SIG_FLOAT);
+		primitives.put("double", SIG_DOUBLE);
+	}
 
+	/* Internal names of classes and signatures of methods, by document. */
+	private final Map<ClassDoc, String> classSignatures = new ConcurrentHashMap<ClassDoc, String>();
+	private final Map<ExecutableMemberDoc, String> methodSignatures = new ConcurrentHashMap<ExecutableMemberDoc, String>();
 
 	public TypeSignature(RootDoc root) {
 		this.root = root;
 	}
 
 	/*
-	 * Returns the type signature of a field according to JVM specs
+	 * Returns the internal name of a class according to JVM specs: nested
+	 * classes are separated from their enclosing class by '$'.
 	 */
-	public String getTypeSignature(String javasignature) {
-		return getParamJVMSignature(javasignature);
+	public String getTypeSignature(ClassDoc clazz) {
+		String signature = classSignatures.get(clazz);
+		if (signature == null) {
+			ClassDoc encl = clazz.containingClass();
+			if (encl == null)
+				signature = clazz.qualifiedName().replace('.', '/');
+			else
+				signature = getTypeSignature(encl) + '$' + clazz.simpleTypeName();
+			classSignatures.put(clazz, signature);
+		}
+		return signature;
 	}
 
 	/*
-	 * Returns the type signature of a class according to JVM specs
+	 * Returns the type signature of a field or parameter type according to JVM specs
 	 */
-	public String getTypeSignature(ClassDoc clazz) {
-		String classname = clazz.qualifiedName();
-		return classname.replace('.', '/');
+	public String getTypeSignature(Type type) {
+		StringBuilder s = new StringBuilder(32);
+		appendTypeSignature(s, type);
+		return s.toString();
 	}
-	
+
 	/*
-	 * Returns the type signature of a method according to JVM specs
+	 * Returns the type signature of a method or constructor according to JVM specs
 	 */
-	public String getTypeSignature(String javasignature, Type returnType) {
-
-		String signature = null; //Java type signature.
-		String typeSignature = null; //Internal type signature.
-		Vector params = new Vector(); //List of parameters.
-		String paramsig = null; //Java parameter signature.
-		String paramJVMSig = null; //Internal parameter signature.
-		String returnSig = null; //Java return type signature.
-		String returnJVMType = null; //Internal return type signature.
-		String dimension = null; //Array dimension.
-
-		int startIndex = -1;
-		int endIndex = -1;
-		StringTokenizer st = null;
-		int i = 0;
-
-		// Gets the actual java signature without parentheses.
-		if (javasignature != null) {
-			startIndex = javasignature.indexOf("(");
-			endIndex = javasignature.indexOf(")");
-		}
-
-		if (((startIndex != -1) && (endIndex != -1))
-				&&(startIndex+1 < javasignature.length())
-				&&(endIndex < javasignature.length())) {
-
-			signature = javasignature.substring(startIndex+1, endIndex);
-		}
-
-		// Separates parameters.
-		if (signature != null) {
-			if (signature.indexOf(",") != -1) {
-				st = new StringTokenizer(signature, ",");
-				if (st != null) {
-					while (st.hasMoreTokens()) {
-						params.add(st.nextToken());
-					}
-				}
-			} else {
-				params.add(signature);
-			}
-		}
-
-		/* JVM type signature. */
-		typeSignature = "(";
-
-		// Gets indivisual internal parameter signature.
-		while (params.isEmpty() != true) {
-			paramsig =((String)params.remove(i)).trim();
-			paramJVMSig  = getParamJVMSignature(paramsig);
-			if (paramJVMSig != null) {
-				typeSignature += paramJVMSig;
-			}
+	public String getTypeSignature(ExecutableMemberDoc method) {
+		String signature = methodSignatures.get(method);
+		if (signature == null) {
+			StringBuilder s = new StringBuilder(64);
+			s.append('(');
+			for (Parameter param : method.parameters())
+				appendTypeSignature(s, param.type());
+			s.append(')');
+			if (method instanceof MethodDoc)
+				appendTypeSignature(s, ((MethodDoc)method).returnType());
+			else
+				s.append(SIG_VOID);
+			signature = s.toString();
+			methodSignatures.put(method, signature);
 		}
+		return signature;
+	}
 
-		typeSignature += ")";
-
-		// Get internal return type signature.
+	private void appendTypeSignature(StringBuilder s, Type type) {
+		/* The dimension is "[]" for each dimension of an array. */
+		int dimensions = type.dimension().length() / 2;
+		for (int i = 0; i < dimensions; i++)
+			s.append(SIG_ARRAY);
 
-		returnJVMType = "";
-		if (returnType != null) {
-			dimension = returnType.dimension();
+		Character primitive = primitives.get(type.typeName());
+		if (primitive != null && type.asClassDoc() == null) {
+			s.append(primitive.charValue());
+			return;
 		}
 
-		if (dimension != null) {
-
-			//Gets array dimension of return type.
-			while (dimension.indexOf("[]") != -1) {
-				returnJVMType += "[";
-				int stindex = dimension.indexOf("]") + 1;
-				if (stindex <= dimension.length()) {
-					dimension = dimension.substring(stindex);
-				} else dimension = "";
-			}
-		}
-		if (returnType != null) {
-			returnSig = returnType.qualifiedTypeName();
-			returnJVMType += getComponentType(returnSig);
+		ClassDoc clazz = type.asClassDoc();
+		s.append(SIG_CLASS);
+		if (clazz != null) {
+			s.append(getTypeSignature(clazz));
 		} else {
-			System.out.println("Invalid return type.");
-		}
-
-		typeSignature += returnJVMType;
-		return typeSignature;
-	}
-
-	/*
-	 * Returns internal signature of a parameter.
-	 */
-	private String getParamJVMSignature(String paramsig) {
-		String paramJVMSig = "";
-		String componentType ="";
-
-		if (paramsig != null) {
-
-			if (paramsig.indexOf("[]") != -1) {
-				// Gets array dimension.
-				int endindex = paramsig.indexOf("[]");
-				componentType = paramsig.substring(0, endindex);
-				String dimensionString =  paramsig.substring(endindex);
-				if (dimensionString != null) {
-					while(dimensionString.indexOf("[]") != -1) {
-						paramJVMSig += "[";
-						int beginindex = dimensionString.indexOf("]") + 1;
-						if (beginindex < dimensionString.length()) {
-							dimensionString = dimensionString.substring(beginindex);
-						} else
-							dimensionString = "";
-					}
-				}
-			} else componentType = paramsig;
-
-			paramJVMSig += getComponentType(componentType);
-		}
-		return paramJVMSig;
-	}
-
-	/*
-	 * Returns internal signature of a component.
-	 */
-	private String getComponentType(String componentType) {
-
-		String JVMSig = "";
-
-		if (componentType != null) {
-			if (componentType.equals("void")) JVMSig += SIG_VOID ;
-			else if (componentType.equals("boolean")) JVMSig += SIG_BOOLEAN;
-			else if (componentType.equals("byte")) JVMSig += SIG_BYTE;
-			else if (componentType.equals("char")) JVMSig += SIG_CHAR;
-			else if (componentType.equals("short")) JVMSig += SIG_SHORT;
-			else if (componentType.equals("int")) JVMSig += SIG_INT;
-			else if (componentType.equals("long")) JVMSig += SIG_LONG;
-			else if (componentType.equals("float")) JVMSig += SIG_FLOAT;
-			else if (componentType.equals("double")) JVMSig += SIG_DOUBLE;
-			else {
-				if (!componentType.equals("")) {
-					ClassDoc classNameDoc = root.classNamed(componentType);
-
-					if (classNameDoc == null) {
-						System.out.println("Invalid class type");
-					} else {
-						JVMSig += "L";
-						JVMSig += getTypeSignature(classNameDoc);
-						JVMSig += ";";
-					}
-				}
-			}
+			/* Unresolved class: its name is all there is. */
+			Util.log("Invalid class type " + type.qualifiedTypeName());
+			s.append(type.qualifiedTypeName().replace('.', '/'));
 		}
-
-		return JVMSig;
+		s.append(SIG_END_CLASS);
 	}
 }
@@ -46,8 +46,43 @@ public class Util {
      */
     public static boolean verbose = false;
 
+    /*
+     * Generation may run on several threads, so every message is written
+     * while holding this lock to keep lines (and the exit) from interleaving.
+     */
+    private static final Object lock = new Object();
+
+    /*
+     * When the generator runs inside another tool (javac, a server) a failure
+     * must not take the whole process down, so it is thrown as Util.Exit.
+     */
+    private static volatile boolean exitOnError = true;
+
+    public static void setExitOnError(boolean state) {
+        exitOnError = state;
+    }
+
+    public static class Exit extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        public final int exitValue;
+
+        public Exit(int exitValue) {
+            super("exit " + exitValue);
+            this.exitValue = exitValue;
+        }
+    }
+
+    private static void exit(int exitValue) {
+        if (exitOnError)
+            System.exit(exitValue);
+        throw new Exit(exitValue);
+    }
+
     public static void log(String s) {
-        System.out.println(s);
+        synchronized (lock) {
+            System.out.println(s);
+        }
     }
 
     public static String getText(String key) {
@@ -55,6 +90,9 @@ public class Util {
     }
 
     private static String getText(String message, String a1, String a2){
+        /* Callers pass printf style keys ("%s"), not MessageFormat patterns. */
+        if (message.indexOf('%') != -1)
+            return String.format(message, a1, a2);
         return MessageFormat.format(message, new Object[] { a1, a2 });
     }
 
@@ -76,17 +114,29 @@ public class Util {
     	out.println("\t-pch <file>           Precompiled header file to include in .cpp files (#include <file>)");
     	out.println("\t-namespace <ns>       Namespace to put the C++ managed peers in (ex: My.Namespace)");
     	out.println("\t-d <dir>              Output directory");
+    	out.println("\t-javad <dir>          Source directory for the Java companion classes (batched methods, packers)");
     	out.println("\t-version              Print version information");
     	out.println("\t-verbose              Enable verbose output");
     	out.println("\t-force                Always write output files");
+    	out.println("\t-eager                Resolve the class and method IDs of each peer in Initialize(JNIEnv*)");
+    	out.println("\t-jvalues              Pass call arguments in jvalue arrays (Call<Type>MethodA) instead of varargs");
+    	out.println("\t-exceptions <policy>  What methods do when the Java method throws: none (default), throw or result");
+    	out.println("\t-registry <name>      Also generate <name>.h/.cpp, initializing all peers at once (implies -eager)");
+    	out.println("\t-j <threads>          Number of classes to generate in parallel (default 1)");
+    	out.println("\t-typemap <file>       Custom mappings of Java types to C++ types");
+    	out.println("\t-classfiles           Read compiled classes instead of sources; <classes> may also be");
+    	out.println("\t                      jars or directories, which are searched for @JNIClass classes");
+    	out.println("\t-batch <file>         Generate the units of a manifest, each into its own directory");
+    	out.println("\t-daemon [-port <port>] Serve commands on stdin/stdout or a local TCP port (first option)");
+    	out.println("\t-port <port>          Run the command in the daemon on that port (first option)");
     	
-        System.exit(exitValue);
+        exit(exitValue);
     }
 
     public static void version() {
         System.out.println("JNIManagedPeer 1.6");
         System.out.println("Java " + System.getProperty("java.version"));
-        System.exit(0);
+        exit(0);
     }
 
     /*
@@ -97,10 +147,12 @@ public class Util {
     }
 
     public static void bug(String key, Exception e) {
-        if (e != null)
-            e.printStackTrace();
-        System.err.println(getText(key));
-        System.exit(11);
+        synchronized (lock) {
+            if (e != null)
+                e.printStackTrace();
+            System.err.println(getText(key));
+            exit(11);
+        }
     }
 
     public static void error(String key) {
@@ -116,10 +168,12 @@ public class Util {
     }
 
     public static void error(String key, String a1, String a2, boolean showUsage) {
-        System.err.println("Error: " + getText(key, a1, a2));
-        if (showUsage)
-            usage(15);
-        System.exit(15);
+        synchronized (lock) {
+            System.err.println("Error: " + getText(key, a1, a2));
+            if (showUsage)
+                usage(15);
+            exit(15);
+        }
     }
 
     private static void fatal(String msg) {
@@ -131,6 +185,6 @@ public class Util {
             e.printStackTrace();
         }
         System.err.println(msg);
-        System.exit(10);
+        exit(10);
     }
 }
@@ -0,0 +1,202 @@
+/*
+ * Copyright 2014 Jesse Benson
+ *
+ * This code is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this work. If not, see http://www.gnu.org/licenses/.
+ */
+
+package com.jni.bench;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.jni.tools.JNIGenerator;
+import com.sun.javadoc.ClassDoc;
+import com.sun.javadoc.MethodDoc;
+import com.sun.javadoc.RootDoc;
+import com.sun.tools.javah.Mangle;
+import com.sun.tools.javah.OutputManifest;
+import com.sun.tools.javah.OutputWriter;
+import com.sun.tools.javah.TypeSignature;
+
+/**
+ * Measures the stages of generating one managed peer separately: emitting
+ * the header and the definition, computing method descriptors, mangling,
+ * and writing the output when it is unchanged or changed.  The class shape
+ * is set with the parameters (-p methods=200 -p types=ARRAY).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(2)
+public class GeneratorBenchmark {
+
+	/* Number of @JNIMethod methods of the class. */
+	@Param({ "10", "100" })
+	public int methods;
+
+	/* Number of parameters of each method. */
+	@Param({ "0", "3", "8" })
+	public int arity;
+
+	@Param({ "PRIMITIVE", "ARRAY", "OBJECT", "MIXED" })
+	public SyntheticClasses.Types types;
+
+	private SyntheticClasses synthetic;
+	private RootDoc root;
+	private ClassDoc clazz;
+	private MethodDoc[] classMethods;
+	private JNIGenerator generator;
+	private TypeSignature typeSignature;
+
+	private File dir;
+	private byte[] header;
+	private byte[] changedHeader;
+	private String headerHash;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		/* Two classes, so object types also refer to a synthetic class. */
+		synthetic = new SyntheticClasses(2, methods, arity, types);
+		root = synthetic.root();
+		clazz = root.classes()[1];
+		classMethods = clazz.methods();
+
+		generator = new JNIGenerator(root);
+		generator.setNamespace("Bench.Synthetic");
+		generator.setPrecompiledHeader("precomp.h");
+		typeSignature = new TypeSignature(root);
+
+		/* Resolve everything once, so the emission benchmarks measure emission. */
+		writeDeclaration();
+		writeDefinition();
+
+		dir = File.createTempFile("jnibench", "");
+		dir.delete();
+		dir.mkdir();
+		header = writeDeclaration();
+		changedHeader = header.clone();
+		changedHeader[changedHeader.length - 2] ^= 1;
+		headerHash = OutputManifest.hash(header);
+		FileOutputStream out = new FileOutputStream(new File(dir, "Peer1ManagedPeer.h"));
+		try {
+			out.write(header);
+		} finally {
+			out.close();
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		File[] files = dir.listFiles();
+		if (files != null) {
+			for (File file : files)
+				file.delete();
+		}
+		dir.delete();
+	}
+
+	/** Emit the header of the class. */
+	@Benchmark
+	public byte[] writeDeclaration() {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(8192);
+		generator.writeDeclaration(out, clazz);
+		return out.toByteArray();
+	}
+
+	/** Emit the definition (.cpp) of the class. */
+	@Benchmark
+	public byte[] writeDefinition() {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(8192);
+		generator.writeDefinition(out, clazz);
+		return out.toByteArray();
+	}
+
+	/** Compute the descriptors of all methods, as the first class of a run does. */
+	@Benchmark
+	public void typeSignaturesCold(Blackhole blackhole) {
+		TypeSignature signatures = new TypeSignature(root);
+		for (MethodDoc method : classMethods)
+			blackhole.consume(signatures.getTypeSignature(method));
+	}
+
+	/** Look the descriptors of all methods up again, as later uses in a run do. */
+	@Benchmark
+	public void typeSignaturesCached(Blackhole blackhole) {
+		for (MethodDoc method : classMethods)
+			blackhole.consume(typeSignature.getTypeSignature(method));
+	}
+
+	/** Mangle the names of all methods, short and long (overloaded) JNI forms. */
+	@Benchmark
+	public void mangle(Blackhole blackhole) {
+		for (MethodDoc method : classMethods) {
+			blackhole.consume(Mangle.mangle(method.name(), Mangle.Type.FIELDSTUB));
+			blackhole.consume(Mangle.mangleMethod(method, typeSignature, clazz, Mangle.Type.METHOD_JNI_LONG));
+		}
+	}
+
+	/** Write an unchanged header whose hash is recorded: no read of the file. */
+	@Benchmark
+	public OutputManifest.Output writeUnchangedKnownHash() throws IOException {
+		OutputWriter writer = new OutputWriter(dir, false);
+		try {
+			return writer.write(header, "Peer1ManagedPeer.h", headerHash);
+		} finally {
+			writer.abort();
+		}
+	}
+
+	/** Write an unchanged header without a recorded hash: compares the file. */
+	@Benchmark
+	public OutputManifest.Output writeUnchanged() throws IOException {
+		OutputWriter writer = new OutputWriter(dir, false);
+		try {
+			return writer.write(header, "Peer1ManagedPeer.h", null);
+		} finally {
+			writer.abort();
+		}
+	}
+
+	/** Write a changed header of the same length: compares, then stages a file. */
+	@Benchmark
+	public OutputManifest.Output writeChanged() throws IOException {
+		OutputWriter writer = new OutputWriter(dir, false);
+		try {
+			return writer.write(changedHeader, "Peer1ManagedPeer.h", headerHash);
+		} finally {
+			/* Leave the original in place for the next invocation. */
+			writer.abort();
+		}
+	}
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright 2014 Jesse Benson
+ *
+ * This code is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this work. If not, see http://www.gnu.org/licenses/.
+ */
+
+package com.jni.bench;
+
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.jni.tools.ClassFileReader;
+import com.jni.tools.DocModel;
+import com.jni.tools.DocModel.AnnotationInfo;
+import com.jni.tools.DocModel.ClassInfo;
+import com.jni.tools.DocModel.MemberInfo;
+import com.jni.tools.DocModel.TypeInfo;
+import com.sun.javadoc.RootDoc;
+
+/**
+ * Describes @JNIClass classes of a given shape, without sources or class
+ * files, for the benchmarks.  Platform and annotation classes are read from
+ * the class path of the benchmark.
+ */
+public class SyntheticClasses implements DocModel.Resolver {
+
+	/* The mix of parameter and return types. */
+	public enum Types {
+		/* int, long, double, boolean, ... */
+		PRIMITIVE,
+		/* int[], byte[][], String[], ... */
+		ARRAY,
+		/* String, Object, Class, Throwable, other synthetic classes, ... */
+		OBJECT,
+		/* All of the above, in turn. */
+		MIXED
+	}
+
+	private static final TypeInfo[] primitives = {
+		new TypeInfo("int", 0), new TypeInfo("long", 0), new TypeInfo("double", 0), new TypeInfo("boolean", 0),
+		new TypeInfo("byte", 0), new TypeInfo("char", 0), new TypeInfo("short", 0), new TypeInfo("float", 0)
+	};
+
+	private static final TypeInfo[] arrays = {
+		new TypeInfo("int", 1), new TypeInfo("byte", 1), new TypeInfo("java.lang.String", 1),
+		new TypeInfo("double", 2), new TypeInfo("java.lang.Object", 1)
+	};
+
+	private static final TypeInfo[] objects = {
+		new TypeInfo("java.lang.String", 0), new TypeInfo("java.lang.Object", 0),
+		new TypeInfo("java.lang.Class", 0), new TypeInfo("java.lang.Exception", 0)
+	};
+
+	private final ClassFileReader platform = new ClassFileReader();
+	private final Map<String, ClassInfo> classes = new HashMap<String, ClassInfo>();
+	private final List<ClassInfo> annotated = new ArrayList<ClassInfo>();
+
+	/**
+	 * Describe the given number of classes, each with the given number of
+	 * @JNIMethod methods taking the given number of parameters.  Every
+	 * fourth method is static.
+	 */
+	public SyntheticClasses(int classCount, int methodCount, int arity, Types types) {
+		for (int c = 0; c < classCount; c++) {
+			String name = "com.jni.bench.synthetic.Peer" + c;
+			ClassInfo info = new ClassInfo(name, name, "Peer" + c, Modifier.PUBLIC);
+			info.superclass = "java.lang.Object";
+			AnnotationInfo jniClass = new AnnotationInfo("com.jni.annotation.JNIClass");
+			jniClass.values.put("value", "Bench.Synthetic");
+			info.annotations.add(jniClass);
+
+			int counter = c;
+			for (int m = 0; m < methodCount; m++) {
+				int modifiers = Modifier.PUBLIC | (m % 4 == 3 ? Modifier.STATIC : 0);
+				MemberInfo method = new MemberInfo("method" + m, modifiers, (m % 5 == 0 ? new TypeInfo("void", 0) : type(types, counter++, c)));
+				for (int p = 0; p < arity; p++) {
+					method.parameters.add(type(types, counter++, c));
+					method.parameterNames.add("value" + p);
+				}
+				method.annotations.add(new AnnotationInfo("com.jni.annotation.JNIMethod"));
+				info.methods.add(method);
+			}
+
+			classes.put(name, info);
+			annotated.add(info);
+		}
+	}
+
+	/*
+	 * Types in turn from the mix.  Objects also refer to the other synthetic
+	 * classes, to include class types the generator must look up.
+	 */
+	private TypeInfo type(Types types, int index, int classIndex) {
+		switch (types) {
+		case PRIMITIVE:
+			return primitives[index % primitives.length];
+		case ARRAY:
+			return arrays[index % arrays.length];
+		case OBJECT:
+			if (index % (objects.length + 1) == objects.length)
+				return new TypeInfo("com.jni.bench.synthetic.Peer" + (classIndex == 0 ? 0 : classIndex - 1), 0);
+			return objects[index % (objects.length + 1)];
+		default:
+			return type(Types.values()[index % 3], index / 3, classIndex);
+		}
+	}
+
+	public ClassInfo resolve(String binaryName) {
+		ClassInfo info = classes.get(binaryName);
+		return (info != null ? info : platform.resolve(binaryName));
+	}
+
+	/**
+	 * Returns a new root over the synthetic classes.  Each root resolves and
+	 * caches its documents afresh.
+	 */
+	public RootDoc root() {
+		DocModel model = new DocModel(this, new DocModel.Reporter() {
+			public void error(String message) {
+				throw new IllegalStateException(message);
+			}
+
+			public void warning(String message) {
+				System.err.println("Warning: " + message);
+			}
+
+			public void notice(String message) {
+			}
+		});
+		return model.root(annotated);
+	}
+}
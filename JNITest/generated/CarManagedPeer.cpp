@@ -2,6 +2,8 @@
 #include "precomp.h"
 #include "CarManagedPeer.h"
 
+#include <cstring>
+
 namespace JNI { namespace Test { 
 
 CarManagedPeer::CarManagedPeer()
@@ -17,12 +19,55 @@ CarManagedPeer::~CarManagedPeer()
 {
 }
 
+#if __cplusplus < 201703L
+constexpr jint CarManagedPeer::MAX_PASSENGERS;
+constexpr const char* CarManagedPeer::DEFAULT_NAME;
+#endif
+
 jclass CarManagedPeer::GetClass()
 {
 	static ::JNI::JClass clazz("com/jnitest/Car");
 	return clazz;
 }
 
+jclass CarManagedPeer::GetBatchClass()
+{
+	static ::JNI::JClass clazz("com/jnitest/CarBatch");
+	return clazz;
+}
+
+bool CarManagedPeer::RegisterNatives(JNIEnv* env)
+{
+	static const JNINativeMethod methods[] = {
+		/* Java_com_jnitest_Car_getColor */
+		{ (char*)"getColor", (char*)"()I", (void*)&Natives::getColor },
+	};
+	jclass clazz = GetClass();
+	if (clazz == NULL)
+		return false;
+	return env->RegisterNatives(clazz, methods, 1) == JNI_OK;
+}
+
+CarManagedPeer CarManagedPeer::New(jstring arg0)
+{
+	static jmethodID methodID(Env().GetMethodID(GetClass(), "<init>", "(Ljava/lang/String;)V"));
+	return CarManagedPeer(Env().NewObject(GetClass(), methodID, arg0));
+}
+
+jsize CarManagedPeer::NewArray(jobjectArray array, jsize count, const jstring* arg0)
+{
+	static jmethodID methodID(Env().GetMethodID(GetClass(), "<init>", "(Ljava/lang/String;)V"));
+	jclass clazz = GetClass();
+	for (jsize i = 0; i < count; i++) {
+		jobject object = Env().NewObject(clazz, methodID, arg0[i]);
+		if (object == NULL)
+			return i;
+		Env().SetObjectArrayElement(array, i, object);
+		Env().DeleteLocalRef(object);
+	}
+	return count;
+}
+
 jdouble CarManagedPeer::getCost() const
 {
 	static jmethodID methodID(Env().GetMethodID(GetClass(), "getCost", "()D"));
@@ -35,10 +80,31 @@ void CarManagedPeer::setCost(jdouble arg0) const
 	Env().CallVoidMethod(Object(), methodID, arg0);
 }
 
-jstring CarManagedPeer::getName() const
+void CarManagedPeer::setCostBatch(const ::JNI::ArraySpan<jdouble>& arg0) const
+{
+	static jmethodID methodID(Env().GetStaticMethodID(GetBatchClass(), "setCost", "(Lcom/jnitest/Car;[D)V"));
+	::JNI::ArrayArgument<jdouble> arg0_array(Env(), arg0);
+	if (!arg0_array.ok())
+		return;
+	Env().CallStaticVoidMethod(GetBatchClass(), methodID, Object(), arg0_array.get());
+}
+
+::JNI::StringUTF CarManagedPeer::getName() const
 {
 	static jmethodID methodID(Env().GetMethodID(GetClass(), "getName", "()Ljava/lang/String;"));
-	return (jstring)Env().CallObjectMethod(Object(), methodID);
+	return ::JNI::StringUTF(Env(), Env().CallObjectMethod(Object(), methodID));
+}
+
+jsize CarManagedPeer::getName(char* buffer, jsize capacity) const
+{
+	static jmethodID methodID(Env().GetMethodID(GetClass(), "getName", "()Ljava/lang/String;"));
+	return ::JNI::CopyString(Env(), Env().CallObjectMethod(Object(), methodID), buffer, capacity);
+}
+
+jsize CarManagedPeer::getName(jchar* buffer, jsize capacity) const
+{
+	static jmethodID methodID(Env().GetMethodID(GetClass(), "getName", "()Ljava/lang/String;"));
+	return ::JNI::CopyString(Env(), Env().CallObjectMethod(Object(), methodID), buffer, capacity);
 }
 
 jint CarManagedPeer::getCount()
@@ -47,4 +113,66 @@ jint CarManagedPeer::getCount()
 	return Env().CallStaticIntMethod(GetClass(), methodID);
 }
 
+jdouble CarManagedPeer::get_mCost() const
+{
+	static jfieldID fieldID(Env().GetFieldID(GetClass(), "mCost", "D"));
+	return Env().GetDoubleField(Object(), fieldID);
+}
+
+void CarManagedPeer::set_mCost(jdouble value) const
+{
+	static jfieldID fieldID(Env().GetFieldID(GetClass(), "mCost", "D"));
+	Env().SetDoubleField(Object(), fieldID, value);
+}
+
+jint CarManagedPeer::get_mWheels() const
+{
+	static jfieldID fieldID(Env().GetFieldID(GetClass(), "mWheels", "I"));
+	return Env().GetIntField(Object(), fieldID);
+}
+
+void CarManagedPeer::set_mWheels(jint value) const
+{
+	static jfieldID fieldID(Env().GetFieldID(GetClass(), "mWheels", "I"));
+	Env().SetIntField(Object(), fieldID, value);
+}
+
+CarManagedPeer::Fields CarManagedPeer::Snapshot() const
+{
+	static jmethodID methodID(Env().GetMethodID(GetClass(), "packFields", "()[J"));
+	jlongArray packed = (jlongArray)Env().CallObjectMethod(Object(), methodID);
+	if (packed == NULL)
+		return Fields();
+	jlong values[3] = { 0 };
+	if (Env().GetArrayLength(packed) == 3)
+		Env().GetLongArrayRegion(packed, 0, 3, values);
+	Env().DeleteLocalRef(packed);
+	if (values[0] == (jlong)0xa21bc1d1e5ab2417ULL) {
+		Fields fields;
+		std::memcpy(&fields.mCost, &values[1], sizeof(jdouble));
+		fields.mWheels = (jint)values[2];
+		return fields;
+	}
+
+	/* The packer is of another layout, so read the fields one by one. */
+	static const jfieldID fieldIDs[] = {
+		Env().GetFieldID(GetClass(), "mCost", "D"),
+		Env().GetFieldID(GetClass(), "mWheels", "I"),
+	};
+	Fields fields;
+	fields.mCost = Env().GetDoubleField(Object(), fieldIDs[0]);
+	fields.mWheels = Env().GetIntField(Object(), fieldIDs[1]);
+	return fields;
+}
+
+void CarManagedPeer::WriteBack(const Fields& fields) const
+{
+	static const jfieldID fieldIDs[] = {
+		Env().GetFieldID(GetClass(), "mCost", "D"),
+		Env().GetFieldID(GetClass(), "mWheels", "I"),
+	};
+	Env().SetDoubleField(Object(), fieldIDs[0], fields.mCost);
+	Env().SetIntField(Object(), fieldIDs[1], fields.mWheels);
+}
+
 }} // namespace JNI.Test
@@ -4,6 +4,8 @@
 #include <JNIManagedPeer.h>
 #include <jni.h>
 
+#include "JNIManagedPeerSupport.h"
+
 namespace JNI { namespace Test { 
 
 class CarManagedPeer : public ::JNI::ManagedPeer
@@ -17,10 +19,50 @@ public:
 
 	static jclass GetClass();
 
+	/* The Java companion class of the batched methods, CarBatch. */
+	static jclass GetBatchClass();
+
+	/* The compile-time constants of the class. */
+	static constexpr jint MAX_PASSENGERS = 5;
+	static constexpr const char* DEFAULT_NAME = "Car";
+
+	/* The native methods of the class, defined in C++ and bound by RegisterNatives(). */
+	struct Natives
+	{
+		static jint JNICALL getColor(JNIEnv* env, jobject object);
+	};
+
+	static bool RegisterNatives(JNIEnv* env);
+
+	/* Create objects of the class; NewArray() stores count of them in an array. */
+	static CarManagedPeer New(jstring arg0);
+	static jsize NewArray(jobjectArray array, jsize count, const jstring* arg0);
+
 	jdouble getCost() const;
 	void setCost(jdouble arg0) const;
-	jstring getName() const;
+	void setCostBatch(const ::JNI::ArraySpan<jdouble>& arg0) const;
+	::JNI::StringUTF getName() const;
+	jsize getName(char* buffer, jsize capacity) const;
+	jsize getName(jchar* buffer, jsize capacity) const;
 	static jint getCount();
+
+	jdouble get_mCost() const;
+	void set_mCost(jdouble value) const;
+	jint get_mWheels() const;
+	void set_mWheels(jint value) const;
+
+	/*
+	 * Snapshot() reads the fields with one call of packFields(), which returns
+	 * { 0xa21bc1d1e5ab2417L, mCost, mWheels }.  Another layout is read field by field.
+	 */
+	struct Fields
+	{
+		jdouble mCost;
+		jint mWheels;
+	};
+
+	Fields Snapshot() const;
+	void WriteBack(const Fields& fields) const;
 };
 
 }} // namespace JNI.Test
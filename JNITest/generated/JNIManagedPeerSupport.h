@@ -0,0 +1,871 @@
+/* DO NOT EDIT THIS FILE - it is machine generated */
+#pragma once
+
+#include <JNIManagedPeer.h>
+#include <jni.h>
+#include <algorithm>
+#include <cstddef>
+#include <cstring>
+#include <exception>
+#include <mutex>
+#include <string>
+#include <utility>
+#include <vector>
+
+#if __cplusplus >= 201703L || (defined(_MSVC_LANG) && _MSVC_LANG >= 201703L)
+#include <string_view>
+#define JNIMANAGEDPEER_STRING_VIEW
+#endif
+
+namespace JNI {
+
+/*
+ * The JNI functions of the arrays of each primitive type.
+ */
+template <typename T> struct ArrayTraits;
+
+#define JNIMANAGEDPEER_ARRAY_TRAITS(T, X) \
+	template <> struct ArrayTraits<T> \
+	{ \
+		typedef T##Array ArrayType; \
+		static ArrayType New(JNIEnv& env, jsize length) { return env.New##X##Array(length); } \
+		static void GetRegion(JNIEnv& env, ArrayType array, jsize start, jsize length, T* buffer) { env.Get##X##ArrayRegion(array, start, length, buffer); } \
+		static void SetRegion(JNIEnv& env, ArrayType array, jsize start, jsize length, const T* buffer) { env.Set##X##ArrayRegion(array, start, length, buffer); } \
+	};
+
+JNIMANAGEDPEER_ARRAY_TRAITS(jboolean, Boolean)
+JNIMANAGEDPEER_ARRAY_TRAITS(jbyte, Byte)
+JNIMANAGEDPEER_ARRAY_TRAITS(jchar, Char)
+JNIMANAGEDPEER_ARRAY_TRAITS(jshort, Short)
+JNIMANAGEDPEER_ARRAY_TRAITS(jint, Int)
+JNIMANAGEDPEER_ARRAY_TRAITS(jlong, Long)
+JNIMANAGEDPEER_ARRAY_TRAITS(jfloat, Float)
+JNIMANAGEDPEER_ARRAY_TRAITS(jdouble, Double)
+
+#undef JNIMANAGEDPEER_ARRAY_TRAITS
+
+/*
+ * Elements in C++ memory passed to a Java method as an array: a pointer and a
+ * length, or a C array or vector.  By default the elements are only copied
+ * in.  A span made with Out() is copied back after the call instead, for
+ * arrays the method fills, and one made with InOut() both ways.
+ */
+template <typename T>
+class ArraySpan
+{
+public:
+	ArraySpan(const T* data, jsize length) : m_data(data), m_out(NULL), m_length(length) {}
+	ArraySpan(const std::vector<T>& data) : m_data(data.empty() ? NULL : &data[0]), m_out(NULL), m_length((jsize)data.size()) {}
+	template <std::size_t N>
+	ArraySpan(const T (&data)[N]) : m_data(data), m_out(NULL), m_length((jsize)N) {}
+
+	ArraySpan(const T* data, T* out, jsize length) : m_data(data), m_out(out), m_length(length) {}
+
+	/* The elements copied in, or NULL. */
+	const T* data() const { return m_data; }
+	/* Where the elements are copied back to, or NULL. */
+	T* out() const { return m_out; }
+	jsize size() const { return m_length; }
+
+private:
+	const T* m_data;
+	T* m_out;
+	jsize m_length;
+};
+
+/*
+ * A span whose elements the Java method writes: the Java array starts zeroed,
+ * and is copied back with one Get<Type>ArrayRegion after the call.
+ */
+template <typename T>
+inline ArraySpan<T> Out(T* data, jsize length) { return ArraySpan<T>(NULL, data, length); }
+template <typename T>
+inline ArraySpan<T> Out(std::vector<T>& data) { return Out(data.empty() ? NULL : &data[0], (jsize)data.size()); }
+template <typename T, std::size_t N>
+inline ArraySpan<T> Out(T (&data)[N]) { return Out(data, (jsize)N); }
+
+/*
+ * A span whose elements the Java method reads and writes: copied in before
+ * the call and back after it.
+ */
+template <typename T>
+inline ArraySpan<T> InOut(T* data, jsize length) { return ArraySpan<T>(data, data, length); }
+template <typename T>
+inline ArraySpan<T> InOut(std::vector<T>& data) { return InOut(data.empty() ? NULL : &data[0], (jsize)data.size()); }
+template <typename T, std::size_t N>
+inline ArraySpan<T> InOut(T (&data)[N]) { return InOut(data, (jsize)N); }
+
+/*
+ * The Java array passed for an ArraySpan during one call.  The elements are
+ * written with one Set<Type>ArrayRegion, and those of an output span read back
+ * with one Get<Type>ArrayRegion when the argument goes out of scope, unless
+ * the call threw.  The local reference is deleted then, also when the call
+ * throws.
+ */
+template <typename T>
+class ArrayArgument
+{
+public:
+	typedef typename ArrayTraits<T>::ArrayType ArrayType;
+
+	ArrayArgument(JNIEnv& env, const ArraySpan<T>& span)
+		: m_env(env), m_array(ArrayTraits<T>::New(env, span.size())), m_out(span.out()), m_length(span.size())
+	{
+		if (m_array != NULL && span.data() != NULL && span.size() > 0)
+			ArrayTraits<T>::SetRegion(env, m_array, 0, span.size(), span.data());
+	}
+
+	~ArrayArgument()
+	{
+		if (m_array != NULL) {
+			if (m_out != NULL && m_length > 0 && !m_env.ExceptionCheck())
+				ArrayTraits<T>::GetRegion(m_env, m_array, 0, m_length, m_out);
+			m_env.DeleteLocalRef(m_array);
+		}
+	}
+
+	/* False if the array could not be allocated; the Java exception is pending. */
+	bool ok() const { return m_array != NULL; }
+	ArrayType get() const { return m_array; }
+
+private:
+	ArrayArgument(const ArrayArgument&);
+	ArrayArgument& operator=(const ArrayArgument&);
+
+	JNIEnv& m_env;
+	ArrayType m_array;
+	T* m_out;
+	jsize m_length;
+};
+
+/*
+ * Leave a new java.lang.IllegalArgumentException pending, as if a Java method
+ * had thrown it.  The batch methods of peers use it when the spans of their
+ * arguments differ in length, before calling Java.
+ */
+inline void ThrowIllegalArgument(JNIEnv& env, const char* message)
+{
+	jclass clazz = env.FindClass("java/lang/IllegalArgumentException");
+	if (clazz != NULL) {
+		env.ThrowNew(clazz, message);
+		env.DeleteLocalRef(clazz);
+	}
+}
+
+/*
+ * A returned array, whose elements are reached in place with
+ * GetPrimitiveArrayCritical, usually without a copy.  The array is only
+ * pinned while Access() runs a function on the elements, so no pinned region
+ * outlives it: the function must not call JNI nor block on other Java
+ * threads.  The destructor deletes the local reference.
+ */
+template <typename T>
+class CriticalArray
+{
+public:
+	CriticalArray() : m_env(NULL), m_array(NULL), m_length(0) {}
+
+	CriticalArray(JNIEnv& env, jobject array)
+		: m_env(&env), m_array((jarray)array), m_length(0)
+	{
+		if (m_array != NULL)
+			m_length = env.GetArrayLength(m_array);
+	}
+
+	CriticalArray(CriticalArray&& other)
+		: m_env(other.m_env), m_array(other.m_array), m_length(other.m_length)
+	{
+		other.m_array = NULL;
+		other.m_length = 0;
+	}
+
+	~CriticalArray()
+	{
+		if (m_array != NULL)
+			m_env->DeleteLocalRef(m_array);
+	}
+
+	/*
+	 * Call f(T* data, jsize length) on the pinned elements, and release them,
+	 * also if f throws.  Changes are written back unless mode is JNI_ABORT.
+	 * Returns false, without calling f, for null or if the array could not be
+	 * pinned.
+	 */
+	template <typename F>
+	bool Access(F f, jint mode = 0) const
+	{
+		if (m_array == NULL)
+			return false;
+		Pin pin(*m_env, m_array, mode);
+		if (pin.data == NULL)
+			return false;
+		f(pin.data, m_length);
+		return true;
+	}
+
+	/* False if the method returned null or threw. */
+	bool ok() const { return m_array != NULL; }
+	jsize size() const { return m_length; }
+	jarray get() const { return m_array; }
+
+private:
+	CriticalArray(const CriticalArray&);
+	CriticalArray& operator=(const CriticalArray&);
+
+	struct Pin
+	{
+		Pin(JNIEnv& env, jarray array, jint mode)
+			: env(env), array(array), data((T*)env.GetPrimitiveArrayCritical(array, NULL)), mode(mode) {}
+		~Pin() { if (data != NULL) env.ReleasePrimitiveArrayCritical(array, data, mode); }
+
+		JNIEnv& env;
+		jarray array;
+		T* data;
+		jint mode;
+	};
+
+	JNIEnv* m_env;
+	jarray m_array;
+	jsize m_length;
+};
+
+/*
+ * A copy of a returned array, made with one Get<Type>ArrayRegion into a
+ * buffer on the stack for up to N elements, or on the heap for larger arrays.
+ * The local reference is deleted at once.
+ */
+template <typename T, jsize N = 64>
+class ArrayRegion
+{
+public:
+	ArrayRegion() : m_data(m_buffer), m_length(0) {}
+
+	ArrayRegion(JNIEnv& env, jobject array)
+		: m_data(m_buffer), m_length(0)
+	{
+		if (array == NULL)
+			return;
+		typename ArrayTraits<T>::ArrayType typed = (typename ArrayTraits<T>::ArrayType)array;
+		m_length = env.GetArrayLength(typed);
+		if (m_length > N) {
+			m_heap.resize(m_length);
+			m_data = &m_heap[0];
+		}
+		ArrayTraits<T>::GetRegion(env, typed, 0, m_length, m_data);
+		env.DeleteLocalRef(array);
+	}
+
+	ArrayRegion(ArrayRegion&& other)
+		: m_data(m_buffer), m_length(other.m_length)
+	{
+		if (m_length > N) {
+			m_heap.swap(other.m_heap);
+			m_data = &m_heap[0];
+		} else {
+			std::copy(other.m_buffer, other.m_buffer + m_length, m_buffer);
+		}
+	}
+
+	T* data() { return m_data; }
+	const T* data() const { return m_data; }
+	jsize size() const { return m_length; }
+	T& operator[](jsize index) { return m_data[index]; }
+	const T& operator[](jsize index) const { return m_data[index]; }
+
+private:
+	ArrayRegion(const ArrayRegion&);
+	ArrayRegion& operator=(const ArrayRegion&);
+
+	T m_buffer[N];
+	std::vector<T> m_heap;
+	T* m_data;
+	jsize m_length;
+};
+
+/*
+ * Copy a returned array into a buffer of the caller with one
+ * Get<Type>ArrayRegion, and delete the local reference.  At most capacity
+ * elements are copied; returns the length of the array, or 0 for null.
+ */
+template <typename T>
+inline jsize CopyArray(JNIEnv& env, jobject array, T* buffer, jsize capacity)
+{
+	if (array == NULL)
+		return 0;
+	typename ArrayTraits<T>::ArrayType typed = (typename ArrayTraits<T>::ArrayType)array;
+	jsize length = env.GetArrayLength(typed);
+	ArrayTraits<T>::GetRegion(env, typed, 0, std::min(length, capacity), buffer);
+	env.DeleteLocalRef(array);
+	return length;
+}
+
+/*
+ * A string created once with NewStringUTF and kept with a global reference,
+ * for constants passed in many calls, such as keys.  The reference is kept
+ * until the process exits, so it can be a static.
+ */
+class CachedString
+{
+public:
+	explicit CachedString(const char* chars)
+		: m_string(NULL)
+	{
+		JNIEnv& env = ::JNI::ManagedPeer::Env();
+		jstring string = env.NewStringUTF(chars);
+		if (string != NULL) {
+			m_string = (jstring)env.NewGlobalRef(string);
+			env.DeleteLocalRef(string);
+		}
+	}
+
+	/* False if the string could not be created; the Java exception is pending. */
+	bool ok() const { return m_string != NULL; }
+	jstring get() const { return m_string; }
+
+private:
+	CachedString(const CachedString&);
+	CachedString& operator=(const CachedString&);
+
+	jstring m_string;
+};
+
+/*
+ * Characters passed to a Java method as a string: a C string (modified
+ * UTF-8, which is UTF-8 for text without NULs or supplementary characters),
+ * characters and a length, a std::string or std::string_view, or a jstring
+ * or CachedString passed as it is.  A Java null is passed as nullptr or
+ * StringRef::Null(); a plain NULL would be ambiguous.
+ */
+class StringRef
+{
+public:
+	StringRef(std::nullptr_t) : m_chars(NULL), m_length(-1), m_string(NULL) {}
+	StringRef(const char* chars) : m_chars(chars), m_length(-1), m_string(NULL) {}
+	StringRef(const char* chars, jsize length) : m_chars(chars), m_length(length), m_string(NULL) {}
+	StringRef(const std::string& s) : m_chars(s.c_str()), m_length(-1), m_string(NULL) {}
+#ifdef JNIMANAGEDPEER_STRING_VIEW
+	StringRef(std::string_view s) : m_chars(s.data()), m_length((jsize)s.size()), m_string(NULL) {}
+#endif
+	StringRef(jstring string) : m_chars(NULL), m_length(-1), m_string(string) {}
+	StringRef(const CachedString& string) : m_chars(NULL), m_length(-1), m_string(string.get()) {}
+
+	/* The characters, NUL terminated if the length is -1, or null. */
+	const char* chars() const { return m_chars; }
+	jsize length() const { return m_length; }
+
+	/* The string given as a jstring, or null. */
+	jstring string() const { return m_string; }
+
+	static StringRef Null() { return StringRef(nullptr); }
+
+private:
+	const char* m_chars;
+	jsize m_length;
+	jstring m_string;
+};
+
+/*
+ * The Java strings of short characters passed to the methods of peers, so
+ * the same names and keys passed over and over are made with NewStringUTF
+ * once.  Each slot holds one string, with a global reference kept until the
+ * process exits or the slot is taken by another string.  A string only gets
+ * a slot when it misses twice in a row, so strings passed once don't evict
+ * the others.  Define JNIMANAGEDPEER_NO_STRING_CACHE to leave it out.
+ */
+class StringCache
+{
+public:
+	enum { SLOTS = 256, MAX_LENGTH = 64 };
+
+	/*
+	 * A new local reference to the string of the characters, or NULL if they
+	 * are not cached.  The cached string may be replaced by another thread
+	 * at any time, so it is only used through the local reference.
+	 */
+	static jstring Get(JNIEnv& env, const char* chars, std::size_t length, std::size_t hash)
+	{
+		Slot& slot = Slots()[hash % SLOTS];
+		std::lock_guard<std::mutex> lock(Mutex());
+		if (slot.string != NULL && slot.hash == hash && slot.length == length && std::memcmp(slot.chars, chars, length) == 0)
+			return (jstring)env.NewLocalRef(slot.string);
+		return NULL;
+	}
+
+	/*
+	 * Offer a string just made for the characters, which missed.
+	 */
+	static void Put(JNIEnv& env, const char* chars, std::size_t length, std::size_t hash, jstring string)
+	{
+		Slot& slot = Slots()[hash % SLOTS];
+		std::lock_guard<std::mutex> lock(Mutex());
+		if (slot.missed != hash) {
+			slot.missed = hash;
+			return;
+		}
+		jstring global = (jstring)env.NewGlobalRef(string);
+		if (global == NULL)
+			return;
+		if (slot.string != NULL)
+			env.DeleteGlobalRef(slot.string);
+		std::memcpy(slot.chars, chars, length);
+		slot.length = length;
+		slot.hash = hash;
+		slot.string = global;
+	}
+
+	/* FNV-1a of the characters. */
+	static std::size_t Hash(const char* chars, std::size_t length)
+	{
+		std::size_t hash = 2166136261u;
+		for (std::size_t i = 0; i < length; i++)
+			hash = (hash ^ (unsigned char)chars[i]) * 16777619u;
+		return hash;
+	}
+
+private:
+	struct Slot
+	{
+		char chars[MAX_LENGTH];
+		std::size_t length;
+		std::size_t hash;
+		std::size_t missed;
+		jstring string;
+	};
+
+	static Slot* Slots() { static Slot slots[SLOTS]; return slots; }
+	static std::mutex& Mutex() { static std::mutex mutex; return mutex; }
+};
+
+/*
+ * The Java string passed for a StringRef during one call.  Characters of up
+ * to StringCache::MAX_LENGTH bytes are looked up in the StringCache first.
+ * Otherwise C strings go to NewStringUTF directly; characters that are not
+ * NUL terminated are copied into a buffer on the stack (on the heap beyond N
+ * bytes) first.  The string is a local reference, deleted when the argument
+ * goes out of scope.
+ */
+template <jsize N = 256>
+class BasicStringArgument
+{
+public:
+	BasicStringArgument(JNIEnv& env, const StringRef& s)
+		: m_env(env), m_string(s.string()), m_owned(false)
+	{
+		if (s.chars() == NULL)
+			return;
+		const char* chars = s.chars();
+		m_owned = true;
+#ifndef JNIMANAGEDPEER_NO_STRING_CACHE
+		std::size_t length = (s.length() >= 0 ? (std::size_t)s.length() : std::strlen(chars));
+		std::size_t hash = 0;
+		if (length <= StringCache::MAX_LENGTH) {
+			hash = StringCache::Hash(chars, length);
+			m_string = StringCache::Get(env, chars, length, hash);
+			if (m_string != NULL)
+				return;
+		}
+#endif
+		char buffer[N];
+		std::vector<char> heap;
+		if (s.length() >= 0) {
+			char* terminated = buffer;
+			if (s.length() >= N) {
+				heap.resize(s.length() + 1);
+				terminated = &heap[0];
+			}
+			std::copy(chars, chars + s.length(), terminated);
+			terminated[s.length()] = '\0';
+			chars = terminated;
+		}
+		m_string = env.NewStringUTF(chars);
+#ifndef JNIMANAGEDPEER_NO_STRING_CACHE
+		if (m_string != NULL && length <= StringCache::MAX_LENGTH)
+			StringCache::Put(env, s.chars(), length, hash, m_string);
+#endif
+	}
+
+	~BasicStringArgument()
+	{
+		if (m_owned && m_string != NULL)
+			m_env.DeleteLocalRef(m_string);
+	}
+
+	/* False if the string could not be created; the Java exception is pending. */
+	bool ok() const { return !m_owned || m_string != NULL; }
+	jstring get() const { return m_string; }
+
+private:
+	BasicStringArgument(const BasicStringArgument&);
+	BasicStringArgument& operator=(const BasicStringArgument&);
+
+	JNIEnv& m_env;
+	jstring m_string;
+	bool m_owned;
+};
+
+typedef BasicStringArgument<> StringArgument;
+
+/*
+ * A copy of a returned string in modified UTF-8, made with one
+ * GetStringUTFRegion into a buffer on the stack for up to N - 1 bytes, or on
+ * the heap for longer strings, and NUL terminated.  The local reference is
+ * deleted at once.
+ */
+template <jsize N = 128>
+class BasicStringUTF
+{
+public:
+	BasicStringUTF() : m_data(m_buffer), m_length(0), m_null(true) { m_buffer[0] = '\0'; }
+
+	BasicStringUTF(JNIEnv& env, jobject string)
+		: m_data(m_buffer), m_length(0), m_null(string == NULL)
+	{
+		m_buffer[0] = '\0';
+		if (string == NULL)
+			return;
+		jstring typed = (jstring)string;
+		jsize chars = env.GetStringLength(typed);
+		m_length = env.GetStringUTFLength(typed);
+		if (m_length >= N) {
+			m_heap.resize(m_length + 1);
+			m_data = &m_heap[0];
+		}
+		env.GetStringUTFRegion(typed, 0, chars, m_data);
+		m_data[m_length] = '\0';
+		env.DeleteLocalRef(string);
+	}
+
+	BasicStringUTF(BasicStringUTF&& other)
+		: m_data(m_buffer), m_length(other.m_length), m_null(other.m_null)
+	{
+		if (m_length >= N) {
+			m_heap.swap(other.m_heap);
+			m_data = &m_heap[0];
+		} else {
+			std::copy(other.m_buffer, other.m_buffer + m_length + 1, m_buffer);
+		}
+	}
+
+	/* False if the method returned null or threw. */
+	bool ok() const { return !m_null; }
+	const char* c_str() const { return m_data; }
+	jsize size() const { return m_length; }
+	std::string str() const { return std::string(m_data, m_length); }
+#ifdef JNIMANAGEDPEER_STRING_VIEW
+	operator std::string_view() const { return std::string_view(m_data, m_length); }
+#endif
+
+private:
+	BasicStringUTF(const BasicStringUTF&);
+	BasicStringUTF& operator=(const BasicStringUTF&);
+
+	char m_buffer[N];
+	std::vector<char> m_heap;
+	char* m_data;
+	jsize m_length;
+	bool m_null;
+};
+
+typedef BasicStringUTF<> StringUTF;
+
+/*
+ * Copy a returned string into a buffer of the caller with one
+ * GetStringUTFRegion (modified UTF-8, NUL terminated) or GetStringRegion
+ * (UTF-16), and delete the local reference.  Returns the length of the string
+ * in the units of the buffer, or -1 for null.  Nothing is copied unless the
+ * whole string fits, so a caller can retry with a larger buffer.
+ */
+inline jsize CopyString(JNIEnv& env, jobject string, char* buffer, jsize capacity)
+{
+	if (string == NULL)
+		return -1;
+	jstring typed = (jstring)string;
+	jsize length = env.GetStringUTFLength(typed);
+	if (length < capacity) {
+		env.GetStringUTFRegion(typed, 0, env.GetStringLength(typed), buffer);
+		buffer[length] = '\0';
+	}
+	env.DeleteLocalRef(string);
+	return length;
+}
+
+inline jsize CopyString(JNIEnv& env, jobject string, jchar* buffer, jsize capacity)
+{
+	if (string == NULL)
+		return -1;
+	jstring typed = (jstring)string;
+	jsize length = env.GetStringLength(typed);
+	if (length <= capacity)
+		env.GetStringRegion(typed, 0, length, buffer);
+	env.DeleteLocalRef(string);
+	return length;
+}
+
+/*
+ * The memory of a direct java.nio buffer as a span of T: the address and
+ * capacity from GetDirectBufferAddress and GetDirectBufferCapacity, without a
+ * copy.  The position and limit of the buffer are not applied, and the byte
+ * order is the native one only if the buffer was created so.  Empty for null
+ * and for buffers that are not direct.  The jobject is not owned.
+ */
+template <typename T>
+class DirectBuffer
+{
+public:
+	DirectBuffer() : m_buffer(NULL), m_data(NULL), m_length(0) {}
+
+	explicit DirectBuffer(jobject buffer)
+		: m_buffer(buffer), m_data(NULL), m_length(0)
+	{
+		if (buffer != NULL) {
+			JNIEnv& env = ::JNI::ManagedPeer::Env();
+			m_data = (T*)env.GetDirectBufferAddress(buffer);
+			if (m_data != NULL)
+				m_length = env.GetDirectBufferCapacity(buffer);
+		}
+	}
+
+	/* A buffer whose address and capacity are known already. */
+	DirectBuffer(jobject buffer, T* data, jlong length) : m_buffer(buffer), m_data(data), m_length(length) {}
+
+	jobject Object() const { return m_buffer; }
+
+	/* False for null and for buffers that are not direct. */
+	bool ok() const { return m_data != NULL; }
+	T* data() const { return m_data; }
+	jlong size() const { return m_length; }
+	T& operator[](jlong index) const { return m_data[index]; }
+
+private:
+	jobject m_buffer;
+	T* m_data;
+	jlong m_length;
+};
+
+/*
+ * A direct ByteBuffer over memory of the caller, made with
+ * NewDirectByteBuffer, so it is passed to Java without a copy.  The memory
+ * must outlive every use of the buffer from Java.  The buffer is a local
+ * reference.
+ */
+inline DirectBuffer<jbyte> WrapDirectBuffer(void* data, jlong capacity)
+{
+	jobject buffer = ::JNI::ManagedPeer::Env().NewDirectByteBuffer(data, capacity);
+	return DirectBuffer<jbyte>(buffer, (buffer != NULL ? (jbyte*)data : NULL), (buffer != NULL ? capacity : 0));
+}
+
+/*
+ * Native memory and a direct ByteBuffer over it, held with a global reference
+ * so it can be passed to Java in any call and from any thread.  The destructor
+ * deletes the reference and frees the memory, so Java must be done with the
+ * buffer by then.
+ */
+class NativeBuffer
+{
+public:
+	explicit NativeBuffer(jlong capacity)
+		: m_data(new jbyte[(std::size_t)capacity]), m_capacity(capacity), m_buffer(NULL)
+	{
+		JNIEnv& env = ::JNI::ManagedPeer::Env();
+		jobject buffer = env.NewDirectByteBuffer(m_data, capacity);
+		if (buffer != NULL) {
+			m_buffer = env.NewGlobalRef(buffer);
+			env.DeleteLocalRef(buffer);
+		}
+	}
+
+	~NativeBuffer()
+	{
+		if (m_buffer != NULL)
+			::JNI::ManagedPeer::Env().DeleteGlobalRef(m_buffer);
+		delete[] m_data;
+	}
+
+	/* False if the buffer could not be created; the Java exception is pending. */
+	bool ok() const { return m_buffer != NULL; }
+	DirectBuffer<jbyte> buffer() const { return DirectBuffer<jbyte>(m_buffer, (m_buffer != NULL ? m_data : NULL), (m_buffer != NULL ? m_capacity : 0)); }
+	jbyte* data() const { return m_data; }
+	jlong size() const { return m_capacity; }
+
+private:
+	NativeBuffer(const NativeBuffer&);
+	NativeBuffer& operator=(const NativeBuffer&);
+
+	jbyte* m_data;
+	jlong m_capacity;
+	jobject m_buffer;
+};
+
+/*
+ * Thrown by the methods of peers with the THROW exception policy when the
+ * Java method threw, as found by ExceptionCheck.  The Java exception stays
+ * pending: clear it with ExceptionClear, or return to Java to throw it there.
+ */
+class JavaException : public std::exception
+{
+public:
+	const char* what() const throw() { return "Java exception pending"; }
+};
+
+/*
+ * The value returned by a method of a peer with the RESULT exception policy,
+ * and whether the Java method threw, as found by ExceptionCheck.  After a
+ * throw the Java exception is pending and the value is empty.  A default
+ * constructed Result is one of a call that threw.
+ */
+template <typename T>
+class Result
+{
+public:
+	Result() : m_value(), m_thrown(true) {}
+	Result(T value, bool thrown) : m_value(std::move(value)), m_thrown(thrown) {}
+
+	/* False if the method threw; the Java exception is pending. */
+	bool ok() const { return !m_thrown; }
+	T& value() { return m_value; }
+	const T& value() const { return m_value; }
+
+private:
+	T m_value;
+	bool m_thrown;
+};
+
+template <>
+class Result<void>
+{
+public:
+	Result() : m_thrown(true) {}
+	explicit Result(bool thrown) : m_thrown(thrown) {}
+
+	/* False if the method threw; the Java exception is pending. */
+	bool ok() const { return !m_thrown; }
+
+private:
+	bool m_thrown;
+};
+
+/*
+ * A local reference returned by a method or field of a peer, deleted with
+ * DeleteLocalRef when the LocalRef goes out of scope, so loops that never
+ * return to Java don't fill the local reference table.  Release() gives up
+ * the reference, to return it to Java or keep it in a LocalFrame.
+ */
+template <typename T>
+class LocalRef
+{
+public:
+	LocalRef() : m_env(NULL), m_ref(NULL) {}
+
+	explicit LocalRef(T ref)
+		: m_env(ref != NULL ? &::JNI::ManagedPeer::Env() : NULL), m_ref(ref)
+	{
+	}
+
+	LocalRef(JNIEnv& env, T ref) : m_env(&env), m_ref(ref) {}
+
+	LocalRef(LocalRef&& other)
+		: m_env(other.m_env), m_ref(other.m_ref)
+	{
+		other.m_ref = NULL;
+	}
+
+	LocalRef& operator=(LocalRef&& other)
+	{
+		if (this != &other) {
+			Reset();
+			m_env = other.m_env;
+			m_ref = other.m_ref;
+			other.m_ref = NULL;
+		}
+		return *this;
+	}
+
+	~LocalRef() { Reset(); }
+
+	/* Delete the reference now. */
+	void Reset()
+	{
+		if (m_ref != NULL)
+			m_env->DeleteLocalRef(m_ref);
+		m_ref = NULL;
+	}
+
+	T Release()
+	{
+		T ref = m_ref;
+		m_ref = NULL;
+		return ref;
+	}
+
+	/* False if the result was null or the method threw. */
+	bool ok() const { return m_ref != NULL; }
+	T get() const { return m_ref; }
+
+private:
+	LocalRef(const LocalRef&);
+	LocalRef& operator=(const LocalRef&);
+
+	JNIEnv* m_env;
+	T m_ref;
+};
+
+/*
+ * A scope of local references, made with PushLocalFrame and freed with
+ * PopLocalFrame, for a loop body that makes many calls: every local reference
+ * created in the scope is deleted when it ends, whether or not it is held by
+ * a LocalRef.  Pop() ends the scope early and keeps one reference, returned
+ * as a reference of the enclosing frame.  LocalRefs made in the scope must
+ * not outlive it, unless released.
+ */
+class LocalFrame
+{
+public:
+	explicit LocalFrame(jint capacity = 16)
+		: m_env(::JNI::ManagedPeer::Env()), m_pushed(m_env.PushLocalFrame(capacity) == 0)
+	{
+	}
+
+	~LocalFrame()
+	{
+		if (m_pushed)
+			m_env.PopLocalFrame(NULL);
+	}
+
+	/* False if the frame could not be pushed; OutOfMemoryError is pending. */
+	bool ok() const { return m_pushed; }
+
+	jobject Pop(jobject result = NULL)
+	{
+		if (!m_pushed)
+			return result;
+		m_pushed = false;
+		return m_env.PopLocalFrame(result);
+	}
+
+private:
+	LocalFrame(const LocalFrame&);
+	LocalFrame& operator=(const LocalFrame&);
+
+	JNIEnv& m_env;
+	bool m_pushed;
+};
+
+/*
+ * The JNIEnv of the current thread, looked up once, for a loop that calls
+ * peers many times: pass it to their overloads taking a JNIEnv*.  Like the
+ * JNIEnv, it must not be used on another thread.
+ */
+class EnvScope
+{
+public:
+	EnvScope() : m_env(&::JNI::ManagedPeer::Env()) {}
+	explicit EnvScope(JNIEnv* env) : m_env(env) {}
+
+	operator JNIEnv*() const { return m_env; }
+	JNIEnv* operator->() const { return m_env; }
+
+private:
+	JNIEnv* m_env;
+};
+
+} // namespace JNI
@@ -0,0 +1,17 @@
+/* DO NOT EDIT THIS FILE - it is machine generated */
+package com.jnitest;
+
+/*
+ * The batched methods of com.jnitest.Car, each called by CarManagedPeer
+ * with arrays of arguments in one JNI call.
+ */
+final class CarBatch {
+
+	private CarBatch() {
+	}
+
+	static void setCost(com.jnitest.Car object, double[] arg0) {
+		for (int i = 0; i < arg0.length; i++)
+			object.setCost(arg0[i]);
+	}
+}
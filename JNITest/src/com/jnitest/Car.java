@@ -1,16 +1,28 @@
 package com.jnitest;
 
 import com.jni.annotation.JNIClass;
+import com.jni.annotation.JNIConstructor;
+import com.jni.annotation.JNIField;
 import com.jni.annotation.JNIMethod;
 
-// Generate a C++ managed peer class for the Java "Car" class.
-@JNIClass("JNI.Test")
+// Generate a C++ managed peer class for the Java "Car" class, with a snapshot of its fields packed by packFields(),
+// and register its native methods with the functions declared in the peer.
+@JNIClass(value = "JNI.Test", packer = "packFields", natives = true, constants = true)
 public class Car {
 
+	// Compile-time constants are members of the C++ managed peer, without calls into Java.
+	public static final int MAX_PASSENGERS = 5;
+	public static final String DEFAULT_NAME = "Car";
+
 	private String mName;
+	// Include direct accessors for these fields in the C++ managed peer.
+	@JNIField
 	private double mCost = 17000.0;
+	@JNIField
 	private int mWheels = 4;
 
+	// Create cars from C++ with CarManagedPeer::New(name), or many at once with CarManagedPeer::NewArray().
+	@JNIConstructor
 	public Car(String name) {
 		mName = name;
 	}
@@ -21,7 +33,8 @@ public class Car {
 		return mCost;
 	}
 
-	@JNIMethod
+	// Also set many costs in one call with CarManagedPeer::setCostBatch(), through the generated CarBatch class.
+	@JNIMethod(batch = true)
 	public void setCost(double cost) {
 		mCost = cost;
 	}
@@ -31,8 +44,9 @@ public class Car {
 		return mWheels;
 	}
 
-	// Include an instance method with a more complex return type in the C++ managed peer.
-	@JNIMethod
+	// Include an instance method with a more complex return type in the C++ managed peer,
+	// returning the name as characters rather than a jstring.
+	@JNIMethod(strings = true)
 	public String getName() {
 		return mName;
 	}
@@ -43,5 +57,12 @@ public class Car {
 		return 10;
 	}
 
+	// Implemented by CarManagedPeer::Natives::getColor, bound by CarManagedPeer::RegisterNatives().
 	public native int getColor();
+
+	// Copy the fields for CarManagedPeer::Snapshot() in one call, after the hash of their layout given in
+	// CarManagedPeer.h.
+	private long[] packFields() {
+		return new long[] { 0xa21bc1d1e5ab2417L, Double.doubleToRawLongBits(mCost), mWheels };
+	}
 }